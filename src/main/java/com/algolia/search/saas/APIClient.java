@@ -2,24 +2,21 @@ package com.algolia.search.saas;
 
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.codec.binary.Hex;
-import org.apache.http.HttpResponse;
-import org.apache.http.ParseException;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.config.RequestConfig;
-import org.apache.http.client.methods.*;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.HttpClientBuilder;
-import org.apache.http.message.BasicHeader;
-import org.apache.http.protocol.HTTP;
-import org.apache.http.util.EntityUtils;
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
 import org.apache.http.util.VersionInfo;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
+import javax.management.JMException;
+import javax.management.ObjectName;
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.SocketTimeoutException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URLEncoder;
@@ -28,7 +25,11 @@ import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
 import java.util.Map.Entry;
-import java.util.zip.GZIPInputStream;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
 
 /*
  * Copyright (c) 2015 Algolia
@@ -59,9 +60,14 @@ import java.util.zip.GZIPInputStream;
  * to start using Algolia Search API
  */
 @SuppressWarnings({"unused", "WeakerAccess"})
-public class APIClient {
+public class APIClient implements Closeable {
+  private final static Charset UTF8 = Charset.forName("UTF-8");
+  // successful requests to a host needed before its timeout is derived from its latencies
+  private final static int ADAPTIVE_TIMEOUT_MIN_SAMPLES = 100;
+  private final static int ADAPTIVE_TIMEOUT_DECAY_SAMPLES = 2000;
   private final static String version;
   private final static String fallbackDomain;
+  private final static AtomicInteger metricsBeanSequence = new AtomicInteger();
 
   static {
     String tmp = "N/A";
@@ -84,18 +90,38 @@ public class APIClient {
   private final String apiKey;
   private final List<String> buildHostsArray;
   private final List<String> queryHostsArray;
-  private final HttpClient httpClient;
+  private final Transport transport;
+  private ExecutorService asyncExecutor;
+  private boolean ownsAsyncExecutor;
+  private ExecutorService backgroundExecutor;
+  private volatile long searchHedgingDelayMS = 0;
+  private volatile int compressionThreshold = -1;
+  private volatile long requestDeadlineMS = 0;
+  private volatile double adaptiveTimeoutMultiplier = 0;
+  private final List<RequestListener> listeners = new CopyOnWriteArrayList<RequestListener>();
+  private volatile boolean listenersNeedTimings = false;
+  private ClientMetrics metrics;
+  private ObjectName metricsBeanName;
+  private final FlightRecorderEvents flightRecorderEvents;
+  private volatile SearchCache searchCache;
+  private volatile RequestCoalescer requestCoalescer;
+  private volatile int adaptiveTimeoutMinMS;
+  private volatile int adaptiveTimeoutMaxMS;
+  private ScheduledExecutorService healthProber;
+  private volatile boolean healthProbing = false;
   private final boolean verbose;
   private int httpSocketTimeoutMS = 20000;
   private int httpConnectTimeoutMS = 2000;
   private int httpSearchTimeoutMS = 2000;
-  private int hostDownTimeoutMS = 5 * 60 * 1000; //5 minutes
+  private volatile int hostDownTimeoutMS = 5 * 60 * 1000; //5 minutes
+  private volatile boolean latencyAwareHostSelection = false;
   private String forwardRateLimitAPIKey;
   private String forwardEndUserIP;
   private String forwardAdminAPIKey;
   private HashMap<String, String> headers;
   private String userAgent;
-  private Map<String, HostStatus> hostStatuses = new HashMap<String, HostStatus>();
+  private volatile HeaderSets headerSets;
+  private final Map<String, HostStatus> hostStatuses;
 
   /**
    * Algolia Search initialization
@@ -104,11 +130,18 @@ public class APIClient {
    * @param apiKey        a valid API key for the service
    */
   public APIClient(String applicationID, String apiKey) {
-    this(applicationID, apiKey, Arrays.asList(applicationID + "-1." + fallbackDomain,
-      applicationID + "-2." + fallbackDomain,
-      applicationID + "-3." + fallbackDomain));
-    this.buildHostsArray.add(0, applicationID + ".algolia.net");
-    this.queryHostsArray.add(0, applicationID + "-dsn.algolia.net");
+    this(applicationID, apiKey, defaultHosts(applicationID, applicationID + ".algolia.net"), defaultHosts(applicationID, applicationID + "-dsn.algolia.net"));
+  }
+
+  /**
+   * Algolia Search initialization
+   *
+   * @param applicationID the application ID you have in your admin interface
+   * @param apiKey        a valid API key for the service
+   * @param transport     the transport used to send the requests
+   */
+  public APIClient(String applicationID, String apiKey, Transport transport) {
+    this(applicationID, apiKey, defaultHosts(applicationID, applicationID + ".algolia.net"), defaultHosts(applicationID, applicationID + "-dsn.algolia.net"), transport);
   }
 
   /**
@@ -131,6 +164,22 @@ public class APIClient {
    * @param queryHostsArray the list of hosts that you have received for the service
    */
   public APIClient(String applicationID, String apiKey, List<String> buildHostsArray, List<String> queryHostsArray) {
+    this(applicationID, apiKey, buildHostsArray, queryHostsArray, null);
+  }
+
+  /**
+   * Algolia Search initialization
+   * <p>
+   * A host is contacted with HTTPS on its default port, unless it is given as a full
+   * scheme://host:port prefix (e.g. http://localhost:8080 to target a local stand-in).
+   *
+   * @param applicationID   the application ID you have in your admin interface
+   * @param apiKey          a valid API key for the service
+   * @param buildHostsArray the list of hosts that you have received for the service
+   * @param queryHostsArray the list of hosts that you have received for the service
+   * @param transport       the transport used to send the requests, null to use an {@link ApacheHttpTransport}
+   */
+  public APIClient(String applicationID, String apiKey, List<String> buildHostsArray, List<String> queryHostsArray, Transport transport) {
     userAgent = "Algolia for Java (" + version + "); JVM (" + System.getProperty("java.version") + ")";
     verbose = System.getenv("VERBOSE") != null;
     forwardRateLimitAPIKey = forwardAdminAPIKey = forwardEndUserIP = null;
@@ -149,13 +198,39 @@ public class APIClient {
     this.buildHostsArray = new ArrayList<String>(buildHostsArray);
     this.queryHostsArray = new ArrayList<String>(queryHostsArray);
 
-    HttpClientBuilder builder = HttpClientBuilder.create().disableAutomaticRetries();
-    //If we are on AppEngine don't use system properties
-    if (System.getProperty("com.google.appengine.runtime.version") == null) {
-      builder = builder.useSystemProperties();
+    // The table is never modified after construction, so it can be read concurrently without locking
+    Map<String, HostStatus> statuses = new HashMap<String, HostStatus>();
+    for (String host : this.buildHostsArray) {
+      statuses.put(host, new HostStatus());
+    }
+    for (String host : this.queryHostsArray) {
+      if (!statuses.containsKey(host)) {
+        statuses.put(host, new HostStatus());
+      }
+    }
+    this.hostStatuses = Collections.unmodifiableMap(statuses);
+
+    this.transport = transport != null ? transport : new ApacheHttpTransport();
+    if (this.transport instanceof ApacheHttpTransport) {
+      List<String> hostNames = new ArrayList<String>(statuses.size());
+      for (String host : statuses.keySet()) {
+        String hostName = URI.create(baseUrl(host)).getHost();
+        if (hostName != null) {
+          hostNames.add(hostName);
+        }
+      }
+      ((ApacheHttpTransport) this.transport).prefetchHosts(hostNames);
     }
-    this.httpClient = builder.build();
     this.headers = new HashMap<String, String>();
+    rebuildHeaderSets();
+    this.flightRecorderEvents = FlightRecorderEvents.load(this);
+  }
+
+  private static List<String> defaultHosts(String applicationID, String mainHost) {
+    return Arrays.asList(mainHost,
+      applicationID + "-1." + fallbackDomain,
+      applicationID + "-2." + fallbackDomain,
+      applicationID + "-3." + fallbackDomain);
   }
 
   private static String hmac(String key, String msg) {
@@ -222,8 +297,9 @@ public class APIClient {
   /**
    * Allow to modify the user-agent in order to add the user agent of the integration
    */
-  public void setUserAgent(String agent, String agentVersion) {
+  public synchronized void setUserAgent(String agent, String agentVersion) {
     userAgent = String.format("Algolia for Java (%s); JVM (%s); %s (%s)", version, System.getProperty("java.version"), agent, agentVersion);
+    rebuildHeaderSets();
   }
 
   /**
@@ -234,24 +310,55 @@ public class APIClient {
    * @param endUserIP       the end user IP (you can use both IPV4 or IPV6 syntax)
    * @param rateLimitAPIKey the API key on which you have a rate limit
    */
-  public void enableRateLimitForward(String adminAPIKey, String endUserIP, String rateLimitAPIKey) {
+  public synchronized void enableRateLimitForward(String adminAPIKey, String endUserIP, String rateLimitAPIKey) {
     this.forwardAdminAPIKey = adminAPIKey;
     this.forwardEndUserIP = endUserIP;
     this.forwardRateLimitAPIKey = rateLimitAPIKey;
+    rebuildHeaderSets();
   }
 
   /**
    * Disable IP rate limit enabled with enableRateLimitForward() function
    */
-  public void disableRateLimitForward() {
+  public synchronized void disableRateLimitForward() {
     forwardAdminAPIKey = forwardEndUserIP = forwardRateLimitAPIKey = null;
+    rebuildHeaderSets();
   }
 
   /**
    * Allow to set custom headers
    */
-  public void setExtraHeader(String key, String value) {
+  public synchronized void setExtraHeader(String key, String value) {
     headers.put(key, value);
+    rebuildHeaderSets();
+  }
+
+  /**
+   * The headers only change through the setters above, so they are built once for each kind of body
+   * instead of for every request
+   */
+  private synchronized void rebuildHeaderSets() {
+    // the cached results may depend on the previous headers (e.g. the security tags)
+    SearchCache cache = searchCache;
+    if (cache != null) {
+      cache.clear();
+    }
+    // set auth headers
+    Map<String, String> requestHeaders = new LinkedHashMap<String, String>();
+    requestHeaders.put("Accept-Encoding", "gzip");
+    requestHeaders.put("X-Algolia-Application-Id", this.applicationID);
+    if (forwardAdminAPIKey == null) {
+      requestHeaders.put("X-Algolia-API-Key", this.apiKey);
+    } else {
+      requestHeaders.put("X-Algolia-API-Key", this.forwardAdminAPIKey);
+      requestHeaders.put("X-Forwarded-For", this.forwardEndUserIP);
+      requestHeaders.put("X-Forwarded-API-Key", this.forwardRateLimitAPIKey);
+    }
+    requestHeaders.putAll(headers);
+
+    // set user agent
+    requestHeaders.put("User-Agent", userAgent);
+    this.headerSets = new HeaderSets(requestHeaders);
   }
 
   /**
@@ -265,6 +372,162 @@ public class APIClient {
     httpConnectTimeoutMS = connectTimeout;
   }
 
+  /**
+   * Allow to bound the total duration of a request, all hosts retries included: the timeouts of each attempt
+   * are reduced to the time left, and the request fails with a "Deadline exceeded" AlgoliaException once it is spent.
+   * Disabled by default, can be overridden for one request with RequestOptions.
+   *
+   * @param requestDeadlineMS maximum duration in MS, 0 to only rely on the timeouts of each attempt
+   */
+  public void setRequestDeadline(long requestDeadlineMS) {
+    this.requestDeadlineMS = requestDeadlineMS;
+  }
+
+  /**
+   * Allow to derive the read timeout of each request from the latencies observed on its host for the same kind of
+   * request (search, browse, other reads, writes), so a request that is clearly an outlier is retried on the next host
+   * without waiting for the static timeout. The static timeouts are used until enough requests were sent to the host,
+   * and on the last host left, which has no other host to retry on. A request that timed out counts as having taken
+   * its whole timeout, so a host getting slower raises its timeout instead of being left out of its own statistics.
+   *
+   * @param p99Multiplier multiple of the recent 99th percentile of the latency used as timeout, 0 to disable
+   * @param minTimeoutMS  lower bound of the timeout in MS
+   * @param maxTimeoutMS  upper bound of the timeout in MS
+   */
+  public void setAdaptiveTimeouts(double p99Multiplier, int minTimeoutMS, int maxTimeoutMS) {
+    if (p99Multiplier != 0 && (!(p99Multiplier > 0) || minTimeoutMS < 1 || maxTimeoutMS < minTimeoutMS)) {
+      throw new IllegalArgumentException("Invalid adaptive timeouts settings");
+    }
+    this.adaptiveTimeoutMinMS = minTimeoutMS;
+    this.adaptiveTimeoutMaxMS = maxTimeoutMS;
+    this.adaptiveTimeoutMultiplier = p99Multiplier;
+  }
+
+  /**
+   * Allow to be notified of the requests sent by this client and of each of their attempts, e.g. for metrics or tracing.
+   * Listeners are called synchronously by the thread sending the request, so they must be fast.
+   */
+  public void addRequestListener(RequestListener listener) {
+    listeners.add(listener);
+    listenersChanged();
+  }
+
+  public void removeRequestListener(RequestListener listener) {
+    listeners.remove(listener);
+    listenersChanged();
+  }
+
+  /**
+   * The requests are only timed for the listeners reading the timings: the flight recorder events do not
+   */
+  private void listenersChanged() {
+    boolean timed = false;
+    for (RequestListener listener : listeners) {
+      timed |= !(listener instanceof FlightRecorderEvents);
+    }
+    listenersNeedTimings = timed;
+  }
+
+  /**
+   * Allow to cache the results of search, multipleQueries and searchInFacetValues in memory.
+   * The writes sent through this client evict the cached results of the written indexes.
+   * A result served from the cache is not reported to the request listeners, nor to the timings of the RequestOptions.
+   *
+   * @param searchCache the cache, dedicated to this client; null to disable caching
+   */
+  public void setSearchCache(SearchCache searchCache) {
+    this.searchCache = searchCache;
+  }
+
+  public SearchCache getSearchCache() {
+    return searchCache;
+  }
+
+  /**
+   * Allow the identical reads sent at the same time (same method, path, body and RequestOptions headers and query parameters)
+   * to share one request: the first one is sent, the next ones wait for its response instead of sending duplicates,
+   * each one at most until its own deadline. The writes are never coalesced.
+   * A coalesced read is not reported to the request listeners, nor to the timings of its RequestOptions.
+   * Disabled by default.
+   */
+  public void setRequestCoalescing(boolean enabled) {
+    this.requestCoalescer = enabled ? new RequestCoalescer() : null;
+  }
+
+  /**
+   * @return the number of reads answered with the response of an identical read in flight, 0 if coalescing is disabled
+   */
+  public long getCoalescedRequestCount() {
+    RequestCoalescer coalescer = requestCoalescer;
+    return coalescer != null ? coalescer.getCoalesced() : 0;
+  }
+
+  /**
+   * Record the count, errors, retries, sizes and latency percentiles of the requests, by kind of request and by host.
+   * The metrics are read with {@link #getEndpointMetrics()} and {@link #getHostMetrics()}, or through JMX.
+   *
+   * @param registerMBean register the metrics in the platform MBean server, as
+   *                      com.algolia.search:type=APIClient,applicationID=...,id=...
+   * @throws AlgoliaException if the MBean cannot be registered
+   */
+  public synchronized void enableMetrics(boolean registerMBean) throws AlgoliaException {
+    if (metrics == null) {
+      metrics = new ClientMetrics();
+      listeners.add(metrics);
+      listenersChanged();
+    }
+    if (registerMBean && metricsBeanName == null) {
+      try {
+        ObjectName name = new ObjectName("com.algolia.search:type=APIClient,applicationID=" + ObjectName.quote(applicationID)
+          + ",id=" + metricsBeanSequence.incrementAndGet());
+        ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, name);
+        metricsBeanName = name;
+      } catch (JMException e) {
+        throw new AlgoliaException("Cannot register the metrics MBean: " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * @return the metrics by kind of request: search, multiQuery, browse, batch, getObject, task or other
+   * @throws IllegalStateException if the metrics are not enabled
+   */
+  public Map<String, MetricsSnapshot> getEndpointMetrics() {
+    return metrics().getEndpoints();
+  }
+
+  /**
+   * @return the metrics of the attempts by host
+   * @throws IllegalStateException if the metrics are not enabled
+   */
+  public Map<String, MetricsSnapshot> getHostMetrics() {
+    return metrics().getHosts();
+  }
+
+  /**
+   * @return the Java Flight Recorder events of this client, or null if JFR is not available
+   */
+  FlightRecorderEvents getFlightRecorderEvents() {
+    return flightRecorderEvents;
+  }
+
+  private synchronized ClientMetrics metrics() {
+    if (metrics == null) {
+      throw new IllegalStateException("Metrics are not enabled, see enableMetrics");
+    }
+    return metrics;
+  }
+
+  /**
+   * Allow to compress the body of the requests with gzip (useful for batches and bulk indexing).
+   * Disabled by default, can be overridden for one request with RequestOptions.
+   *
+   * @param compressionThreshold minimum size of the body to compress it, a negative value disables compression
+   */
+  public void setCompressionThreshold(int compressionThreshold) {
+    this.compressionThreshold = compressionThreshold;
+  }
+
   /**
    * Allow to set the timeout for a down host
    *
@@ -274,6 +537,343 @@ public class APIClient {
     this.hostDownTimeoutMS = hostDownTimeoutMS;
   }
 
+  /**
+   * Allow to tune when a host is considered down. The failure rate of the last requests sent to each host is tracked,
+   * and once it reaches the threshold the host is skipped for hostDownTimeoutMS. Then a single request is sent to it
+   * as a probe while the other requests keep using the other hosts, and the host is used again if the probe succeeds.
+   * By default a host is considered down as soon as one request fails.
+   *
+   * @param windowSize         number of last requests to a host on which the failure rate is computed
+   * @param minimumRequests    minimum number of requests in the window before the host can be considered down
+   * @param failureRatePercent failure rate in percent from which the host is considered down
+   */
+  public void setCircuitBreaker(int windowSize, int minimumRequests, int failureRatePercent) {
+    if (windowSize < 1 || minimumRequests < 1 || minimumRequests > windowSize || failureRatePercent < 1 || failureRatePercent > 100) {
+      throw new IllegalArgumentException("Invalid circuit breaker settings");
+    }
+    for (HostStatus status : hostStatuses.values()) {
+      status.configure(windowSize, minimumRequests, failureRatePercent);
+    }
+  }
+
+  /**
+   * Allow to check the hosts considered down in the background: every interval, a cheap request (listing the first index)
+   * is sent to each of them, and a host is used again as soon as it answers. The requests of the application are then
+   * never used to check whether a host is back. Disabled by default.
+   *
+   * @param intervalMS     delay between two checks in MS, 0 to disable the checks
+   * @param probeTimeoutMS connect and read timeout of a check in MS
+   */
+  public void setHealthProbing(long intervalMS, int probeTimeoutMS) {
+    setHealthProbing(intervalMS, probeTimeoutMS, "/1/indexes/?page=0&hitsPerPage=1");
+  }
+
+  /**
+   * Same as {@link #setHealthProbing(long, int)}, with the endpoint to send the checks to
+   *
+   * @param path path of a GET endpoint, any answer of the host (including an HTTP error) means it is up
+   */
+  public synchronized void setHealthProbing(long intervalMS, final int probeTimeoutMS, final String path) {
+    if (healthProber != null) {
+      healthProber.shutdownNow();
+      healthProber = null;
+    }
+    healthProbing = intervalMS > 0;
+    if (intervalMS > 0) {
+      healthProber = Executors.newSingleThreadScheduledExecutor(daemonThreadFactory("algolia-health-"));
+      healthProber.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          for (Map.Entry<String, HostStatus> entry : hostStatuses.entrySet()) {
+            if (!entry.getValue().isUp()) {
+              probeHost(entry.getKey(), probeTimeoutMS, path);
+            }
+          }
+        }
+      }, intervalMS, intervalMS, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private void probeHost(String host, int probeTimeoutMS, String path) {
+    List<AlgoliaInnerException> errors = new ArrayList<AlgoliaInnerException>();
+    long start = System.nanoTime();
+    boolean answered;
+    try {
+      answered = _requestByHost(buildRequest(Method.GET, host, path, null, null, true, probeTimeoutMS, RequestOptions.empty), host, errors, JSON_READER, null) != null;
+    } catch (AlgoliaException e) {
+      // an HTTP error is still an answer
+      answered = e.getCode() != 0;
+    }
+    hostStatuses.get(host).recordProbe(answered, System.nanoTime() - start);
+  }
+
+  /**
+   * Allow to order the query hosts by their observed latency instead of their declaration order.
+   * The latency of each host is an exponentially weighted moving average of its successful requests,
+   * seeded by sending a request to every query host in the background when the option is enabled.
+   * Hosts that are down are still skipped and the next host is still tried on error.
+   *
+   * @param enabled true to try the fastest query host first
+   */
+  public void setLatencyAwareHostSelection(boolean enabled) {
+    boolean wasEnabled = latencyAwareHostSelection;
+    latencyAwareHostSelection = enabled;
+    if (enabled && !wasEnabled) {
+      for (final String host : queryHostsArray) {
+        submit(new Callable<Void>() {
+          @Override
+          public Void call() {
+            seedHostLatency(host);
+            return null;
+          }
+        });
+      }
+    }
+  }
+
+  private void seedHostLatency(String host) {
+    List<AlgoliaInnerException> errors = new ArrayList<AlgoliaInnerException>();
+    long start = System.nanoTime();
+    try {
+      if (_requestByHost(buildRequest(Method.GET, host, "/1/indexes/?page=0&hitsPerPage=1", null, null, true, Long.MAX_VALUE, RequestOptions.empty), host, errors, JSON_READER, null) == null) {
+        return;
+      }
+    } catch (AlgoliaException e) {
+      // an HTTP error (e.g. a key without the listIndexes ACL) is still a valid round-trip
+      if (e.getCode() == 0) {
+        return;
+      }
+    }
+    hostStatuses.get(host).recordLatency(null, System.nanoTime() - start);
+  }
+
+  /**
+   * Get the current state of the build and query hosts, as used by the retry strategy
+   *
+   * @return the state of each host, build hosts first
+   */
+  public Map<String, HostHealth> getHostsHealth() {
+    Map<String, HostHealth> result = new LinkedHashMap<String, HostHealth>();
+    long now = System.nanoTime();
+    for (String host : buildHostsArray) {
+      result.put(host, hostStatuses.get(host).toHostHealth(host, now));
+    }
+    for (String host : queryHostsArray) {
+      if (!result.containsKey(host)) {
+        result.put(host, hostStatuses.get(host).toHostHealth(host, now));
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Allow to set the size of the connection pool shared by all the requests of this client
+   *
+   * @param maxConnections        maximum number of connections, for all hosts
+   * @param maxConnectionsPerHost maximum number of connections to a single host
+   */
+  public void setMaxConnections(int maxConnections, int maxConnectionsPerHost) {
+    apacheHttpTransport().setMaxConnections(maxConnections, maxConnectionsPerHost);
+  }
+
+  /**
+   * Allow to set the delay after which an idle pooled connection is checked before being reused
+   *
+   * @param validateAfterInactivityMS inactivity period in MS, a negative value disables the check
+   */
+  public void setValidateAfterInactivity(int validateAfterInactivityMS) {
+    apacheHttpTransport().setValidateAfterInactivity(validateAfterInactivityMS);
+  }
+
+  /**
+   * Allow to cap how long a pooled connection is kept alive between two requests,
+   * whatever the keep-alive advertised by the server
+   *
+   * @param connectionKeepAliveMS maximum keep-alive in MS, 0 to only rely on the server
+   */
+  public void setConnectionKeepAlive(long connectionKeepAliveMS) {
+    apacheHttpTransport().setConnectionKeepAlive(connectionKeepAliveMS);
+  }
+
+  /**
+   * Allow to start a background thread closing the expired and idle connections of the pool
+   *
+   * @param evictionIntervalMS interval between two evictions in MS, 0 to stop the thread
+   * @param maxIdleTimeMS      idle time in MS after which a connection is closed, 0 to only close expired connections
+   */
+  public void setIdleConnectionEviction(long evictionIntervalMS, long maxIdleTimeMS) {
+    apacheHttpTransport().setIdleConnectionEviction(evictionIntervalMS, maxIdleTimeMS);
+  }
+
+  private ApacheHttpTransport apacheHttpTransport() {
+    if (!(transport instanceof ApacheHttpTransport)) {
+      throw new IllegalStateException("Connection pool settings are only available with the default ApacheHttpTransport");
+    }
+    return (ApacheHttpTransport) transport;
+  }
+
+  /**
+   * Allow to set the executor running the asynchronous methods (searchAsync, batchAsync...).
+   * The requests use blocking I/O, so each asynchronous call keeps a thread of the executor busy until its request
+   * is done, and the calls beyond the connection limit of a host wait for a connection in their thread.
+   * By default an unbounded pool of daemon threads is used, its threads are stopped after 60s without a call.
+   * A bounded executor queues the calls exceeding its threads, their time in the queue is not bounded by the timeouts.
+   *
+   * @param executor the executor to use, it is not shut down by this client
+   */
+  public synchronized void setAsyncExecutor(ExecutorService executor) {
+    if (ownsAsyncExecutor && asyncExecutor != null) {
+      asyncExecutor.shutdown();
+    }
+    asyncExecutor = executor;
+    ownsAsyncExecutor = false;
+  }
+
+  private synchronized ExecutorService getAsyncExecutor() {
+    if (asyncExecutor == null) {
+      asyncExecutor = Executors.newCachedThreadPool(daemonThreadFactory("algolia-async-"));
+      ownsAsyncExecutor = true;
+    }
+    return asyncExecutor;
+  }
+
+  private synchronized ExecutorService getBackgroundExecutor() {
+    if (backgroundExecutor == null) {
+      backgroundExecutor = Executors.newCachedThreadPool(daemonThreadFactory("algolia-background-"));
+    }
+    return backgroundExecutor;
+  }
+
+  static ThreadFactory daemonThreadFactory(final String namePrefix) {
+    final AtomicInteger threadCount = new AtomicInteger();
+    return new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, namePrefix + threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+  }
+
+  /**
+   * Allow to hedge the search requests (search, multipleQueries, searchInFacetValues...), except browse:
+   * if a query host has not answered after the given delay, the same request is sent to the next query host,
+   * the first successful answer is used and the other request is aborted.
+   * Requests sent to the build hosts are never hedged, nor the asynchronous requests sent on an {@link AsyncTransport}.
+   *
+   * @param delayMS delay in MS before sending the request to the next host, 0 to disable hedging
+   */
+  public void setSearchHedgingDelay(long delayMS) {
+    this.searchHedgingDelayMS = delayMS;
+  }
+
+  /**
+   * Get the usage of the connection pool for each host it has been connected to
+   *
+   * @return the leased, available and pending connections, by host
+   */
+  public Map<String, ConnectionPoolStats> getConnectionPoolStats() {
+    return apacheHttpTransport().getConnectionPoolStats();
+  }
+
+  /**
+   * Get the usage of the whole connection pool
+   *
+   * @return the leased, available and pending connections, for all hosts
+   */
+  public ConnectionPoolStats getTotalConnectionPoolStats() {
+    return apacheHttpTransport().getTotalConnectionPoolStats();
+  }
+
+  /**
+   * Open keep-alive connections to all the build and query hosts ahead of the first requests,
+   * so they do not pay the DNS resolution, TCP connect and TLS handshake. The hosts are warmed up in parallel.
+   *
+   * @param connectionsPerHost number of idle connections to hold for each host, capped by the per-host connection limit
+   * @return the result of the warm-up of each host, build hosts first
+   */
+  public Map<String, HostWarmUp> warmUp(final int connectionsPerHost) {
+    final ApacheHttpTransport apacheTransport = apacheHttpTransport();
+    final int connectTimeoutMS = httpConnectTimeoutMS;
+    Map<String, Future<HostWarmUp>> futures = new LinkedHashMap<String, Future<HostWarmUp>>();
+    for (final String host : getHostsHealth().keySet()) {
+      futures.put(host, getBackgroundExecutor().submit(new Callable<HostWarmUp>() {
+        @Override
+        public HostWarmUp call() {
+          try {
+            return new HostWarmUp(host, apacheTransport.warmUp(URI.create(baseUrl(host)), connectionsPerHost, connectTimeoutMS), null);
+          } catch (IOException e) {
+            return new HostWarmUp(host, Collections.<Long>emptyList(), e.getMessage() != null ? e.getMessage() : e.getClass().getName());
+          }
+        }
+      }));
+    }
+
+    Map<String, HostWarmUp> result = new LinkedHashMap<String, HostWarmUp>();
+    try {
+      for (Map.Entry<String, Future<HostWarmUp>> entry : futures.entrySet()) {
+        result.put(entry.getKey(), entry.getValue().get());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      for (Future<HostWarmUp> future : futures.values()) {
+        future.cancel(true);
+      }
+    } catch (ExecutionException e) {
+      throw new IllegalStateException(e.getCause());
+    }
+    return result;
+  }
+
+  /**
+   * Same as {@link #warmUp(int)}, without blocking the calling thread, e.g. to warm up the client in the background on startup
+   *
+   * @param connectionsPerHost number of idle connections to hold for each host, capped by the per-host connection limit
+   * @return a future holding the result of the warm-up of each host
+   */
+  public Future<Map<String, HostWarmUp>> warmUpAsync(final int connectionsPerHost) {
+    apacheHttpTransport();
+    return submit(new Callable<Map<String, HostWarmUp>>() {
+      @Override
+      public Map<String, HostWarmUp> call() {
+        return warmUp(connectionsPerHost);
+      }
+    });
+  }
+
+  /**
+   * Release the connections and the background threads held by this client.
+   * The client must not be used afterwards.
+   */
+  @Override
+  public synchronized void close() {
+    if (ownsAsyncExecutor && asyncExecutor != null) {
+      asyncExecutor.shutdown();
+      asyncExecutor = null;
+    }
+    if (backgroundExecutor != null) {
+      backgroundExecutor.shutdown();
+      backgroundExecutor = null;
+    }
+    if (healthProber != null) {
+      healthProber.shutdownNow();
+      healthProber = null;
+    }
+    if (metricsBeanName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsBeanName);
+      } catch (JMException e) {
+        // not fatal, already unregistered
+      }
+      metricsBeanName = null;
+    }
+    if (flightRecorderEvents != null) {
+      flightRecorderEvents.close();
+    }
+    transport.close();
+  }
+
   /**
    * List all existing indexes
    * return an JSON Object in the form:
@@ -1037,94 +1637,284 @@ public class APIClient {
     return Base64.encodeBase64String(String.format("%s%s", key, queryStr).getBytes(Charset.forName("UTF8")));
   }
 
-  protected JSONObject getRequest(String url, boolean search, RequestOptions requestOptions) throws AlgoliaException {
-    return _request(Method.GET, url, null, false, search, requestOptions);
+  <T> Future<T> submit(Callable<T> task) {
+    return getAsyncExecutor().submit(task);
   }
 
-  protected JSONObject deleteRequest(String url, RequestOptions requestOptions) throws AlgoliaException {
-    return _request(Method.DELETE, url, null, true, false, requestOptions);
+  /**
+   * @param callback notified once the task is done, in the thread that ran it; null for none
+   */
+  <T> Future<T> submit(Callable<T> task, final FutureCallback<T> callback) {
+    if (callback == null) {
+      return submit(task);
+    }
+    FutureTask<T> future = new FutureTask<T>(task) {
+      @Override
+      protected void done() {
+        if (isCancelled()) {
+          callback.cancelled();
+          return;
+        }
+        T result;
+        try {
+          result = get();
+        } catch (ExecutionException e) {
+          callback.failed(e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+          return;
+        } catch (InterruptedException e) {
+          // never reached, the task is done
+          Thread.currentThread().interrupt();
+          return;
+        }
+        callback.completed(result);
+      }
+    };
+    getAsyncExecutor().execute(future);
+    return future;
   }
 
-  protected JSONObject postRequest(String url, String obj, boolean build, boolean search, RequestOptions requestOptions) throws AlgoliaException {
-    return _request(Method.POST, url, obj, build, search, requestOptions);
+  /**
+   * @return a future already failed, e.g. when the body of an asynchronous request cannot be built
+   */
+  static <T> Future<T> failedFuture(Exception e, FutureCallback<T> callback) {
+    BasicFuture<T> future = new BasicFuture<T>(callback);
+    future.failed(e);
+    return future;
   }
 
-  protected JSONObject putRequest(String url, String obj, RequestOptions requestOptions) throws AlgoliaException {
-    return _request(Method.PUT, url, obj, true, false, requestOptions);
+  Future<JSONObject> getRequestAsync(String url, boolean search, RequestOptions requestOptions, FutureCallback<JSONObject> callback) {
+    return _requestAsync(Method.GET, url, null, false, search, requestOptions, callback);
   }
 
-  private JSONObject _requestByHost(HttpRequestBase req, String host, String url, String json, List<AlgoliaInnerException> errors, boolean searchTimeout, RequestOptions requestOptions) throws AlgoliaException {
-    req.reset();
+  Future<JSONObject> postRequestAsync(String url, String obj, boolean build, boolean search, RequestOptions requestOptions, FutureCallback<JSONObject> callback) {
+    return _requestAsync(Method.POST, url, obj, build, search, requestOptions, callback);
+  }
 
-    // set URL
-    try {
-      req.setURI(new URI("https://" + host + url));
-    } catch (URISyntaxException e) {
-      // never reached
-      throw new IllegalStateException(e);
-    }
+  /**
+   * Sends a request without blocking the calling thread. With an {@link AsyncTransport}, no thread waits for the response;
+   * otherwise, and for the requests going through the search cache or the request coalescing, the request runs in the async executor.
+   */
+  private Future<JSONObject> _requestAsync(final Method m, final String url, final String json, final boolean build, final boolean search, final RequestOptions requestOptions, FutureCallback<JSONObject> callback) {
+    if (transport instanceof AsyncTransport && searchCache == null && (requestCoalescer == null || !SearchCache.isRead(m.name(), url))) {
+      AsyncRequest<JSONObject> request = new AsyncRequest<JSONObject>(m, url, json, build, search, requestOptions, JSON_READER, callback);
+      request.start();
+      return request.future;
+    }
+    return submit(new Callable<JSONObject>() {
+      @Override
+      public JSONObject call() throws AlgoliaException {
+        return _request(m, url, json, build, search, requestOptions);
+      }
+    }, callback);
+  }
 
-    // set auth headers
-    req.setHeader("Accept-Encoding", "gzip");
-    req.setHeader("X-Algolia-Application-Id", this.applicationID);
-    if (forwardAdminAPIKey == null) {
-      req.setHeader("X-Algolia-API-Key", this.apiKey);
-    } else {
-      req.setHeader("X-Algolia-API-Key", this.forwardAdminAPIKey);
-      req.setHeader("X-Forwarded-For", this.forwardEndUserIP);
-      req.setHeader("X-Forwarded-API-Key", this.forwardRateLimitAPIKey);
+  protected JSONObject getRequest(String url, boolean search, RequestOptions requestOptions) throws AlgoliaException {
+    return _request(Method.GET, url, null, false, search, requestOptions);
+  }
+
+  protected JSONObject deleteRequest(String url, RequestOptions requestOptions) throws AlgoliaException {
+    return _request(Method.DELETE, url, null, true, false, requestOptions);
+  }
+
+  protected JSONObject postRequest(String url, String obj, boolean build, boolean search, RequestOptions requestOptions) throws AlgoliaException {
+    return _request(Method.POST, url, obj, build, search, requestOptions);
+  }
+
+  /**
+   * Same as postRequest, with the response body given back as sent by the host, without decoding it
+   */
+  protected RawResponse postRequestRaw(String url, String obj, boolean build, boolean search, RequestOptions requestOptions) throws AlgoliaException {
+    if (SearchCache.isRead(Method.POST.name(), url)) {
+      return _rawRequest(Method.POST, url, obj, build, search, requestOptions, RAW_READER);
+    }
+    return _request(Method.POST, url, obj, build, search, requestOptions, RAW_READER);
+  }
+
+  protected JSONObject putRequest(String url, String obj, RequestOptions requestOptions) throws AlgoliaException {
+    return _request(Method.PUT, url, obj, true, false, requestOptions);
+  }
+
+  private static String baseUrl(String host) {
+    return host.contains("://") ? host : "https://" + host;
+  }
+
+  private TransportRequest buildRequest(Method m, String host, String url, RequestBody body, Endpoint endpoint, boolean searchTimeout, long remainingMS, RequestOptions requestOptions) {
+    // set URL
+    URI uri;
+    try {
+      uri = new URI(baseUrl(host) + url);
+    } catch (URISyntaxException e) {
+      // never reached
+      throw new IllegalStateException(e);
+    }
+
+    HeaderSets sets = headerSets;
+    Map<String, String> requestHeaders = body == null ? sets.noBody : (body.isGzipped() ? sets.gzippedJson : sets.json);
+    Map<String, String> extraHeaders = requestOptions.generateExtraHeaders();
+    if (!extraHeaders.isEmpty()) {
+      // the headers of the request override the ones of the client, except the User-Agent and the body headers;
+      // header names are case-insensitive, so a header only differing in case replaces the one of the client
+      Map<String, String> merged = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+      merged.putAll(sets.noBody);
+      merged.putAll(extraHeaders);
+      merged.put("User-Agent", sets.noBody.get("User-Agent"));
+      if (body != null) {
+        merged.put("Content-type", "application/json");
+        if (body.isGzipped()) {
+          merged.put("Content-Encoding", "gzip");
+        }
+      }
+      requestHeaders = merged;
+    }
+
+    int connectTimeoutMS = httpConnectTimeoutMS;
+    int staticReadTimeoutMS = searchTimeout ? httpSearchTimeoutMS : httpSocketTimeoutMS;
+    int readTimeoutMS = readTimeoutMS(host, endpoint, searchTimeout);
+    TransportRequest request = new TransportRequest(m.name(), uri, requestHeaders, body != null ? body.getBytes() : null,
+      boundedTimeoutMS(connectTimeoutMS, remainingMS), boundedTimeoutMS(readTimeoutMS, remainingMS));
+    request.setStaticTimeouts(request.getConnectTimeoutMS() == connectTimeoutMS && request.getReadTimeoutMS() == staticReadTimeoutMS);
+    return request;
+  }
+
+  /**
+   * @param timeoutMS   a timeout, 0 for no timeout
+   * @param remainingMS the time left before the deadline, Long.MAX_VALUE without deadline
+   * @return the timeout bounded by the deadline, 0 if there is neither
+   */
+  private static int boundedTimeoutMS(int timeoutMS, long remainingMS) {
+    if (remainingMS == Long.MAX_VALUE) {
+      return timeoutMS;
+    }
+    if (timeoutMS <= 0) {
+      return (int) Math.min(Integer.MAX_VALUE, remainingMS);
     }
-    for (Entry<String, String> entry : headers.entrySet()) {
-      req.setHeader(entry.getKey(), entry.getValue());
+    return (int) Math.min(timeoutMS, remainingMS);
+  }
+
+  /**
+   * @param endpoint the kind of request, null to always use the static timeout
+   */
+  private int readTimeoutMS(String host, Endpoint endpoint, boolean searchTimeout) {
+    int staticTimeoutMS = searchTimeout ? httpSearchTimeoutMS : httpSocketTimeoutMS;
+    double multiplier = adaptiveTimeoutMultiplier;
+    if (multiplier <= 0 || endpoint == null) {
+      return staticTimeoutMS;
     }
-    for (Entry<String, String> entry : requestOptions.generateExtraHeaders().entrySet()) {
-      req.setHeader(entry.getKey(), entry.getValue());
+    LatencyHistogram histogram = hostStatuses.get(host).getHistogram(endpoint);
+    if (histogram.getCount() < ADAPTIVE_TIMEOUT_MIN_SAMPLES) {
+      return staticTimeoutMS;
     }
+    long timeoutMS = (long) Math.ceil(histogram.getPercentile(0.99) * multiplier);
+    return (int) Math.max(adaptiveTimeoutMinMS, Math.min(adaptiveTimeoutMaxMS, timeoutMS));
+  }
 
-    // set user agent
-    req.setHeader("User-Agent", userAgent);
+  private RequestBody encodeBody(String json, RequestOptions requestOptions) {
+    if (json == null) {
+      return null;
+    }
+    int threshold = requestOptions.getCompressionThreshold() != null ? requestOptions.getCompressionThreshold() : compressionThreshold;
+    // a String has at most as many chars as its UTF-8 encoding has bytes, which is enough to apply the threshold
+    if (threshold < 0 || json.length() < threshold) {
+      return new RequestBody(json.getBytes(UTF8), false);
+    }
+    try {
+      // the UTF-8 encoding is streamed into the compressor so the uncompressed bytes are never buffered
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream(json.length() / 4);
+      Writer writer = new OutputStreamWriter(new GZIPOutputStream(compressed, 8192), UTF8);
+      writer.write(json);
+      writer.close();
+      return new RequestBody(compressed.toByteArray(), true);
+    } catch (IOException e) {
+      throw new IllegalStateException(e); // $COVERAGE-IGNORE$
+    }
+  }
 
-    // set JSON entity
-    if (json != null) {
-      if (!(req instanceof HttpEntityEnclosingRequestBase)) {
-        throw new IllegalArgumentException("Method " + req.getMethod() + " cannot enclose entity");
+  /**
+   * @param info the request being sent, null if it is not reported to the listeners
+   */
+  private <T> T _requestByHost(TransportRequest request, String host, List<AlgoliaInnerException> errors, ResponseReader<T> reader, RequestInfo info) throws AlgoliaException {
+    if (info == null) {
+      return _sendToHost(request, host, errors, reader, new Attempt(false, request.getTimings()));
+    }
+    long start = System.nanoTime();
+    notifyAttemptStart(info, host, request);
+    Attempt attempt = new Attempt(true, request.getTimings());
+    try {
+      return _sendToHost(request, host, errors, reader, attempt);
+    } catch (AlgoliaException e) {
+      attempt.error = e;
+      throw e;
+    } finally {
+      notifyAttemptEnd(info, host, attempt, start);
+    }
+  }
+
+  private void notifyAttemptStart(RequestInfo info, String host, TransportRequest request) {
+    // the attempts of a hedged search may still run once the request ended, they are then no longer reported
+    synchronized (info) {
+      if (info.isEnded()) {
+        return;
       }
-      req.setHeader("Content-type", "application/json");
-      try {
-        StringEntity se = new StringEntity(json, "UTF-8");
-        se.setContentEncoding(new BasicHeader(HTTP.CONTENT_TYPE, "application/json"));
-        ((HttpEntityEnclosingRequestBase) req).setEntity(se);
-      } catch (Exception e) {
-        throw new AlgoliaException("Invalid JSON Object: " + json); // $COVERAGE-IGNORE$
+      for (RequestListener listener : listeners) {
+        try {
+          listener.onAttemptStart(info, host, request.getBody() != null ? request.getBody().length : 0);
+        } catch (RuntimeException e) {
+          logListenerError(e);
+        }
+      }
+    }
+  }
+
+  private void notifyAttemptEnd(RequestInfo info, String host, Attempt attempt, long startNanos) {
+    long latencyMS = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    long bytesReceived = attempt.body != null ? attempt.body.getCount() : 0;
+    synchronized (info) {
+      if (info.isEnded()) {
+        return;
+      }
+      for (RequestListener listener : listeners) {
+        try {
+          listener.onAttemptEnd(info, host, attempt.statusCode, attempt.error, latencyMS, bytesReceived);
+        } catch (RuntimeException e) {
+          logListenerError(e);
+        }
       }
     }
+  }
 
-    RequestConfig config = RequestConfig.custom()
-      .setSocketTimeout(searchTimeout ? httpSearchTimeoutMS : httpSocketTimeoutMS)
-      .setConnectTimeout(httpConnectTimeoutMS)
-      .setConnectionRequestTimeout(httpConnectTimeoutMS)
-      .build();
-    req.setConfig(config);
+  private void logListenerError(RuntimeException e) {
+    // a listener must not break the requests
+    if (verbose) {
+      System.out.println(String.format("RequestListener: %s=%s", e.getClass().getName(), e.getMessage()));
+    }
+  }
 
-    HttpResponse response;
+  private <T> T _sendToHost(TransportRequest request, String host, List<AlgoliaInnerException> errors, ResponseReader<T> reader, Attempt attempt) throws AlgoliaException {
+    TransportResponse response;
     try {
-      response = httpClient.execute(req);
+      response = attempt.execute(transport, request);
     } catch (IOException e) {
       // on error continue on the next host
       if (verbose) {
         System.out.println(String.format("%s: %s=%s", host, e.getClass().getName(), e.getMessage()));
       }
-      errors.add(new AlgoliaInnerException(host, e));
+      errors.add(attempt.failed(new AlgoliaInnerException(host, e)));
       return null;
     }
+    return _readResponse(response, host, errors, reader, attempt);
+  }
+
+  /**
+   * @return the body read, or null if the next host must be tried
+   * @throws AlgoliaException for an error of the request itself, e.g. a 4xx status code
+   */
+  private <T> T _readResponse(TransportResponse response, String host, List<AlgoliaInnerException> errors, ResponseReader<T> reader, Attempt attempt) throws AlgoliaException {
     try {
-      int code = response.getStatusLine().getStatusCode();
+      int code = response.getStatusCode();
       if (code / 100 == 4) {
         String message = "";
         try {
-          message = EntityUtils.toString(response.getEntity());
-        } catch (ParseException e) {
-          e.printStackTrace();
+          message = readBody(response);
         } catch (IOException e) {
           e.printStackTrace();
         }
@@ -1140,50 +1930,141 @@ public class APIClient {
       }
       if (code / 100 != 2) {
         try {
+          String message = readBody(response);
           if (verbose) {
-            System.out.println(String.format("%s: %s", host, EntityUtils.toString(response.getEntity())));
+            System.out.println(String.format("%s: %s", host, message));
           }
-          errors.add(new AlgoliaInnerException(host, EntityUtils.toString(response.getEntity())));
+          errors.add(attempt.failed(new AlgoliaInnerException(host, message)));
         } catch (IOException e) {
           if (verbose) {
             System.out.println(String.format("%s: %s", host, String.valueOf(code)));
           }
-          errors.add(new AlgoliaInnerException(host, e));
+          errors.add(attempt.failed(new AlgoliaInnerException(host, e)));
         }
         // KO, continue
         return null;
       }
       try {
-        InputStream istream = response.getEntity().getContent();
-        String encoding = response.getEntity().getContentEncoding() != null ? response.getEntity().getContentEncoding().getValue() : null;
-        if (encoding != null && encoding.contains("gzip")) {
-          istream = new GZIPInputStream(istream);
-        }
-        InputStreamReader is = new InputStreamReader(istream, "UTF-8");
-        StringBuilder jsonRaw = new StringBuilder();
-        char[] buffer = new char[4096];
-        int read;
-        while ((read = is.read(buffer)) > 0) {
-          jsonRaw.append(buffer, 0, read);
-        }
-        is.close();
-        return new JSONObject(jsonRaw.toString());
+        return reader.read(response, attempt);
       } catch (IOException e) {
+        // the body could not be received (e.g. read timeout), continue on the next host
         if (verbose) {
           System.out.println(String.format("%s: %s=%s", host, e.getClass().getName(), e.getMessage()));
         }
-        errors.add(new AlgoliaInnerException(host, e));
+        errors.add(attempt.failed(new AlgoliaInnerException(host, e)));
         return null;
+      }
+    } finally {
+      response.close();
+    }
+  }
+
+  /**
+   * Reads the body of a successful response
+   */
+  private interface ResponseReader<T> {
+    /**
+     * @throws IOException if the body could not be received, the next host is then tried
+     */
+    T read(TransportResponse response, Attempt attempt) throws IOException, AlgoliaException;
+  }
+
+  private static final ResponseReader<JSONObject> JSON_READER = new ResponseReader<JSONObject>() {
+    @Override
+    public JSONObject read(TransportResponse response, Attempt attempt) throws IOException, AlgoliaException {
+      long start = System.nanoTime();
+      // parse directly from the stream, without copying the body to a String first
+      BodyDecoder decoder = BodyDecoder.open(response.getBody(), BodyDecoder.isGzipped(response.getHeader("Content-Encoding")), attempt.isTimed());
+      try {
+        JSONObject answer = new JSONObject(new JSONTokener(decoder));
+        attempt.bodyRead(start, decoder.getInflateNanos(), answer.optInt("processingTimeMS", -1));
+        return answer;
       } catch (JSONException e) {
+        if (e.getCause() instanceof IOException) {
+          // the tokenizer wraps the errors of the underlying stream
+          throw (IOException) e.getCause();
+        }
         throw new AlgoliaException("JSON decode error:" + e.getMessage());
+      } finally {
+        decoder.close();
       }
+    }
+  };
+
+  private static final ResponseReader<RawResponse> RAW_READER = new ResponseReader<RawResponse>() {
+    @Override
+    public RawResponse read(TransportResponse response, Attempt attempt) throws IOException {
+      // the body is kept as sent by the host, possibly compressed
+      long start = System.nanoTime();
+      byte[] body = BodyDecoder.readAll(response.getBody(), response.getContentLength());
+      attempt.bodyRead(start, 0, -1);
+      return new RawResponse(body, response.getHeader("Content-Encoding"));
+    }
+  };
+
+  /**
+   * Reads the body as sent by the host, and parses it once for the callers sharing the response:
+   * the coalesced reads and the cached searches
+   */
+  private static final ResponseReader<RawResponse> PARSED_RAW_READER = new ResponseReader<RawResponse>() {
+    @Override
+    public RawResponse read(TransportResponse response, Attempt attempt) throws IOException, AlgoliaException {
+      long start = System.nanoTime();
+      byte[] body = BodyDecoder.readAll(response.getBody(), response.getContentLength());
+      String contentEncoding = response.getHeader("Content-Encoding");
+      BodyDecoder decoder = BodyDecoder.open(new ByteArrayInputStream(body), BodyDecoder.isGzipped(contentEncoding), attempt.isTimed());
+      try {
+        JSONObject parsed = new JSONObject(new JSONTokener(decoder));
+        attempt.bodyRead(start, decoder.getInflateNanos(), parsed.optInt("processingTimeMS", -1));
+        return new RawResponse(body, contentEncoding, parsed, decoder.getDecodedChars());
+      } catch (JSONException e) {
+        if (e.getCause() instanceof IOException) {
+          throw (IOException) e.getCause();
+        }
+        throw new AlgoliaException("JSON decode error:" + e.getMessage());
+      } finally {
+        decoder.close();
+      }
+    }
+  };
+
+  private static String readBody(TransportResponse response) throws IOException {
+    BodyDecoder decoder = BodyDecoder.open(response.getBody(), BodyDecoder.isGzipped(response.getHeader("Content-Encoding")), false);
+    try {
+      long contentLength = response.getContentLength();
+      StringBuilder jsonRaw = new StringBuilder(contentLength > 0 && contentLength < 1024 * 1024 ? (int) contentLength : 4096);
+      int c;
+      while ((c = decoder.read()) >= 0) {
+        jsonRaw.append((char) c);
+      }
+      return jsonRaw.toString();
     } finally {
-      req.releaseConnection();
+      decoder.close();
     }
   }
 
   private List<String> queryHostsThatAreUp() {
-    return hostsThatAreUp(this.queryHostsArray);
+    List<String> hosts = hostsThatAreUp(this.queryHostsArray);
+    if (!latencyAwareHostSelection || hosts.size() < 2) {
+      return hosts;
+    }
+
+    // read each latency once so the ordering is consistent while other threads update them
+    final Map<String, Long> latencies = new HashMap<String, Long>(hosts.size() * 2);
+    for (String host : hosts) {
+      long latency = hostStatuses.get(host).getLatencyNanos();
+      latencies.put(host, latency < 0 ? Long.MAX_VALUE : latency);
+    }
+    List<String> sorted = new ArrayList<String>(hosts);
+    Collections.sort(sorted, new Comparator<String>() {
+      @Override
+      public int compare(String a, String b) {
+        long la = latencies.get(a);
+        long lb = latencies.get(b);
+        return la < lb ? -1 : (la == lb ? 0 : 1);
+      }
+    });
+    return sorted;
   }
 
   private List<String> buildHostsThatAreUp() {
@@ -1193,7 +2074,7 @@ public class APIClient {
   private List<String> hostsThatAreUp(List<String> hosts) {
     List<String> result = new ArrayList<String>(hosts.size());
     for (String host : hosts) {
-      if (isHostUpOrCouldBeRetried(host)) {
+      if (isHostAvailable(host)) {
         result.add(host);
       }
     }
@@ -1205,48 +2086,593 @@ public class APIClient {
     }
   }
 
-  private boolean isHostUpOrCouldBeRetried(String host) {
-    HostStatus status = hostStatuses.get(host);
-    if (status == null) {
-      hostStatuses.put(host, HostStatus.up());
+  private boolean isHostAvailable(String host) {
+    return hostStatuses.get(host).isAvailable(hostOpenNanos());
+  }
+
+  /**
+   * @return how long a host considered down is skipped, forever when the background checks revive the hosts
+   */
+  private long hostOpenNanos() {
+    return healthProbing ? Long.MAX_VALUE : TimeUnit.MILLISECONDS.toNanos(hostDownTimeoutMS);
+  }
+
+  /**
+   * A host whose circuit is open or already probed is skipped, unless none of the next hosts could be tried instead
+   */
+  private boolean tryAcquireHost(List<String> hosts, int index) {
+    if (hostStatuses.get(hosts.get(index)).tryAcquire(hostOpenNanos())) {
       return true;
     }
-
-    return status.isUp || (new Date().getTime() - status.lastModifiedTimestamp) >= hostDownTimeoutMS;
+    for (int i = index + 1; i < hosts.size(); i++) {
+      if (isHostAvailable(hosts.get(i))) {
+        return false;
+      }
+    }
+    return true;
   }
 
   private JSONObject _request(Method m, String url, String json, boolean build, boolean search, RequestOptions requestOptions) throws AlgoliaException {
-    HttpRequestBase req;
-    switch (m) {
-      case DELETE:
-        req = new HttpDelete();
-        break;
-      case GET:
-        req = new HttpGet();
-        break;
-      case POST:
-        req = new HttpPost();
-        break;
-      case PUT:
-        req = new HttpPut();
-        break;
-      default:
-        throw new IllegalArgumentException("Method " + m + " is not supported");
+    SearchCache cache = searchCache;
+    if (cache == null) {
+      if (requestCoalescer != null && SearchCache.isRead(m.name(), url)) {
+        return _rawRequest(m, url, json, build, search, requestOptions, PARSED_RAW_READER).toJSONObject();
+      }
+      return _request(m, url, json, build, search, requestOptions, JSON_READER);
+    }
+    if (SearchCache.isCacheable(m.name(), url)) {
+      return _cachedSearch(cache, url, json, build, search, requestOptions);
+    }
+    if (SearchCache.isWrite(m.name(), url)) {
+      // also evicted before, so a search running during the write is not cached
+      cache.invalidate(url, json);
+      try {
+        return _request(m, url, json, build, search, requestOptions, JSON_READER);
+      } finally {
+        cache.invalidate(url, json);
+      }
+    }
+    if (requestCoalescer != null) {
+      return _rawRequest(m, url, json, build, search, requestOptions, PARSED_RAW_READER).toJSONObject();
+    }
+    return _request(m, url, json, build, search, requestOptions, JSON_READER);
+  }
+
+  /**
+   * Sends a read, coalesced with the identical reads in flight when enabled. Only the GETs and the read-only POSTs
+   * (see {@link SearchCache#isRead(String, String)}) are coalesced.
+   *
+   * @param reader RAW_READER, or PARSED_RAW_READER to parse the body once for all the callers sharing the response
+   */
+  private RawResponse _rawRequest(final Method m, final String url, final String json, final boolean build, final boolean search, final RequestOptions requestOptions, final ResponseReader<RawResponse> reader) throws AlgoliaException {
+    RequestCoalescer coalescer = requestCoalescer;
+    if (coalescer == null || !SearchCache.isRead(m.name(), url)) {
+      return _request(m, url, json, build, search, requestOptions, reader);
+    }
+    final long deadlineMS = requestOptions.getRequestDeadline() != null ? requestOptions.getRequestDeadline() : requestDeadlineMS;
+    String key = RequestCoalescer.key(m.name(), url, json, build, requestOptions);
+    return coalescer.execute(key, deadlineMS, new RequestCoalescer.Read() {
+      @Override
+      public RawResponse send(long remainingMS) throws AlgoliaException {
+        RequestOptions options = remainingMS == deadlineMS ? requestOptions : requestOptions.copy().setRequestDeadline(remainingMS);
+        return _request(m, url, json, build, search, options, reader);
+      }
+    });
+  }
+
+  private JSONObject _cachedSearch(final SearchCache cache, final String url, final String json, final boolean build, final boolean search, RequestOptions requestOptions) throws AlgoliaException {
+    final SearchCache.Key key = SearchCache.key(url, json, requestOptions);
+    SearchCache.Lookup lookup = cache.lookup(key);
+    if (lookup.revalidate) {
+      // the options of the caller are not reused, as its timings must not be filled after it got the results
+      final RequestOptions refreshOptions = new RequestOptions();
+      for (Entry<String, String> header : requestOptions.generateExtraHeaders().entrySet()) {
+        refreshOptions.addExtraHeader(header.getKey(), header.getValue());
+      }
+      for (Entry<String, String> param : requestOptions.generateExtraQueryParams().entrySet()) {
+        refreshOptions.addExtraQueryParameters(param.getKey(), param.getValue());
+      }
+      final long version = cache.startFill();
+      try {
+        getBackgroundExecutor().submit(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              RawResponse response = _rawRequest(Method.POST, url, json, build, search, refreshOptions, PARSED_RAW_READER);
+              if (!cache.put(key, response, version)) {
+                cache.revalidationFailed(key);
+              }
+            } catch (AlgoliaException e) {
+              cache.revalidationFailed(key);
+            } finally {
+              cache.endFill(version);
+            }
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        // the client is closing
+        cache.endFill(version);
+        cache.revalidationFailed(key);
+      }
+    }
+    if (lookup.servable) {
+      // a copy, as the caller may modify the result
+      return lookup.response.toJSONObject();
+    }
+    long version = cache.startFill();
+    RawResponse response;
+    try {
+      response = _rawRequest(Method.POST, url, json, build, search, requestOptions, PARSED_RAW_READER);
+      cache.put(key, response, version);
+    } catch (AlgoliaException e) {
+      RawResponse stale = lookup.response != null && isUnreachable(e) ? cache.getIfError(key) : null;
+      if (stale == null) {
+        throw e;
+      }
+      return stale.toJSONObject();
+    } finally {
+      cache.endFill(version);
+    }
+    return response.toJSONObject();
+  }
+
+  /**
+   * @return true if no host answered the request, rather than an error of the request itself
+   */
+  private static boolean isUnreachable(AlgoliaException e) {
+    return e.getCode() == 0 && (e.getCause() instanceof AlgoliaInnerException
+      || e.getMessage() != null && (e.getMessage().startsWith("Hosts unreachable") || e.getMessage().startsWith("Deadline exceeded")));
+  }
+
+  private <T> T _request(Method m, String url, String json, boolean build, boolean search, RequestOptions requestOptions, ResponseReader<T> reader) throws AlgoliaException {
+    RequestTimings timings = requestOptions.getTimings();
+    if (listeners.isEmpty()) {
+      if (timings == null) {
+        return _requestOnHosts(m, url, json, build, search, requestOptions, reader, null, null);
+      }
+      long start = System.nanoTime();
+      try {
+        return _requestOnHosts(m, url, json, build, search, requestOptions, reader, null, timings);
+      } finally {
+        timings.finished(System.nanoTime() - start);
+      }
     }
+    // the listeners are given the timings, e.g. for the metrics
+    if (timings == null && listenersNeedTimings) {
+      timings = new RequestTimings();
+    }
+    RequestInfo info = newRequestInfo(m, url, json, timings);
+    long start = System.nanoTime();
+    notifyRequestStart(info);
+    AlgoliaException error = null;
+    try {
+      return _requestOnHosts(m, url, json, build, search, requestOptions, reader, info, timings);
+    } catch (AlgoliaException e) {
+      error = e;
+      throw e;
+    } finally {
+      long durationNanos = System.nanoTime() - start;
+      if (timings != null) {
+        timings.finished(durationNanos);
+      }
+      notifyRequestEnd(info, error, durationNanos);
+    }
+  }
+
+  /**
+   * @return the request given to the listeners
+   */
+  private RequestInfo newRequestInfo(Method m, String url, String json, RequestTimings timings) {
+    RequestInfo info = new RequestInfo(m.name(), url);
+    info.setBody(json);
+    info.setTimings(timings);
+    return info;
+  }
+
+  private void notifyRequestStart(RequestInfo info) {
+    for (RequestListener listener : listeners) {
+      try {
+        listener.onRequestStart(info);
+      } catch (RuntimeException e) {
+        logListenerError(e);
+      }
+    }
+  }
+
+  private void notifyRequestEnd(RequestInfo info, AlgoliaException error, long durationNanos) {
+    // waits for the notifications of the attempts in progress
+    info.end();
+    long durationMS = TimeUnit.NANOSECONDS.toMillis(durationNanos);
+    for (RequestListener listener : listeners) {
+      try {
+        listener.onRequestEnd(info, error, durationMS);
+      } catch (RuntimeException e) {
+        logListenerError(e);
+      }
+    }
+  }
+
+  /**
+   * @param timings filled with the phases of the attempts, null if the request is not timed
+   */
+  private <T> T _requestOnHosts(Method m, String url, String json, boolean build, boolean search, RequestOptions requestOptions, ResponseReader<T> reader, RequestInfo info, RequestTimings timings) throws AlgoliaException {
+    long startNanos = System.nanoTime();
+    long deadlineMS = requestOptions.getRequestDeadline() != null ? requestOptions.getRequestDeadline() : requestDeadlineMS;
+    RequestBody body = encodeBody(json, requestOptions);
     List<AlgoliaInnerException> errors = new ArrayList<AlgoliaInnerException>();
     List<String> hosts = build ? buildHostsThatAreUp() : queryHostsThatAreUp();
 
+    Endpoint endpoint = Endpoint.of(url, build, search);
+
+    long hedgingDelayMS = searchHedgingDelayMS;
+    // the pages of a browse are read once each, hedging them would only double the load
+    if (search && !build && endpoint != Endpoint.BROWSE && hedgingDelayMS > 0 && hosts.size() > 1) {
+      return _hedgedRequest(m, url, body, endpoint, hosts, hedgingDelayMS, startNanos, deadlineMS, requestOptions, reader, info, timings);
+    }
+
     // for each host
-    for (String host : hosts) {
-      JSONObject res = _requestByHost(req, host, url, json, errors, search, requestOptions);
+    for (int i = 0; i < hosts.size(); i++) {
+      if (!tryAcquireHost(hosts, i)) {
+        continue;
+      }
+      String host = hosts.get(i);
+      HostStatus status = hostStatuses.get(host);
+      long remainingMS = remainingMS(startNanos, deadlineMS);
+      if (remainingMS <= 0) {
+        throw deadlineExceeded(deadlineMS, errors);
+      }
+      // the last host has no other host to retry on: it gets the whole static timeout
+      TransportRequest request = buildRequest(m, host, url, body, i < hosts.size() - 1 ? endpoint : null, search, remainingMS, requestOptions);
+      request.setTimings(timings);
+      long start = System.nanoTime();
+      T res;
+      try {
+        res = _requestByHost(request, host, errors, reader, info);
+      } catch (AlgoliaException e) {
+        // the host answered, with an error of the request itself
+        status.recordSuccess();
+        throw e;
+      }
       if (res != null) {
-        hostStatuses.put(host, HostStatus.up());
+        status.recordSuccess();
+        status.recordLatency(endpoint, System.nanoTime() - start);
         return res;
       } else {
-        hostStatuses.put(host, HostStatus.down());
+        recordTimeout(host, status, endpoint, request, remainingMS, errors);
+        status.recordFailure();
+      }
+    }
+    throw unreachable(startNanos, deadlineMS, errors);
+  }
+
+  /**
+   * Record a timed out attempt as a latency of its timeout: the real latency is unknown but at least this long.
+   * An attempt cut short by the deadline of the request tells nothing about its host and is not recorded.
+   *
+   * @param errors the errors of the request, the last one of the host being the one of this attempt
+   */
+  private static void recordTimeout(String host, HostStatus status, Endpoint endpoint, TransportRequest request, long remainingMS, List<AlgoliaInnerException> errors) {
+    if (request.getReadTimeoutMS() >= remainingMS) {
+      return;
+    }
+    synchronized (errors) {
+      for (int i = errors.size() - 1; i >= 0; i--) {
+        AlgoliaInnerException error = errors.get(i);
+        if (host.equals(error.getHost())) {
+          if (error.getCause() instanceof SocketTimeoutException) {
+            status.recordLatency(endpoint, TimeUnit.MILLISECONDS.toNanos(request.getReadTimeoutMS()));
+          }
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the time left in MS before the deadline of a request started at startNanos, Long.MAX_VALUE without deadline
+   */
+  private static long remainingMS(long startNanos, long deadlineMS) {
+    if (deadlineMS <= 0) {
+      return Long.MAX_VALUE;
+    }
+    return deadlineMS - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+  }
+
+  private static AlgoliaException deadlineExceeded(long deadlineMS, List<AlgoliaInnerException> errors) {
+    return AlgoliaException.from("Deadline exceeded: no answer within " + deadlineMS + "ms", errors);
+  }
+
+  /**
+   * @return the error once every host failed: the deadline was exceeded if it cut the last attempt
+   */
+  private static AlgoliaException unreachable(long startNanos, long deadlineMS, List<AlgoliaInnerException> errors) {
+    if (remainingMS(startNanos, deadlineMS) <= 0) {
+      return deadlineExceeded(deadlineMS, errors);
+    }
+    return AlgoliaException.from("Hosts unreachable", errors);
+  }
+
+  /**
+   * Same retry strategy as _request, except that the next host is also tried when the current one
+   * has not answered after hedgingDelayMS. At most two requests are in flight at the same time.
+   */
+  private <T> T _hedgedRequest(Method m, String url, RequestBody body, final Endpoint endpoint, List<String> hosts, long hedgingDelayMS, long startNanos, long deadlineMS, RequestOptions requestOptions, final ResponseReader<T> reader, final RequestInfo info, RequestTimings timings) throws AlgoliaException {
+    final List<AlgoliaInnerException> errors = Collections.synchronizedList(new ArrayList<AlgoliaInnerException>());
+    CompletionService<T> completionService = new ExecutorCompletionService<T>(getBackgroundExecutor());
+    Map<Future<T>, String> inFlightHosts = new HashMap<Future<T>, String>();
+    Map<Future<T>, TransportRequest> inFlightRequests = new HashMap<Future<T>, TransportRequest>();
+    int next = 0;
+    try {
+      do {
+        long remainingMS = remainingMS(startNanos, deadlineMS);
+        if (remainingMS <= 0) {
+          throw deadlineExceeded(deadlineMS, new ArrayList<AlgoliaInnerException>(errors));
+        }
+        while (next < hosts.size() && inFlightHosts.size() < 2 && !tryAcquireHost(hosts, next)) {
+          next++;
+        }
+        if (inFlightHosts.isEmpty() || inFlightHosts.size() < 2 && next < hosts.size()) {
+          final String host = hosts.get(next++);
+          final TransportRequest req = buildRequest(m, host, url, body, next < hosts.size() ? endpoint : null, true, remainingMS, requestOptions);
+          final long attemptRemainingMS = remainingMS;
+          req.setTimings(timings);
+          Future<T> future = completionService.submit(new Callable<T>() {
+            @Override
+            public T call() throws AlgoliaException {
+              long start = System.nanoTime();
+              T res = _requestByHost(req, host, errors, reader, info);
+              if (res != null) {
+                hostStatuses.get(host).recordLatency(endpoint, System.nanoTime() - start);
+              } else {
+                recordTimeout(host, hostStatuses.get(host), endpoint, req, attemptRemainingMS, errors);
+              }
+              return res;
+            }
+          });
+          inFlightHosts.put(future, host);
+          inFlightRequests.put(future, req);
+        }
+
+        boolean canHedge = inFlightHosts.size() < 2 && next < hosts.size();
+        Future<T> done = canHedge || remainingMS != Long.MAX_VALUE ?
+          completionService.poll(canHedge ? Math.min(hedgingDelayMS, remainingMS) : remainingMS, TimeUnit.MILLISECONDS) :
+          completionService.take();
+        if (done == null) {
+          // no answer within the delay: hedge on the next host, or fail if the deadline is spent
+          continue;
+        }
+        String host = inFlightHosts.remove(done);
+        inFlightRequests.remove(done);
+        T res;
+        try {
+          res = done.get();
+        } catch (ExecutionException e) {
+          if (e.getCause() instanceof AlgoliaException) {
+            hostStatuses.get(host).recordSuccess();
+            throw (AlgoliaException) e.getCause();
+          }
+          throw new AlgoliaException(e.getCause());
+        }
+        if (res != null) {
+          hostStatuses.get(host).recordSuccess();
+          return res;
+        }
+        hostStatuses.get(host).recordFailure();
+      } while (!inFlightHosts.isEmpty() || next < hosts.size());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new AlgoliaException("Interrupted while waiting for the search hosts", e);
+    } finally {
+      for (Entry<Future<T>, TransportRequest> entry : inFlightRequests.entrySet()) {
+        entry.getValue().abort();
+        entry.getKey().cancel(true);
+        // the aborted request tells nothing about its host
+        hostStatuses.get(inFlightHosts.get(entry.getKey())).release();
+      }
+    }
+    throw unreachable(startNanos, deadlineMS, new ArrayList<AlgoliaInnerException>(errors));
+  }
+
+  /**
+   * Same retry strategy as _request, on an {@link AsyncTransport}: each attempt is sent from the completion of the previous one,
+   * and the future is completed by the I/O thread receiving the last response. The searches are not hedged.
+   */
+  private class AsyncRequest<T> implements FutureCallback<TransportResponse> {
+    private final Method m;
+    private final String url;
+    private final RequestBody body;
+    private final Endpoint endpoint;
+    private final boolean search;
+    private final RequestOptions requestOptions;
+    private final ResponseReader<T> reader;
+    private final RequestInfo info;
+    private final RequestTimings timings;
+    private final List<String> hosts;
+    private final long startNanos = System.nanoTime();
+    private final long deadlineMS;
+    private final List<AlgoliaInnerException> errors = Collections.synchronizedList(new ArrayList<AlgoliaInnerException>());
+    final BasicFuture<T> future;
+    private int next = 0;
+    // the attempt in flight, only one at a time
+    private volatile TransportRequest request;
+    private String host;
+    private Attempt attempt;
+    private long attemptStartNanos;
+    private long remainingMS;
+
+    AsyncRequest(Method m, String url, String json, boolean build, boolean search, RequestOptions requestOptions, ResponseReader<T> reader, FutureCallback<T> callback) {
+      this.m = m;
+      this.url = url;
+      this.body = encodeBody(json, requestOptions);
+      this.endpoint = Endpoint.of(url, build, search);
+      this.search = search;
+      this.requestOptions = requestOptions;
+      this.reader = reader;
+      this.hosts = build ? buildHostsThatAreUp() : queryHostsThatAreUp();
+      this.deadlineMS = requestOptions.getRequestDeadline() != null ? requestOptions.getRequestDeadline() : requestDeadlineMS;
+      RequestTimings requestTimings = requestOptions.getTimings();
+      if (listeners.isEmpty()) {
+        this.info = null;
+      } else {
+        if (requestTimings == null && listenersNeedTimings) {
+          requestTimings = new RequestTimings();
+        }
+        this.info = newRequestInfo(m, url, json, requestTimings);
+      }
+      this.timings = requestTimings;
+      this.future = new BasicFuture<T>(callback) {
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+          boolean cancelled = super.cancel(mayInterruptIfRunning);
+          TransportRequest current = request;
+          if (cancelled && current != null) {
+            current.abort();
+          }
+          return cancelled;
+        }
+      };
+    }
+
+    void start() {
+      if (info != null) {
+        notifyRequestStart(info);
+      }
+      sendNext();
+    }
+
+    private void sendNext() {
+      while (next < hosts.size()) {
+        int i = next++;
+        if (!tryAcquireHost(hosts, i)) {
+          continue;
+        }
+        host = hosts.get(i);
+        remainingMS = remainingMS(startNanos, deadlineMS);
+        if (remainingMS <= 0) {
+          hostStatuses.get(host).release();
+          finish(null, deadlineExceeded(deadlineMS, new ArrayList<AlgoliaInnerException>(errors)));
+          return;
+        }
+        // the last host has no other host to retry on: it gets the whole static timeout
+        TransportRequest req = buildRequest(m, host, url, body, i < hosts.size() - 1 ? endpoint : null, search, remainingMS, requestOptions);
+        req.setTimings(timings);
+        attempt = new Attempt(info != null, timings);
+        request = req;
+        if (future.isCancelled()) {
+          hostStatuses.get(host).release();
+          return;
+        }
+        if (info != null) {
+          notifyAttemptStart(info, host, req);
+        }
+        if (timings != null) {
+          timings.attempted();
+        }
+        attemptStartNanos = System.nanoTime();
+        try {
+          ((AsyncTransport) transport).executeAsync(req, this);
+        } catch (RuntimeException e) {
+          // the request could not be sent at all, e.g. the transport is closed
+          attempt.error = e;
+          attemptEnded();
+          hostStatuses.get(host).release();
+          finish(null, new AlgoliaException(e.getMessage()));
+        }
+        return;
+      }
+      finish(null, unreachable(startNanos, deadlineMS, new ArrayList<AlgoliaInnerException>(errors)));
+    }
+
+    @Override
+    public void completed(TransportResponse response) {
+      if (future.isCancelled()) {
+        response.close();
+        cancelled();
+        return;
+      }
+      long latencyNanos = System.nanoTime() - attemptStartNanos;
+      if (timings != null) {
+        timings.addPhase(RequestTimings.Phase.TIME_TO_FIRST_BYTE, latencyNanos);
+      }
+      HostStatus status = hostStatuses.get(host);
+      T res;
+      try {
+        res = _readResponse(attempt.observe(response), host, errors, reader, attempt);
+      } catch (AlgoliaException e) {
+        // the host answered, with an error of the request itself
+        attempt.error = e;
+        attemptEnded();
+        status.recordSuccess();
+        finish(null, e);
+        return;
+      } catch (RuntimeException e) {
+        attempt.error = e;
+        attemptEnded();
+        finish(null, new AlgoliaException(e.getMessage()));
+        return;
+      }
+      attemptEnded();
+      if (res != null) {
+        status.recordSuccess();
+        status.recordLatency(endpoint, latencyNanos);
+        finish(res, null);
+      } else {
+        recordTimeout(host, status, endpoint, request, remainingMS, errors);
+        status.recordFailure();
+        sendNext();
+      }
+    }
+
+    @Override
+    public void failed(Exception e) {
+      if (future.isCancelled()) {
+        // the transport may report an aborted request as failed
+        cancelled();
+        return;
+      }
+      // on error continue on the next host
+      if (verbose) {
+        System.out.println(String.format("%s: %s=%s", host, e.getClass().getName(), e.getMessage()));
+      }
+      errors.add(attempt.failed(new AlgoliaInnerException(host, e)));
+      attemptEnded();
+      HostStatus status = hostStatuses.get(host);
+      recordTimeout(host, status, endpoint, request, remainingMS, errors);
+      status.recordFailure();
+      sendNext();
+    }
+
+    @Override
+    public void cancelled() {
+      if (!future.isCancelled()) {
+        failed(new IOException("Request aborted"));
+        return;
+      }
+      // the aborted request tells nothing about its host
+      attemptEnded();
+      hostStatuses.get(host).release();
+    }
+
+    private void attemptEnded() {
+      if (info != null) {
+        notifyAttemptEnd(info, host, attempt, attemptStartNanos);
+      }
+    }
+
+    private void finish(T res, AlgoliaException error) {
+      long durationNanos = System.nanoTime() - startNanos;
+      if (timings != null) {
+        timings.finished(durationNanos);
+      }
+      if (info != null) {
+        notifyRequestEnd(info, error, durationNanos);
+      }
+      if (error != null) {
+        future.failed(error);
+      } else {
+        future.completed(res);
       }
     }
-    throw AlgoliaException.from("Hosts unreachable", errors);
   }
 
   /**
@@ -1266,19 +2692,79 @@ public class APIClient {
   }
 
   public JSONObject multipleQueries(List<IndexQuery> queries, String strategy, RequestOptions requestOptions) throws AlgoliaException {
+    return postRequest("/1/indexes/*/queries?strategy=" + strategy, multipleQueriesBody(queries), false, true, requestOptions);
+  }
+
+  /**
+   * This method allows to query multiple indexes with one API call, the response is not decoded:
+   * its bytes are given back as sent by the host, e.g. to forward them as is
+   *
+   * @param requestOptions Options to pass to this request
+   */
+  public RawResponse multipleQueriesRaw(List<IndexQuery> queries, String strategy, RequestOptions requestOptions) throws AlgoliaException {
+    return postRequestRaw("/1/indexes/*/queries?strategy=" + strategy, multipleQueriesBody(queries), false, true, requestOptions);
+  }
+
+  /**
+   * This method allows to query multiple indexes with one API call, the response is not decoded
+   */
+  public RawResponse multipleQueriesRaw(List<IndexQuery> queries) throws AlgoliaException {
+    return multipleQueriesRaw(queries, "none", RequestOptions.empty);
+  }
+
+  private static String multipleQueriesBody(List<IndexQuery> queries) throws AlgoliaException {
     try {
       JSONArray requests = new JSONArray();
       for (IndexQuery indexQuery : queries) {
         String paramsString = indexQuery.getQuery().getQueryString();
         requests.put(new JSONObject().put("indexName", indexQuery.getIndex()).put("params", paramsString));
       }
-      JSONObject body = new JSONObject().put("requests", requests);
-      return postRequest("/1/indexes/*/queries?strategy=" + strategy, body.toString(), false, true, requestOptions);
+      return new JSONObject().put("requests", requests).toString();
     } catch (JSONException e) {
       throw new AlgoliaException(e);
     }
   }
 
+  /**
+   * This method allows to query multiple indexes with one API call, without blocking the calling thread
+   *
+   * @return a future holding the result, or an AlgoliaException as cause of its ExecutionException
+   */
+  public Future<JSONObject> multipleQueriesAsync(List<IndexQuery> queries) {
+    return multipleQueriesAsync(queries, "none", RequestOptions.empty);
+  }
+
+  /**
+   * This method allows to query multiple indexes with one API call, without blocking the calling thread
+   *
+   * @param requestOptions Options to pass to this request
+   * @return a future holding the result, or an AlgoliaException as cause of its ExecutionException
+   */
+  public Future<JSONObject> multipleQueriesAsync(List<IndexQuery> queries, RequestOptions requestOptions) {
+    return multipleQueriesAsync(queries, "none", requestOptions);
+  }
+
+  public Future<JSONObject> multipleQueriesAsync(List<IndexQuery> queries, String strategy, RequestOptions requestOptions) {
+    return multipleQueriesAsync(queries, strategy, requestOptions, null);
+  }
+
+  /**
+   * This method allows to query multiple indexes with one API call, without blocking the calling thread
+   *
+   * @param requestOptions Options to pass to this request
+   * @param callback       notified once the request is done, e.g. to chain another call; null for none
+   * @return a future holding the result, or an AlgoliaException as cause of its ExecutionException
+   */
+  public Future<JSONObject> multipleQueriesAsync(List<IndexQuery> queries, String strategy, RequestOptions requestOptions, FutureCallback<JSONObject> callback) {
+    String body;
+    try {
+      body = multipleQueriesBody(queries);
+    } catch (AlgoliaException e) {
+      return failedFuture(e, callback);
+    }
+    return postRequestAsync("/1/indexes/*/queries?strategy=" + strategy, body, false, true, requestOptions, callback);
+  }
+
   /**
    * Custom batch
    *
@@ -1317,11 +2803,93 @@ public class APIClient {
     return postBatch(actions, requestOptions);
   }
 
+  /**
+   * Custom batch, without blocking the calling thread
+   *
+   * @param actions the array of actions
+   * @return a future holding the result, or an AlgoliaException as cause of its ExecutionException
+   */
+  public Future<JSONObject> batchAsync(JSONArray actions) {
+    return batchAsync(actions, RequestOptions.empty);
+  }
+
+  /**
+   * Custom batch, without blocking the calling thread
+   *
+   * @param actions        the array of actions
+   * @param requestOptions Options to pass to this request
+   * @return a future holding the result, or an AlgoliaException as cause of its ExecutionException
+   */
+  public Future<JSONObject> batchAsync(JSONArray actions, RequestOptions requestOptions) {
+    return batchAsync(actions, requestOptions, null);
+  }
+
+  /**
+   * Custom batch, without blocking the calling thread
+   *
+   * @param actions        the array of actions
+   * @param requestOptions Options to pass to this request
+   * @param callback       notified once the request is done, e.g. to chain another call; null for none
+   * @return a future holding the result, or an AlgoliaException as cause of its ExecutionException
+   */
+  public Future<JSONObject> batchAsync(JSONArray actions, RequestOptions requestOptions, FutureCallback<JSONObject> callback) {
+    String body;
+    try {
+      body = batchBody(actions);
+    } catch (AlgoliaException e) {
+      return failedFuture(e, callback);
+    }
+    return postRequestAsync("/1/indexes/*/batch", body, true, false, requestOptions, callback);
+  }
+
+  /**
+   * Custom batch, without blocking the calling thread
+   *
+   * @param actions the array of actions
+   * @return a future holding the result, or an AlgoliaException as cause of its ExecutionException
+   */
+  public Future<JSONObject> batchAsync(List<JSONObject> actions) {
+    return batchAsync(actions, RequestOptions.empty);
+  }
+
+  /**
+   * Custom batch, without blocking the calling thread
+   *
+   * @param actions        the array of actions
+   * @param requestOptions Options to pass to this request
+   * @return a future holding the result, or an AlgoliaException as cause of its ExecutionException
+   */
+  public Future<JSONObject> batchAsync(List<JSONObject> actions, RequestOptions requestOptions) {
+    return batchAsync(actions, requestOptions, null);
+  }
+
+  /**
+   * Custom batch, without blocking the calling thread
+   *
+   * @param actions        the array of actions
+   * @param requestOptions Options to pass to this request
+   * @param callback       notified once the request is done, e.g. to chain another call; null for none
+   * @return a future holding the result, or an AlgoliaException as cause of its ExecutionException
+   */
+  public Future<JSONObject> batchAsync(List<JSONObject> actions, RequestOptions requestOptions, FutureCallback<JSONObject> callback) {
+    String body;
+    try {
+      body = batchBody(actions);
+    } catch (AlgoliaException e) {
+      return failedFuture(e, callback);
+    }
+    return postRequestAsync("/1/indexes/*/batch", body, true, false, requestOptions, callback);
+  }
+
   private JSONObject postBatch(Object actions, RequestOptions requestOptions) throws AlgoliaException {
+    return postRequest("/1/indexes/*/batch", batchBody(actions), true, false, requestOptions);
+  }
+
+  private static String batchBody(Object actions) throws AlgoliaException {
     try {
       JSONObject content = new JSONObject();
       content.put("requests", actions);
-      return postRequest("/1/indexes/*/batch", content.toString(), true, false, requestOptions);
+      return content.toString();
     } catch (JSONException e) {
       throw new AlgoliaException(e.getMessage());
     }
@@ -1342,21 +2910,380 @@ public class APIClient {
     GET, POST, PUT, DELETE
   }
 
+  /**
+   * Kinds of requests with different latencies, tracked separately for the adaptive timeouts
+   */
+  private enum Endpoint {
+    SEARCH, BROWSE, READ, WRITE;
+
+    static Endpoint of(String url, boolean build, boolean search) {
+      if (build) {
+        return WRITE;
+      } else if (url.contains("/browse")) {
+        return BROWSE;
+      }
+      return search ? SEARCH : READ;
+    }
+  }
+
+  /**
+   * Circuit breaker of a host: closed while the failure rate of its last requests stays under the threshold,
+   * then open for hostDownTimeoutMS, then half-open while a single probe request is sent to it.
+   * A probe aborted by hedging is released, so the next request can probe the host;
+   * a probe that never reports is given up after hostDownTimeoutMS as well.
+   * The outcomes are recorded without lock while the circuit is closed, only the changes of state are synchronized.
+   */
   private static class HostStatus {
-    public boolean isUp = true;
-    public long lastModifiedTimestamp = new Date().getTime();
+    private static final int CLOSED = 0;
+    private static final int OPEN = 1;
+    private static final int HALF_OPEN = 2;
+
+    private volatile int state = CLOSED;
+    private volatile long lastModifiedNanos = System.nanoTime();
+    // when the circuit opened, restored if the probe is released
+    private long openedNanos;
+    private volatile long latencyNanos = -1;
+    private volatile long probeLatencyNanos = -1;
+    private final LatencyHistogram[] histograms = new LatencyHistogram[Endpoint.values().length];
+    // outcomes of the last requests while closed, replaced to be reset
+    private volatile Window window = new Window(1, 1, 100);
+
+    synchronized void configure(int windowSize, int minimumRequests, int failureRatePercent) {
+      window = new Window(windowSize, minimumRequests, failureRatePercent);
+    }
+
+    boolean isUp() {
+      return state == CLOSED;
+    }
+
+    /**
+     * @return true if the circuit is closed, or if a probe could be sent
+     */
+    boolean isAvailable(long openNanos) {
+      return state == CLOSED || System.nanoTime() - lastModifiedNanos >= openNanos;
+    }
+
+    /**
+     * @return true if a request can be sent to the host, in which case the request may be the probe of the half-open circuit
+     */
+    boolean tryAcquire(long openNanos) {
+      if (state == CLOSED) {
+        return true;
+      }
+      synchronized (this) {
+        if (state == CLOSED) {
+          return true;
+        }
+        long now = System.nanoTime();
+        if (now - lastModifiedNanos >= openNanos) {
+          if (state == OPEN) {
+            openedNanos = lastModifiedNanos;
+          }
+          setState(HALF_OPEN, now);
+          return true;
+        }
+        return false;
+      }
+    }
+
+    /**
+     * Give back the probe of a half-open circuit without outcome, e.g. when it lost a hedged race and was aborted
+     */
+    synchronized void release() {
+      if (state == HALF_OPEN) {
+        setState(OPEN, openedNanos);
+      }
+    }
+
+    void recordSuccess() {
+      int current = state;
+      if (current == CLOSED) {
+        window.record(false);
+      } else {
+        transition(current, false);
+      }
+    }
+
+    void recordFailure() {
+      int current = state;
+      if (current == CLOSED && !window.record(true)) {
+        return;
+      }
+      transition(current, true);
+    }
+
+    /**
+     * Outcome of the probe, of a request sent while all the hosts were down, or failure rate reached
+     *
+     * @param expectedState the state when the outcome was recorded, nothing changes if another request changed it meanwhile
+     */
+    private synchronized void transition(int expectedState, boolean failure) {
+      if (state != expectedState) {
+        return;
+      }
+      resetWindow();
+      setState(failure ? OPEN : CLOSED, System.nanoTime());
+    }
+
+    /**
+     * Outcome of a background check, which closes the circuit as soon as the host answers
+     */
+    synchronized void recordProbe(boolean answered, long latencyNanos) {
+      if (answered) {
+        probeLatencyNanos = latencyNanos;
+        if (state != CLOSED) {
+          resetWindow();
+          setState(CLOSED, System.nanoTime());
+        }
+      }
+    }
+
+    private void resetWindow() {
+      Window current = window;
+      window = new Window(current.outcomes.length(), current.minimumRequests, current.failureRatePercent);
+    }
+
+    private void setState(int state, long nowNanos) {
+      // write the timestamp first: the volatile write of the state publishes both
+      this.lastModifiedNanos = nowNanos;
+      this.state = state;
+    }
+
+    HostStatus() {
+      for (int i = 0; i < histograms.length; i++) {
+        histograms[i] = new LatencyHistogram(ADAPTIVE_TIMEOUT_DECAY_SAMPLES);
+      }
+    }
+
+    /**
+     * Update the moving average with a weight of 1/8 for the new sample, a lost update under contention only drops one sample
+     *
+     * @param endpoint the kind of request, null to only update the moving average
+     */
+    void recordLatency(Endpoint endpoint, long nanos) {
+      long previous = latencyNanos;
+      latencyNanos = previous < 0 ? nanos : previous + (nanos - previous) / 8;
+      if (endpoint != null) {
+        histograms[endpoint.ordinal()].record(TimeUnit.NANOSECONDS.toMillis(nanos));
+      }
+    }
+
+    LatencyHistogram getHistogram(Endpoint endpoint) {
+      return histograms[endpoint.ordinal()];
+    }
+
+    /**
+     * @return the moving average of the latency, or -1 if no request succeeded yet
+     */
+    long getLatencyNanos() {
+      return latencyNanos;
+    }
+
+    HostHealth toHostHealth(String host, long nowNanos) {
+      boolean up = state == CLOSED;
+      long latency = latencyNanos;
+      long probeLatency = probeLatencyNanos;
+      return new HostHealth(host, up, TimeUnit.NANOSECONDS.toMillis(nowNanos - lastModifiedNanos),
+        latency < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(latency), probeLatency < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(probeLatency));
+    }
+  }
+
+  /**
+   * Sliding window of the outcomes of the last requests to a host, updated without lock:
+   * under contention, an outcome can be counted in a window just replaced, which only drops it
+   */
+  private static class Window {
+    private static final int SUCCESS = 1;
+    private static final int FAILURE = 2;
+
+    // 0 for a slot not filled yet
+    final AtomicIntegerArray outcomes;
+    final int minimumRequests;
+    final int failureRatePercent;
+    private final AtomicLong next = new AtomicLong();
+    private final AtomicInteger failures = new AtomicInteger();
+
+    Window(int size, int minimumRequests, int failureRatePercent) {
+      this.outcomes = new AtomicIntegerArray(size);
+      this.minimumRequests = minimumRequests;
+      this.failureRatePercent = failureRatePercent;
+    }
+
+    /**
+     * @return true if the failure rate reached the threshold with this failure
+     */
+    boolean record(boolean failure) {
+      long n = next.getAndIncrement();
+      int previous = outcomes.getAndSet((int) (n % outcomes.length()), failure ? FAILURE : SUCCESS);
+      int delta = (failure ? 1 : 0) - (previous == FAILURE ? 1 : 0);
+      int failureCount = delta != 0 ? failures.addAndGet(delta) : failures.get();
+      if (!failure) {
+        return false;
+      }
+      long count = Math.min(n + 1, outcomes.length());
+      return count >= minimumRequests && failureCount * 100L >= failureRatePercent * count;
+    }
+  }
+
+  private static class HeaderSets {
+    final Map<String, String> noBody;
+    final Map<String, String> json;
+    final Map<String, String> gzippedJson;
+
+    HeaderSets(Map<String, String> headers) {
+      noBody = Collections.unmodifiableMap(new LinkedHashMap<String, String>(headers));
+      Map<String, String> jsonHeaders = new LinkedHashMap<String, String>(headers);
+      jsonHeaders.put("Content-type", "application/json");
+      json = Collections.unmodifiableMap(jsonHeaders);
+      Map<String, String> gzippedJsonHeaders = new LinkedHashMap<String, String>(jsonHeaders);
+      gzippedJsonHeaders.put("Content-Encoding", "gzip");
+      gzippedJson = Collections.unmodifiableMap(gzippedJsonHeaders);
+    }
+  }
+
+  /**
+   * What is known of one attempt of a request on one host
+   */
+  private static class Attempt {
+    private final boolean observed;
+    private final RequestTimings timings;
+    int statusCode = 0;
+    Exception error;
+    CountingInputStream body;
+
+    /**
+     * @param observed true to count the bytes received
+     * @param timings  filled with the phases of the attempt, null if the request is not timed
+     */
+    Attempt(boolean observed, RequestTimings timings) {
+      this.observed = observed;
+      this.timings = timings;
+    }
+
+    TransportResponse execute(Transport transport, TransportRequest request) throws IOException {
+      if (timings == null) {
+        return observe(transport.execute(request));
+      }
+      timings.attempted();
+      long start = System.nanoTime();
+      try {
+        return observe(transport.execute(request));
+      } finally {
+        // what the transport did not report as a connection phase
+        timings.addPhase(RequestTimings.Phase.TIME_TO_FIRST_BYTE, System.nanoTime() - start - request.getRecordedNanos());
+      }
+    }
+
+    private TransportResponse observe(TransportResponse response) {
+      statusCode = response.getStatusCode();
+      if (!observed && timings == null) {
+        return response;
+      }
+      body = new CountingInputStream(response.getBody(), timings != null);
+      return new TransportResponse(response.getStatusCode(), response.getHeaders(), body, response.getContentLength());
+    }
+
+    boolean isTimed() {
+      return timings != null;
+    }
+
+    /**
+     * Split the time spent reading the body between the download, the decompression and the parsing
+     *
+     * @param startNanos       when the reading of the body started
+     * @param inflateNanos     the time spent decompressing the body
+     * @param processingTimeMS the processing time reported by the engine, or -1
+     */
+    void bodyRead(long startNanos, long inflateNanos, int processingTimeMS) {
+      if (timings == null) {
+        return;
+      }
+      long totalNanos = System.nanoTime() - startNanos;
+      long downloadNanos = body.getReadNanos();
+      timings.addPhase(RequestTimings.Phase.DOWNLOAD, downloadNanos);
+      timings.addPhase(RequestTimings.Phase.DECOMPRESS, inflateNanos);
+      timings.addPhase(RequestTimings.Phase.PARSE, totalNanos - downloadNanos - inflateNanos);
+      if (processingTimeMS >= 0) {
+        timings.setProcessingTimeMS(processingTimeMS);
+      }
+    }
+
+    AlgoliaInnerException failed(AlgoliaInnerException e) {
+      error = e;
+      return e;
+    }
+  }
+
+  private static class CountingInputStream extends FilterInputStream {
+    private final boolean timed;
+    private long count = 0;
+    private long readNanos = 0;
+
+    /**
+     * @param timed true to measure the time spent in the reads
+     */
+    CountingInputStream(InputStream in, boolean timed) {
+      super(in);
+      this.timed = timed;
+    }
+
+    @Override
+    public int read() throws IOException {
+      long start = timed ? System.nanoTime() : 0;
+      int b = super.read();
+      if (timed) {
+        readNanos += System.nanoTime() - start;
+      }
+      if (b >= 0) {
+        count++;
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      long start = timed ? System.nanoTime() : 0;
+      int read = super.read(b, off, len);
+      if (timed) {
+        readNanos += System.nanoTime() - start;
+      }
+      if (read > 0) {
+        count += read;
+      }
+      return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = super.skip(n);
+      count += skipped;
+      return skipped;
+    }
+
+    long getCount() {
+      return count;
+    }
+
+    long getReadNanos() {
+      return readNanos;
+    }
+  }
+
+  private static class RequestBody {
+    private final byte[] bytes;
+    private final boolean gzipped;
 
-    public static HostStatus up() {
-      return new HostStatus();
+    RequestBody(byte[] bytes, boolean gzipped) {
+      this.bytes = bytes;
+      this.gzipped = gzipped;
     }
 
-    public static HostStatus down() {
-      return new HostStatus().setDown();
+    byte[] getBytes() {
+      return bytes;
     }
 
-    private HostStatus setDown() {
-      isUp = false;
-      return this;
+    boolean isGzipped() {
+      return gzipped;
     }
   }
 
@@ -0,0 +1,498 @@
+package com.algolia.search.saas;
+
+import org.apache.http.Header;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.*;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.routing.HttpRoutePlanner;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.LayeredConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.IdleConnectionEvictor;
+import org.apache.http.impl.conn.DefaultRoutePlanner;
+import org.apache.http.impl.conn.DefaultSchemePortResolver;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.conn.SystemDefaultDnsResolver;
+import org.apache.http.impl.conn.SystemDefaultRoutePlanner;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestExecutor;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.ProxySelector;
+import java.net.Socket;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Default {@link Transport}, based on Apache HttpClient with a pool of keep-alive connections.
+ * <p>
+ * The pool holds at most {@value #DEFAULT_MAX_CONNECTIONS} connections, {@value #DEFAULT_MAX_CONNECTIONS_PER_HOST} per host.
+ * As with the system properties of HttpClient, the {@code http.maxConnections} system property, when set,
+ * gives the maximum per host instead, and twice that in total; {@code http.keepAlive=false} disables the reuse
+ * of the connections. Both are ignored on App Engine. {@link #setMaxConnections(int, int)} overrides them.
+ */
+@SuppressWarnings("WeakerAccess")
+public class ApacheHttpTransport implements Transport {
+  final static int DEFAULT_MAX_CONNECTIONS = 100;
+  final static int DEFAULT_MAX_CONNECTIONS_PER_HOST = 20;
+  private final static int MAX_CACHED_REQUEST_CONFIGS = 64;
+  // context attributes of a timed request, to report its connection phases
+  private final static String TIMED_REQUEST = "com.algolia.search.saas.timed-request";
+  private final static String LEASE_START_NANOS = "com.algolia.search.saas.lease-start-nanos";
+
+  private final HttpClient httpClient;
+  private final PoolingHttpClientConnectionManager connectionManager;
+  private final HttpRoutePlanner routePlanner;
+  private final DnsResolver dnsResolver;
+  private IdleConnectionEvictor connectionEvictor;
+  private volatile long connectionKeepAliveMS = 0;
+  private final ConcurrentMap<Long, RequestConfig> requestConfigs = new ConcurrentHashMap<Long, RequestConfig>();
+
+  /**
+   * Transport resolving the hosts with the JVM resolver
+   */
+  public ApacheHttpTransport() {
+    this(null);
+  }
+
+  /**
+   * A {@link CachingDnsResolver} keeps the resolution out of the request path, but needs to start threads:
+   * it is not used by default, as some environments such as App Engine do not allow it.
+   *
+   * @param dnsResolver the resolver of the host names, not closed by this transport; null to use the JVM resolver
+   */
+  public ApacheHttpTransport(DnsResolver dnsResolver) {
+    this.dnsResolver = dnsResolver != null ? dnsResolver : SystemDefaultDnsResolver.INSTANCE;
+    //If we are on AppEngine don't use system properties
+    boolean useSystemProperties = System.getProperty("com.google.appengine.runtime.version") == null;
+    this.connectionManager = new PoolingHttpClientConnectionManager(RegistryBuilder.<ConnectionSocketFactory>create()
+      .register("http", new TimedSocketFactory(PlainConnectionSocketFactory.getSocketFactory()))
+      .register("https", new TimedSocketFactory(useSystemProperties ? SSLConnectionSocketFactory.getSystemSocketFactory() : SSLConnectionSocketFactory.getSocketFactory()))
+      .build(), this.dnsResolver) {
+      @Override
+      public void connect(HttpClientConnection conn, HttpRoute route, int connectTimeout, HttpContext context) throws IOException {
+        TransportRequest timed = timedRequest(context);
+        if (timed == null) {
+          super.connect(conn, route, connectTimeout, context);
+          return;
+        }
+        long start = System.nanoTime();
+        long recorded = timed.getRecordedNanos();
+        try {
+          super.connect(conn, route, connectTimeout, context);
+        } finally {
+          // the socket factory reports the TCP connect and the TLS handshake, the rest is the resolution of the host
+          timed.recordPhase(RequestTimings.Phase.DNS, System.nanoTime() - start - (timed.getRecordedNanos() - recorded));
+        }
+      }
+    };
+    int maxConnectionsPerHost = useSystemProperties ? systemMaxConnections() : -1;
+    if (maxConnectionsPerHost > 0) {
+      this.connectionManager.setMaxTotal(2 * maxConnectionsPerHost);
+      this.connectionManager.setDefaultMaxPerRoute(maxConnectionsPerHost);
+    } else {
+      this.connectionManager.setMaxTotal(DEFAULT_MAX_CONNECTIONS);
+      this.connectionManager.setDefaultMaxPerRoute(DEFAULT_MAX_CONNECTIONS_PER_HOST);
+    }
+    // same planner as the one HttpClientBuilder would pick, kept to open connections on the routes of the requests
+    this.routePlanner = useSystemProperties ?
+      new SystemDefaultRoutePlanner(DefaultSchemePortResolver.INSTANCE, ProxySelector.getDefault()) :
+      new DefaultRoutePlanner(DefaultSchemePortResolver.INSTANCE);
+
+    // gzip is handled by the client, so the raw body can be given back as is
+    HttpClientBuilder builder = HttpClientBuilder.create()
+      .disableAutomaticRetries()
+      .disableContentCompression()
+      .setConnectionManager(connectionManager)
+      .setRoutePlanner(routePlanner)
+      .setRequestExecutor(new HttpRequestExecutor() {
+        @Override
+        public HttpResponse execute(HttpRequest request, HttpClientConnection conn, HttpContext context) throws IOException, HttpException {
+          TransportRequest timed = timedRequest(context);
+          Long leaseStart = timed != null ? (Long) context.removeAttribute(LEASE_START_NANOS) : null;
+          if (leaseStart != null) {
+            // the connection is ready: the time not spent connecting was spent waiting for the pool
+            timed.recordPhase(RequestTimings.Phase.POOL_LEASE, System.nanoTime() - leaseStart - timed.getRecordedNanos());
+          }
+          return super.execute(request, conn, context);
+        }
+      })
+      .setKeepAliveStrategy(new ConnectionKeepAliveStrategy() {
+        @Override
+        public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+          long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+          long max = connectionKeepAliveMS;
+          return max > 0 && (duration <= 0 || duration > max) ? max : duration;
+        }
+      });
+    if (useSystemProperties) {
+      builder = builder.useSystemProperties();
+    }
+    this.httpClient = builder.build();
+  }
+
+  /**
+   * @return the maximum number of connections per host set by the http.maxConnections system property, -1 if not set;
+   * HttpClient only reads it when the connections are kept alive
+   */
+  private static int systemMaxConnections() {
+    String maxConnections = System.getProperty("http.maxConnections");
+    if (maxConnections == null || !"true".equalsIgnoreCase(System.getProperty("http.keepAlive", "true"))) {
+      return -1;
+    }
+    try {
+      return Integer.parseInt(maxConnections.trim());
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  @Override
+  public TransportResponse execute(TransportRequest request) throws IOException {
+    final HttpRequestBase req = newRequest(request.getMethod());
+    req.setURI(request.getUri());
+    Header[] headers = new Header[request.getHeaders().size()];
+    int i = 0;
+    for (Map.Entry<String, String> entry : request.getHeaders().entrySet()) {
+      headers[i++] = new BasicHeader(entry.getKey(), entry.getValue());
+    }
+    req.setHeaders(headers);
+    if (request.getBody() != null) {
+      if (!(req instanceof HttpEntityEnclosingRequestBase)) {
+        throw new IllegalArgumentException("Method " + req.getMethod() + " cannot enclose entity");
+      }
+      ((HttpEntityEnclosingRequestBase) req).setEntity(new ByteArrayEntity(request.getBody()));
+    }
+    req.setConfig(request.hasStaticTimeouts() ?
+      cachedRequestConfig(request.getConnectTimeoutMS(), request.getReadTimeoutMS()) :
+      requestConfig(request.getConnectTimeoutMS(), request.getReadTimeoutMS()));
+
+    if (!request.setAbortHandler(new Runnable() {
+      @Override
+      public void run() {
+        req.abort();
+      }
+    })) {
+      throw new IOException("Request aborted");
+    }
+
+    HttpResponse response;
+    if (request.isTimed()) {
+      HttpClientContext context = HttpClientContext.create();
+      context.setAttribute(TIMED_REQUEST, request);
+      context.setAttribute(LEASE_START_NANOS, System.nanoTime());
+      response = httpClient.execute(req, context);
+    } else {
+      response = httpClient.execute(req);
+    }
+    Map<String, String> responseHeaders = new HashMap<String, String>();
+    for (Header header : response.getAllHeaders()) {
+      responseHeaders.put(header.getName(), header.getValue());
+    }
+    HttpEntity entity = response.getEntity();
+    InputStream body = entity != null ? entity.getContent() : new ByteArrayInputStream(new byte[0]);
+    return new TransportResponse(response.getStatusLine().getStatusCode(), responseHeaders, body, entity != null ? entity.getContentLength() : 0);
+  }
+
+  /**
+   * The static timeouts of the client only form a few combinations, so their configs are built once;
+   * the adapted or deadline-bounded ones are specific to one request and built each time
+   */
+  private RequestConfig cachedRequestConfig(int connectTimeoutMS, int readTimeoutMS) {
+    Long key = ((long) connectTimeoutMS << 32) | (readTimeoutMS & 0xffffffffL);
+    RequestConfig config = requestConfigs.get(key);
+    if (config == null) {
+      config = requestConfig(connectTimeoutMS, readTimeoutMS);
+      if (requestConfigs.size() < MAX_CACHED_REQUEST_CONFIGS) {
+        requestConfigs.put(key, config);
+      }
+    }
+    return config;
+  }
+
+  private static RequestConfig requestConfig(int connectTimeoutMS, int readTimeoutMS) {
+    return RequestConfig.custom()
+      .setSocketTimeout(readTimeoutMS)
+      .setConnectTimeout(connectTimeoutMS)
+      .setConnectionRequestTimeout(connectTimeoutMS)
+      .build();
+  }
+
+  private static TransportRequest timedRequest(HttpContext context) {
+    return context != null ? (TransportRequest) context.getAttribute(TIMED_REQUEST) : null;
+  }
+
+  /**
+   * Reports the TCP connect and the TLS handshake of the timed requests.
+   * For TLS, the TCP connection is opened here rather than by the wrapped factory, so the handshake is timed apart.
+   */
+  private static class TimedSocketFactory implements LayeredConnectionSocketFactory {
+    private final ConnectionSocketFactory socketFactory;
+
+    TimedSocketFactory(ConnectionSocketFactory socketFactory) {
+      this.socketFactory = socketFactory;
+    }
+
+    @Override
+    public Socket createSocket(HttpContext context) throws IOException {
+      return socketFactory.createSocket(context);
+    }
+
+    @Override
+    public Socket connectSocket(int connectTimeout, Socket socket, HttpHost host, InetSocketAddress remoteAddress, InetSocketAddress localAddress, HttpContext context) throws IOException {
+      TransportRequest timed = timedRequest(context);
+      if (timed == null) {
+        return socketFactory.connectSocket(connectTimeout, socket, host, remoteAddress, localAddress, context);
+      }
+      long start = System.nanoTime();
+      if (!(socketFactory instanceof LayeredConnectionSocketFactory)) {
+        try {
+          return socketFactory.connectSocket(connectTimeout, socket, host, remoteAddress, localAddress, context);
+        } finally {
+          timed.recordPhase(RequestTimings.Phase.CONNECT, System.nanoTime() - start);
+        }
+      }
+      Socket sock = socket != null ? socket : createSocket(context);
+      try {
+        if (localAddress != null) {
+          sock.bind(localAddress);
+        }
+        // same socket timeout during the handshake as SSLConnectionSocketFactory
+        if (connectTimeout > 0 && sock.getSoTimeout() == 0) {
+          sock.setSoTimeout(connectTimeout);
+        }
+        sock.connect(remoteAddress, connectTimeout);
+      } catch (IOException e) {
+        try {
+          sock.close();
+        } catch (IOException ignored) {
+          // already failing
+        }
+        throw e;
+      } finally {
+        timed.recordPhase(RequestTimings.Phase.CONNECT, System.nanoTime() - start);
+      }
+      return createLayeredSocket(sock, host.getHostName(), remoteAddress.getPort(), context);
+    }
+
+    @Override
+    public Socket createLayeredSocket(Socket socket, String target, int port, HttpContext context) throws IOException {
+      LayeredConnectionSocketFactory layered = (LayeredConnectionSocketFactory) socketFactory;
+      TransportRequest timed = timedRequest(context);
+      if (timed == null) {
+        return layered.createLayeredSocket(socket, target, port, context);
+      }
+      long start = System.nanoTime();
+      try {
+        return layered.createLayeredSocket(socket, target, port, context);
+      } finally {
+        timed.recordPhase(RequestTimings.Phase.TLS, System.nanoTime() - start);
+      }
+    }
+  }
+
+  static HttpRequestBase newRequest(String method) {
+    if ("GET".equals(method)) {
+      return new HttpGet();
+    } else if ("POST".equals(method)) {
+      return new HttpPost();
+    } else if ("PUT".equals(method)) {
+      return new HttpPut();
+    } else if ("DELETE".equals(method)) {
+      return new HttpDelete();
+    }
+    throw new IllegalArgumentException("Method " + method + " is not supported");
+  }
+
+  /**
+   * Allow to set the size of the connection pool
+   *
+   * @param maxConnections        maximum number of connections, for all hosts
+   * @param maxConnectionsPerHost maximum number of connections to a single host
+   */
+  public void setMaxConnections(int maxConnections, int maxConnectionsPerHost) {
+    connectionManager.setMaxTotal(maxConnections);
+    connectionManager.setDefaultMaxPerRoute(maxConnectionsPerHost);
+  }
+
+  /**
+   * @return the maximum number of connections to a single host
+   */
+  public int getMaxConnectionsPerHost() {
+    return connectionManager.getDefaultMaxPerRoute();
+  }
+
+  /**
+   * Allow to set the delay after which an idle pooled connection is checked before being reused
+   *
+   * @param validateAfterInactivityMS inactivity period in MS, a negative value disables the check
+   */
+  public void setValidateAfterInactivity(int validateAfterInactivityMS) {
+    connectionManager.setValidateAfterInactivity(validateAfterInactivityMS);
+  }
+
+  /**
+   * Allow to cap how long a pooled connection is kept alive between two requests,
+   * whatever the keep-alive advertised by the server
+   *
+   * @param connectionKeepAliveMS maximum keep-alive in MS, 0 to only rely on the server
+   */
+  public void setConnectionKeepAlive(long connectionKeepAliveMS) {
+    this.connectionKeepAliveMS = connectionKeepAliveMS;
+  }
+
+  /**
+   * Allow to start a background thread closing the expired and idle connections of the pool
+   *
+   * @param evictionIntervalMS interval between two evictions in MS, 0 to stop the thread
+   * @param maxIdleTimeMS      idle time in MS after which a connection is closed, 0 to only close expired connections
+   */
+  public synchronized void setIdleConnectionEviction(long evictionIntervalMS, long maxIdleTimeMS) {
+    if (connectionEvictor != null) {
+      connectionEvictor.shutdown();
+      connectionEvictor = null;
+    }
+    if (evictionIntervalMS > 0) {
+      connectionEvictor = new IdleConnectionEvictor(connectionManager, evictionIntervalMS, TimeUnit.MILLISECONDS, maxIdleTimeMS, TimeUnit.MILLISECONDS);
+      connectionEvictor.start();
+    }
+  }
+
+  /**
+   * Start resolving host names in the background, if the DNS resolver is a {@link CachingDnsResolver}
+   *
+   * @param hosts the host names to resolve
+   */
+  public void prefetchHosts(Collection<String> hosts) {
+    if (dnsResolver instanceof CachingDnsResolver) {
+      ((CachingDnsResolver) dnsResolver).prefetch(hosts);
+    }
+  }
+
+  /**
+   * Open connections to a host and put them in the pool, so the next requests to this host
+   * do not pay the DNS resolution, TCP connect and TLS handshake.
+   * Connections going through a proxy are not opened, as the tunnel is only established by a request.
+   *
+   * @param uri              the scheme, host and port to connect to
+   * @param connections      number of idle connections the pool should hold for this host, capped by the per-host limit
+   * @param connectTimeoutMS maximum time to open one connection, in MS
+   * @return the time spent to open each new connection, in MS
+   * @throws IOException if a connection could not be opened
+   */
+  public List<Long> warmUp(URI uri, int connections, int connectTimeoutMS) throws IOException {
+    HttpClientContext context = HttpClientContext.create();
+    HttpRoute route;
+    try {
+      route = routePlanner.determineRoute(new HttpHost(uri.getHost(), uri.getPort(), uri.getScheme()), new HttpGet(uri), context);
+    } catch (HttpException e) {
+      throw new IOException(e);
+    }
+    List<Long> connectMillis = new ArrayList<Long>();
+    if (route.getProxyHost() != null) {
+      return connectMillis;
+    }
+
+    // all the connections are leased before being released, otherwise the same one would be reused
+    int count = Math.min(connections, connectionManager.getMaxPerRoute(route));
+    List<HttpClientConnection> leased = new ArrayList<HttpClientConnection>(count);
+    try {
+      for (int i = 0; i < count; i++) {
+        HttpClientConnection conn = connectionManager.requestConnection(route, null).get(connectTimeoutMS, TimeUnit.MILLISECONDS);
+        leased.add(conn);
+        if (!conn.isOpen()) {
+          long start = System.nanoTime();
+          try {
+            connectionManager.connect(conn, route, connectTimeoutMS, context);
+            connectionManager.routeComplete(conn, route, context);
+          } catch (IOException e) {
+            conn.shutdown();
+            throw e;
+          }
+          connectMillis.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for a connection");
+    } catch (ExecutionException e) {
+      throw new IOException(e.getCause());
+    } finally {
+      for (HttpClientConnection conn : leased) {
+        connectionManager.releaseConnection(conn, null, connectionKeepAliveMS, TimeUnit.MILLISECONDS);
+      }
+    }
+    return connectMillis;
+  }
+
+  /**
+   * Get the usage of the connection pool for each host it has been connected to
+   *
+   * @return the leased, available and pending connections, by host
+   */
+  public Map<String, ConnectionPoolStats> getConnectionPoolStats() {
+    Map<String, ConnectionPoolStats> result = new HashMap<String, ConnectionPoolStats>();
+    for (HttpRoute route : connectionManager.getRoutes()) {
+      String host = route.getTargetHost().getHostName();
+      int port = route.getTargetHost().getPort();
+      if (port > 0 && port != (route.isSecure() ? 443 : 80)) {
+        host = host + ":" + port;
+      }
+      ConnectionPoolStats stats = toConnectionPoolStats(connectionManager.getStats(route));
+      ConnectionPoolStats previous = result.get(host);
+      result.put(host, previous == null ? stats : previous.add(stats));
+    }
+    return result;
+  }
+
+  /**
+   * Get the usage of the whole connection pool
+   *
+   * @return the leased, available and pending connections, for all hosts
+   */
+  public ConnectionPoolStats getTotalConnectionPoolStats() {
+    return toConnectionPoolStats(connectionManager.getTotalStats());
+  }
+
+  private static ConnectionPoolStats toConnectionPoolStats(PoolStats stats) {
+    return new ConnectionPoolStats(stats.getLeased(), stats.getAvailable(), stats.getPending(), stats.getMax());
+  }
+
+  @Override
+  public synchronized void close() {
+    if (connectionEvictor != null) {
+      connectionEvictor.shutdown();
+      connectionEvictor = null;
+    }
+    connectionManager.shutdown();
+  }
+}
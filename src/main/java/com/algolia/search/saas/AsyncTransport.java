@@ -0,0 +1,24 @@
+package com.algolia.search.saas;
+
+import org.apache.http.concurrent.FutureCallback;
+
+/**
+ * {@link Transport} able to send a request without blocking the calling thread. With such a transport,
+ * the asynchronous methods of the client (searchAsync, batchAsync...) hold no thread while their requests are in flight:
+ * the next host is tried, and the future completed, from the completion of the previous attempt.
+ * <p>
+ * The callback is called by the I/O threads of the transport, so it must not block them.
+ * The default implementation is {@link HttpAsyncTransport}.
+ */
+public interface AsyncTransport extends Transport {
+
+  /**
+   * Send a request, the response being given once entirely received
+   *
+   * @param request  the request to send, its abort handler cancels it
+   * @param callback completed with the response, whose body is already received;
+   *                 failed with an IOException if the host could not be reached or did not answer in time,
+   *                 the next host is then tried; cancelled if the request was aborted
+   */
+  void executeAsync(TransportRequest request, FutureCallback<TransportResponse> callback);
+}
@@ -0,0 +1,395 @@
+package com.algolia.search.saas;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Reader of a JSON body in UTF-8, gzipped or not, decoded with the buffers and the Inflater of the current thread:
+ * decoding a response allocates nothing but the parsed values.
+ * <p>
+ * A JSONTokener reads one char at a time and marks at most one char ahead, which this reader supports itself,
+ * so the tokenizer does not wrap it in a BufferedReader. The reader must be closed to be reused by its thread.
+ */
+final class BodyDecoder extends Reader {
+  private static final int BUFFER_SIZE = 8192;
+  private static final int MAX_PRESIZED_BODY = 16 * 1024 * 1024;
+  private static final int GZIP_MAGIC = 0x8b1f;
+  private static final int FHCRC = 2;
+  private static final int FEXTRA = 4;
+  private static final int FNAME = 8;
+  private static final int FCOMMENT = 16;
+  private static final ThreadLocal<BodyDecoder> DECODERS = new ThreadLocal<BodyDecoder>() {
+    @Override
+    protected BodyDecoder initialValue() {
+      return new BodyDecoder();
+    }
+  };
+
+  // bytes read from the stream, compressed if the body is gzipped
+  private final byte[] input = new byte[BUFFER_SIZE];
+  private int inputPos;
+  private int inputLimit;
+  // UTF-8 bytes waiting to be decoded
+  private final ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+  private final CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+  private final CharsetDecoder utf8 = Charset.forName("UTF-8").newDecoder()
+    .onMalformedInput(CodingErrorAction.REPLACE)
+    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+  private final Inflater inflater = new Inflater(true);
+  private final CRC32 crc = new CRC32();
+
+  private InputStream in;
+  private boolean gzipped;
+  private boolean timed;
+  private boolean endOfBytes;
+  private boolean endOfChars;
+  private boolean marked;
+  private int lastChar;
+  private int pushedBack;
+  private long inflateNanos;
+  private long decodedChars;
+
+  private BodyDecoder() {
+    // both buffers are kept in read mode, empty
+    bytes.flip();
+    chars.flip();
+    pushedBack = -1;
+  }
+
+  /**
+   * @param in      the body, not closed by this reader
+   * @param gzipped true if the body is gzipped
+   * @param timed   true to measure the time spent inflating the body
+   * @return the reader of the current thread, or a new one if it is already in use
+   */
+  static BodyDecoder open(InputStream in, boolean gzipped, boolean timed) throws IOException {
+    BodyDecoder decoder = DECODERS.get();
+    if (decoder.in != null) {
+      decoder = new BodyDecoder();
+    }
+    decoder.in = in;
+    decoder.gzipped = gzipped;
+    decoder.timed = timed;
+    if (gzipped) {
+      decoder.readGzipHeader();
+    }
+    return decoder;
+  }
+
+  /**
+   * Read a whole body as is, in an array of the exact size when its length is known
+   *
+   * @param contentLength the length of the body, or -1 if unknown
+   */
+  static byte[] readAll(InputStream in, long contentLength) throws IOException {
+    if (contentLength >= 0 && contentLength < MAX_PRESIZED_BODY) {
+      byte[] body = new byte[(int) contentLength];
+      int offset = 0;
+      while (offset < body.length) {
+        int read = in.read(body, offset, body.length - offset);
+        if (read < 0) {
+          throw new EOFException("Body shorter than its Content-Length");
+        }
+        offset += read;
+      }
+      return body;
+    }
+    BodyDecoder decoder = DECODERS.get();
+    byte[] buffer = decoder.in == null ? decoder.input : new byte[BUFFER_SIZE];
+    ByteArrayOutputStream body = new ByteArrayOutputStream(contentLength > 0 ? (int) Math.min(contentLength, MAX_PRESIZED_BODY) : 4096);
+    int read;
+    while ((read = in.read(buffer)) >= 0) {
+      body.write(buffer, 0, read);
+    }
+    return body.toByteArray();
+  }
+
+  static boolean isGzipped(String contentEncoding) {
+    return contentEncoding != null && contentEncoding.contains("gzip");
+  }
+
+  /**
+   * @return the time spent inflating the body in NS, if timed
+   */
+  long getInflateNanos() {
+    return inflateNanos;
+  }
+
+  /**
+   * @return the number of chars decoded so far
+   */
+  long getDecodedChars() {
+    return decodedChars;
+  }
+
+  @Override
+  public int read() throws IOException {
+    int c;
+    if (pushedBack >= 0) {
+      c = pushedBack;
+      pushedBack = -1;
+    } else if (chars.hasRemaining() || fillChars()) {
+      c = chars.get();
+    } else {
+      c = -1;
+    }
+    if (marked) {
+      lastChar = c;
+    }
+    return c;
+  }
+
+  @Override
+  public int read(char[] buffer, int offset, int length) throws IOException {
+    if (length == 0) {
+      return 0;
+    }
+    int read = 0;
+    if (pushedBack >= 0) {
+      buffer[offset] = (char) pushedBack;
+      pushedBack = -1;
+      read = 1;
+    }
+    marked = false;
+    if (read < length && (chars.hasRemaining() || fillChars())) {
+      int n = Math.min(length - read, chars.remaining());
+      chars.get(buffer, offset + read, n);
+      read += n;
+    }
+    return read > 0 ? read : -1;
+  }
+
+  @Override
+  public boolean markSupported() {
+    return true;
+  }
+
+  /**
+   * @param readAheadLimit at most 1
+   */
+  @Override
+  public void mark(int readAheadLimit) throws IOException {
+    if (readAheadLimit > 1) {
+      throw new IOException("Only one char can be read ahead");
+    }
+    marked = true;
+    lastChar = -2;
+  }
+
+  @Override
+  public void reset() throws IOException {
+    if (!marked) {
+      throw new IOException("Not marked");
+    }
+    marked = false;
+    if (lastChar >= 0) {
+      pushedBack = lastChar;
+    }
+  }
+
+  /**
+   * Give this reader back to its thread, the body itself is closed with its response
+   */
+  @Override
+  public void close() {
+    in = null;
+    inputPos = inputLimit = 0;
+    bytes.clear();
+    bytes.flip();
+    chars.clear();
+    chars.flip();
+    utf8.reset();
+    inflater.reset();
+    crc.reset();
+    endOfBytes = endOfChars = marked = false;
+    pushedBack = -1;
+    inflateNanos = 0;
+    decodedChars = 0;
+  }
+
+  /**
+   * @return false at the end of the body
+   */
+  private boolean fillChars() throws IOException {
+    if (endOfChars) {
+      return false;
+    }
+    chars.clear();
+    try {
+      while (true) {
+        CoderResult result = utf8.decode(bytes, chars, endOfBytes);
+        if (result.isError()) {
+          result.throwException();
+        }
+        if (chars.position() > 0) {
+          break;
+        }
+        if (endOfBytes) {
+          utf8.flush(chars);
+          endOfChars = true;
+          break;
+        }
+        // keeps the bytes of an incomplete char
+        bytes.compact();
+        try {
+          fillBytes();
+        } finally {
+          bytes.flip();
+        }
+      }
+    } finally {
+      chars.flip();
+    }
+    decodedChars += chars.remaining();
+    return chars.hasRemaining();
+  }
+
+  /**
+   * Append to bytes (in write mode) what the body gives without blocking more than one read
+   */
+  private void fillBytes() throws IOException {
+    if (endOfBytes || !bytes.hasRemaining()) {
+      return;
+    }
+    if (!gzipped) {
+      int read = in.read(bytes.array(), bytes.position(), bytes.remaining());
+      if (read < 0) {
+        endOfBytes = true;
+      } else {
+        bytes.position(bytes.position() + read);
+      }
+      return;
+    }
+    while (true) {
+      if (inflater.finished()) {
+        readGzipTrailer();
+        if (!readNextGzipMember()) {
+          endOfBytes = true;
+          return;
+        }
+      }
+      if (inflater.needsInput()) {
+        if (!fillInput()) {
+          throw new EOFException("Unexpected end of gzip body");
+        }
+        inflater.setInput(input, inputPos, inputLimit - inputPos);
+        inputPos = inputLimit;
+      }
+      long start = timed ? System.nanoTime() : 0;
+      int inflated;
+      try {
+        inflated = inflater.inflate(bytes.array(), bytes.position(), bytes.remaining());
+      } catch (DataFormatException e) {
+        throw new ZipException(e.getMessage() != null ? e.getMessage() : "Invalid gzip body");
+      }
+      if (timed) {
+        inflateNanos += System.nanoTime() - start;
+      }
+      if (inflated > 0) {
+        crc.update(bytes.array(), bytes.position(), inflated);
+        bytes.position(bytes.position() + inflated);
+        return;
+      }
+      if (inflater.needsDictionary()) {
+        throw new ZipException("Invalid gzip body: needs a dictionary");
+      }
+    }
+  }
+
+  /**
+   * @return false at the end of the body
+   */
+  private boolean fillInput() throws IOException {
+    if (inputPos < inputLimit) {
+      return true;
+    }
+    int read = in.read(input, 0, input.length);
+    if (read < 0) {
+      return false;
+    }
+    inputPos = 0;
+    inputLimit = read;
+    return true;
+  }
+
+  private int readByte() throws IOException {
+    if (!fillInput()) {
+      throw new EOFException("Unexpected end of gzip body");
+    }
+    return input[inputPos++] & 0xff;
+  }
+
+  private int readShort() throws IOException {
+    return readByte() | readByte() << 8;
+  }
+
+  private long readInt() throws IOException {
+    return (long) readShort() | (long) readShort() << 16;
+  }
+
+  private void readGzipHeader() throws IOException {
+    if (readShort() != GZIP_MAGIC) {
+      throw new ZipException("Not in gzip format");
+    }
+    if (readByte() != 8) {
+      throw new ZipException("Unsupported compression method");
+    }
+    int flags = readByte();
+    // modification time, extra flags and operating system
+    for (int i = 0; i < 6; i++) {
+      readByte();
+    }
+    if ((flags & FEXTRA) != 0) {
+      for (int length = readShort(); length > 0; length--) {
+        readByte();
+      }
+    }
+    if ((flags & FNAME) != 0) {
+      while (readByte() != 0) {
+        // skip the file name
+      }
+    }
+    if ((flags & FCOMMENT) != 0) {
+      while (readByte() != 0) {
+        // skip the comment
+      }
+    }
+    if ((flags & FHCRC) != 0) {
+      readShort();
+    }
+  }
+
+  private void readGzipTrailer() throws IOException {
+    // the bytes given to the inflater after the end of the deflate stream
+    inputPos = inputLimit - inflater.getRemaining();
+    if (readInt() != crc.getValue() || readInt() != (inflater.getBytesWritten() & 0xffffffffL)) {
+      throw new ZipException("Corrupt gzip trailer");
+    }
+  }
+
+  /**
+   * @return true if another gzip member follows, as concatenated members form one body
+   */
+  private boolean readNextGzipMember() throws IOException {
+    if (!fillInput()) {
+      return false;
+    }
+    readGzipHeader();
+    inflater.reset();
+    crc.reset();
+    return true;
+  }
+}
@@ -0,0 +1,158 @@
+package com.algolia.search.saas;
+
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.impl.conn.SystemDefaultDnsResolver;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Collection;
+import java.util.concurrent.*;
+
+/**
+ * {@link DnsResolver} keeping the addresses of the hosts in memory, so the resolution stays out of the request path:
+ * <ul>
+ * <li>an address is refreshed in the background when it gets close to its time-to-live</li>
+ * <li>an expired address is still used if the new resolution is slow or fails</li>
+ * <li>a resolution never blocks a request longer than the resolve timeout, it goes on in the background
+ * and fills the cache for the next requests</li>
+ * </ul>
+ * Failed resolutions are not cached.
+ */
+@SuppressWarnings("WeakerAccess")
+public class CachingDnsResolver implements DnsResolver {
+  final static long DEFAULT_TTL_MS = 30000;
+  final static long DEFAULT_RESOLVE_TIMEOUT_MS = 2000;
+
+  private final DnsResolver delegate;
+  private final long ttlNanos;
+  private final long resolveTimeoutMS;
+  private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+  private final ConcurrentMap<String, FutureTask<InetAddress[]>> resolutions = new ConcurrentHashMap<String, FutureTask<InetAddress[]>>();
+  private final ExecutorService executor = Executors.newCachedThreadPool(APIClient.daemonThreadFactory("algolia-dns-"));
+
+  public CachingDnsResolver() {
+    this(SystemDefaultDnsResolver.INSTANCE, DEFAULT_TTL_MS, DEFAULT_RESOLVE_TIMEOUT_MS);
+  }
+
+  /**
+   * @param delegate         the resolver actually resolving the hosts
+   * @param ttlMS            time after which an address is resolved again, in MS
+   * @param resolveTimeoutMS maximum time a request waits for a resolution, in MS
+   */
+  public CachingDnsResolver(DnsResolver delegate, long ttlMS, long resolveTimeoutMS) {
+    this.delegate = delegate;
+    this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMS);
+    this.resolveTimeoutMS = resolveTimeoutMS;
+  }
+
+  @Override
+  public InetAddress[] resolve(String host) throws UnknownHostException {
+    Entry entry = entries.get(host);
+    if (entry != null) {
+      long age = System.nanoTime() - entry.resolvedAtNanos;
+      if (age < ttlNanos) {
+        if (age > ttlNanos / 4 * 3) {
+          resolveInBackground(host, false);
+        }
+        return entry.addresses.clone();
+      }
+    }
+
+    Future<InetAddress[]> resolution = resolveInBackground(host, true);
+    try {
+      return resolution.get(resolveTimeoutMS, TimeUnit.MILLISECONDS).clone();
+    } catch (TimeoutException e) {
+      if (entry != null) {
+        return entry.addresses.clone();
+      }
+      throw new UnknownHostException(host + ": resolution timed out after " + resolveTimeoutMS + "ms");
+    } catch (ExecutionException e) {
+      if (entry != null) {
+        return entry.addresses.clone();
+      }
+      if (e.getCause() instanceof UnknownHostException) {
+        throw (UnknownHostException) e.getCause();
+      }
+      UnknownHostException unknownHost = new UnknownHostException(host + ": " + e.getCause().getMessage());
+      unknownHost.initCause(e.getCause());
+      throw unknownHost;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      if (entry != null) {
+        return entry.addresses.clone();
+      }
+      throw new UnknownHostException(host + ": interrupted while resolving");
+    }
+  }
+
+  /**
+   * Start resolving hosts in parallel, without waiting for the result.
+   * Nothing is resolved if the environment does not allow to start threads.
+   *
+   * @param hosts the host names to resolve
+   */
+  public void prefetch(Collection<String> hosts) {
+    for (String host : hosts) {
+      if (resolveInBackground(host, false) == null) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Only one resolution of a host runs at a time, the concurrent callers share it
+   *
+   * @param orInCallingThread true to resolve in the calling thread if no thread can be started for it
+   * @return the resolution, null if it could not be started
+   */
+  private Future<InetAddress[]> resolveInBackground(final String host, boolean orInCallingThread) {
+    FutureTask<InetAddress[]> resolution = resolutions.get(host);
+    if (resolution != null) {
+      return resolution;
+    }
+    resolution = new FutureTask<InetAddress[]>(new Callable<InetAddress[]>() {
+      @Override
+      public InetAddress[] call() throws UnknownHostException {
+        try {
+          InetAddress[] addresses = delegate.resolve(host);
+          entries.put(host, new Entry(addresses, System.nanoTime()));
+          return addresses;
+        } finally {
+          resolutions.remove(host);
+        }
+      }
+    });
+    FutureTask<InetAddress[]> previous = resolutions.putIfAbsent(host, resolution);
+    if (previous != null) {
+      return previous;
+    }
+    try {
+      executor.execute(resolution);
+    } catch (RuntimeException e) {
+      // closed, or threads cannot be started in this environment (e.g. App Engine)
+      if (!orInCallingThread) {
+        resolutions.remove(host, resolution);
+        return null;
+      }
+      resolution.run();
+    }
+    return resolution;
+  }
+
+  /**
+   * Stop the background resolutions
+   */
+  public void close() {
+    executor.shutdownNow();
+  }
+
+  private static class Entry {
+    final InetAddress[] addresses;
+    final long resolvedAtNanos;
+
+    Entry(InetAddress[] addresses, long resolvedAtNanos) {
+      this.addresses = addresses;
+      this.resolvedAtNanos = resolvedAtNanos;
+    }
+  }
+}
@@ -0,0 +1,220 @@
+package com.algolia.search.saas;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.UnknownHostException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Metrics of the requests of a client, recorded without locking as a {@link RequestListener}
+ */
+class ClientMetrics implements RequestListener, ClientMetricsMXBean {
+  private static final String ENDPOINT_ATTRIBUTE = ClientMetrics.class.getName() + ".endpoint";
+  private static final String[] ERROR_TYPES = {"timeout", "dns", "network", "serverError", "clientError", "other"};
+  private static final String SERVER_PROCESSING = "serverProcessing";
+  // up to 2^24 microseconds, about 16 seconds
+  private static final int PHASE_BUCKETS = 97;
+
+  private final ConcurrentMap<String, Stats> endpoints = new ConcurrentHashMap<String, Stats>();
+  private final ConcurrentMap<String, Stats> hosts = new ConcurrentHashMap<String, Stats>();
+
+  @Override
+  public void onRequestStart(RequestInfo request) {
+    request.setAttribute(ENDPOINT_ATTRIBUTE, stats(endpoints, endpoint(request.getMethod(), request.getPath())));
+  }
+
+  @Override
+  public void onAttemptStart(RequestInfo request, String host, int bytesSent) {
+    Stats endpoint = (Stats) request.getAttribute(ENDPOINT_ATTRIBUTE);
+    endpoint.attempts.increment();
+    endpoint.bytesSent.add(bytesSent);
+    stats(hosts, host).bytesSent.add(bytesSent);
+  }
+
+  @Override
+  public void onAttemptEnd(RequestInfo request, String host, int statusCode, Exception error, long latencyMS, long bytesReceived) {
+    Stats endpoint = (Stats) request.getAttribute(ENDPOINT_ATTRIBUTE);
+    Stats hostStats = stats(hosts, host);
+    hostStats.requests.increment();
+    hostStats.attempts.increment();
+    hostStats.latency.record(latencyMS);
+    endpoint.bytesReceived.add(bytesReceived);
+    hostStats.bytesReceived.add(bytesReceived);
+    if (error != null) {
+      int errorType = errorType(statusCode, error);
+      hostStats.failures.increment();
+      hostStats.errors[errorType].increment();
+      endpoint.errors[errorType].increment();
+    }
+  }
+
+  @Override
+  public void onRequestEnd(RequestInfo request, AlgoliaException error, long durationMS) {
+    Stats endpoint = (Stats) request.getAttribute(ENDPOINT_ATTRIBUTE);
+    endpoint.requests.increment();
+    endpoint.latency.record(durationMS);
+    if (error != null) {
+      endpoint.failures.increment();
+    }
+    RequestTimings timings = request.getTimings();
+    if (timings != null && timings.getAttempts() > 0) {
+      endpoint.recordPhases(timings);
+    }
+  }
+
+  @Override
+  public Map<String, MetricsSnapshot> getEndpoints() {
+    return snapshot(endpoints);
+  }
+
+  @Override
+  public Map<String, MetricsSnapshot> getHosts() {
+    return snapshot(hosts);
+  }
+
+  private static Map<String, MetricsSnapshot> snapshot(Map<String, Stats> statsByKey) {
+    Map<String, MetricsSnapshot> result = new TreeMap<String, MetricsSnapshot>();
+    for (Map.Entry<String, Stats> entry : statsByKey.entrySet()) {
+      result.put(entry.getKey(), entry.getValue().snapshot());
+    }
+    return result;
+  }
+
+  private static Stats stats(ConcurrentMap<String, Stats> statsByKey, String key) {
+    Stats stats = statsByKey.get(key);
+    if (stats == null) {
+      Stats created = new Stats();
+      stats = statsByKey.putIfAbsent(key, created);
+      if (stats == null) {
+        stats = created;
+      }
+    }
+    return stats;
+  }
+
+  static String endpoint(String method, String path) {
+    int queryStart = path.indexOf('?');
+    String[] segments = (queryStart >= 0 ? path.substring(0, queryStart) : path).split("/");
+    // segments[0] is empty, as the path starts with a slash
+    String last = segments[segments.length - 1];
+    if (path.startsWith("/1/indexes/*/queries")) {
+      return "multiQuery";
+    } else if (path.startsWith("/1/indexes/*/objects")) {
+      return "getObject";
+    } else if (segments.length == 5 && "query".equals(last)) {
+      return "search";
+    } else if (segments.length == 5 && "browse".equals(last)) {
+      return "browse";
+    } else if ("batch".equals(last)) {
+      return "batch";
+    } else if (segments.length == 6 && "task".equals(segments[4])) {
+      return "task";
+    } else if ("GET".equals(method) && segments.length == 5 && "indexes".equals(segments[2])
+      && !"settings".equals(last) && !"keys".equals(last)) {
+      return "getObject";
+    }
+    return "other";
+  }
+
+  /**
+   * @return the name of the index targeted by a path like /1/indexes/name/..., or null
+   */
+  static String indexName(String path) {
+    if (!path.startsWith("/1/indexes/")) {
+      return null;
+    }
+    int start = "/1/indexes/".length();
+    int end = start;
+    while (end < path.length() && path.charAt(end) != '/' && path.charAt(end) != '?') {
+      end++;
+    }
+    if (end == start || path.startsWith("*", start)) {
+      return null;
+    }
+    try {
+      return URLDecoder.decode(path.substring(start, end), "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  static int errorType(int statusCode, Exception error) {
+    if (statusCode / 100 == 4) {
+      return 4;
+    } else if (statusCode > 0 && statusCode / 100 != 2) {
+      return 3;
+    }
+    Throwable cause = error instanceof AlgoliaInnerException ? error.getCause() : error;
+    if (cause instanceof InterruptedIOException) {
+      // includes the connect and read timeouts
+      return 0;
+    } else if (cause instanceof UnknownHostException) {
+      return 1;
+    } else if (cause instanceof IOException) {
+      return 2;
+    }
+    return 5;
+  }
+
+  private static class Stats {
+    final LatencyHistogram[] phases = new LatencyHistogram[RequestTimings.Phase.values().length];
+    final LatencyHistogram processing = new LatencyHistogram(Long.MAX_VALUE, PHASE_BUCKETS);
+    final StripedCounter requests = new StripedCounter();
+    final StripedCounter failures = new StripedCounter();
+    final StripedCounter attempts = new StripedCounter();
+    final StripedCounter bytesSent = new StripedCounter();
+    final StripedCounter bytesReceived = new StripedCounter();
+    final StripedCounter[] errors = new StripedCounter[ERROR_TYPES.length];
+    final LatencyHistogram latency = new LatencyHistogram(Long.MAX_VALUE);
+
+    Stats() {
+      for (int i = 0; i < errors.length; i++) {
+        errors[i] = new StripedCounter();
+      }
+      for (int i = 0; i < phases.length; i++) {
+        phases[i] = new LatencyHistogram(Long.MAX_VALUE, PHASE_BUCKETS);
+      }
+    }
+
+    void recordPhases(RequestTimings timings) {
+      for (RequestTimings.Phase phase : RequestTimings.Phase.values()) {
+        phases[phase.ordinal()].record(timings.getPhaseMicros(phase));
+      }
+      if (timings.getProcessingTimeMS() >= 0) {
+        processing.record(timings.getProcessingTimeMS() * 1000L);
+      }
+    }
+
+    private Map<String, Long> phasePercentiles(double percentile) {
+      Map<String, Long> result = new LinkedHashMap<String, Long>();
+      for (RequestTimings.Phase phase : RequestTimings.Phase.values()) {
+        if (phases[phase.ordinal()].getCount() > 0) {
+          result.put(phase.getKey(), phases[phase.ordinal()].getPercentile(percentile));
+        }
+      }
+      if (processing.getCount() > 0) {
+        result.put(SERVER_PROCESSING, processing.getPercentile(percentile));
+      }
+      return result;
+    }
+
+    MetricsSnapshot snapshot() {
+      Map<String, Long> errorCounts = new LinkedHashMap<String, Long>();
+      for (int i = 0; i < errors.length; i++) {
+        long count = errors[i].get();
+        if (count > 0) {
+          errorCounts.put(ERROR_TYPES[i], count);
+        }
+      }
+      return new MetricsSnapshot(requests.get(), failures.get(), attempts.get(), errorCounts, bytesSent.get(), bytesReceived.get(),
+        latency.getPercentile(0.5), latency.getPercentile(0.9), latency.getPercentile(0.99), latency.getPercentile(0.999),
+        phasePercentiles(0.5), phasePercentiles(0.99));
+    }
+  }
+}
@@ -0,0 +1,19 @@
+package com.algolia.search.saas;
+
+import java.util.Map;
+
+/**
+ * Metrics of an {@link APIClient}, registered in the platform MBean server by {@link APIClient#enableMetrics(boolean)}
+ */
+public interface ClientMetricsMXBean {
+
+  /**
+   * @return the metrics by kind of request: search, multiQuery, browse, batch, getObject, task or other
+   */
+  Map<String, MetricsSnapshot> getEndpoints();
+
+  /**
+   * @return the metrics of the attempts, by host
+   */
+  Map<String, MetricsSnapshot> getHosts();
+}
@@ -0,0 +1,62 @@
+package com.algolia.search.saas;
+
+/**
+ * Snapshot of the connection pool usage, either for one host or for the whole client
+ */
+@SuppressWarnings("WeakerAccess")
+public class ConnectionPoolStats {
+
+  private final int leased;
+  private final int available;
+  private final int pending;
+  private final int max;
+
+  public ConnectionPoolStats(int leased, int available, int pending, int max) {
+    this.leased = leased;
+    this.available = available;
+    this.pending = pending;
+    this.max = max;
+  }
+
+  /**
+   * @return the number of connections currently used by a request
+   */
+  public int getLeased() {
+    return leased;
+  }
+
+  /**
+   * @return the number of idle connections kept alive in the pool
+   */
+  public int getAvailable() {
+    return available;
+  }
+
+  /**
+   * @return the number of requests waiting for a connection, a non-zero value means the pool is saturated
+   */
+  public int getPending() {
+    return pending;
+  }
+
+  /**
+   * @return the maximum number of connections allowed
+   */
+  public int getMax() {
+    return max;
+  }
+
+  ConnectionPoolStats add(ConnectionPoolStats other) {
+    return new ConnectionPoolStats(leased + other.leased, available + other.available, pending + other.pending, max + other.max);
+  }
+
+  @Override
+  public String toString() {
+    return "ConnectionPoolStats{" +
+      "leased=" + leased +
+      ", available=" + available +
+      ", pending=" + pending +
+      ", max=" + max +
+      '}';
+  }
+}
@@ -0,0 +1,76 @@
+package com.algolia.search.saas;
+
+import java.lang.reflect.Constructor;
+
+/**
+ * Java Flight Recorder events of a client. The implementation is shipped in the versioned part of the multi-release jar
+ * for Java 11+, and is only loaded when the jdk.jfr module is available.
+ * <p>
+ * The events of the requests are emitted by a {@link RequestListener} registered only while a recording runs,
+ * so the client pays nothing for them otherwise.
+ */
+abstract class FlightRecorderEvents {
+  private static final String IMPLEMENTATION = "com.algolia.search.saas.JdkFlightRecorderEvents";
+  // looked up once, as many clients may be created
+  private static final Constructor<? extends FlightRecorderEvents> CONSTRUCTOR = implementation();
+
+  /**
+   * @return the constructor of the implementation, or null if Java Flight Recorder is not available
+   */
+  private static Constructor<? extends FlightRecorderEvents> implementation() {
+    try {
+      Class.forName("jdk.jfr.FlightRecorder", false, FlightRecorderEvents.class.getClassLoader());
+      return Class.forName(IMPLEMENTATION).asSubclass(FlightRecorderEvents.class).getDeclaredConstructor(APIClient.class);
+    } catch (Exception e) {
+      return null;
+    } catch (LinkageError e) {
+      // e.g. the versioned classes of a jar that is not loaded as multi-release
+      return null;
+    }
+  }
+
+  /**
+   * @return the events of the client, or null if Java Flight Recorder is not available
+   */
+  static FlightRecorderEvents load(APIClient client) {
+    if (CONSTRUCTOR == null) {
+      return null;
+    }
+    try {
+      return CONSTRUCTOR.newInstance(client);
+    } catch (Exception e) {
+      return null;
+    } catch (LinkageError e) {
+      return null;
+    }
+  }
+
+  /**
+   * @return an event started for the wait of a task, or null if the event is not recorded
+   */
+  abstract Object beginWaitTask();
+
+  /**
+   * @param event  the event returned by {@link #beginWaitTask()}
+   * @param polls  number of requests sent to get the status of the task
+   * @param status the last status of the task, or null if it could not be read
+   */
+  abstract void endWaitTask(Object event, String indexName, String taskID, int polls, String status);
+
+  /**
+   * @return an event started for the fetch of a page by an {@link Index.IndexBrowser}, or null if the event is not recorded
+   */
+  abstract Object beginBrowsePage();
+
+  /**
+   * @param event     the event returned by {@link #beginBrowsePage()}
+   * @param hits      number of hits of the page, -1 if the page could not be fetched
+   * @param hasCursor true if the page was fetched with a cursor, false for the first page
+   */
+  abstract void endBrowsePage(Object event, String indexName, int hits, boolean hasCursor);
+
+  /**
+   * Stop following the recordings
+   */
+  abstract void close();
+}
@@ -0,0 +1,68 @@
+package com.algolia.search.saas;
+
+/**
+ * Snapshot of the state of one host, as seen by the retry strategy of the client
+ */
+@SuppressWarnings("WeakerAccess")
+public class HostHealth {
+
+  private final String host;
+  private final boolean up;
+  private final long millisSinceLastChange;
+  private final long latencyMillis;
+  private final long probeLatencyMillis;
+
+  public HostHealth(String host, boolean up, long millisSinceLastChange, long latencyMillis, long probeLatencyMillis) {
+    this.host = host;
+    this.up = up;
+    this.millisSinceLastChange = millisSinceLastChange;
+    this.latencyMillis = latencyMillis;
+    this.probeLatencyMillis = probeLatencyMillis;
+  }
+
+  /**
+   * @return the host name
+   */
+  public String getHost() {
+    return host;
+  }
+
+  /**
+   * @return false while the host is considered down, i.e. its circuit breaker is open or half-open
+   */
+  public boolean isUp() {
+    return up;
+  }
+
+  /**
+   * @return the time elapsed since the last change of the state of this host, in MS
+   */
+  public long getMillisSinceLastChange() {
+    return millisSinceLastChange;
+  }
+
+  /**
+   * @return the moving average of the latency of the successful requests sent to this host in MS, or -1 if unknown
+   */
+  public long getLatencyMillis() {
+    return latencyMillis;
+  }
+
+  /**
+   * @return the latency of the last successful background check of this host in MS, or -1 if unknown
+   */
+  public long getProbeLatencyMillis() {
+    return probeLatencyMillis;
+  }
+
+  @Override
+  public String toString() {
+    return "HostHealth{" +
+      "host='" + host + '\'' +
+      ", up=" + up +
+      ", millisSinceLastChange=" + millisSinceLastChange +
+      ", latencyMillis=" + latencyMillis +
+      ", probeLatencyMillis=" + probeLatencyMillis +
+      '}';
+  }
+}
@@ -0,0 +1,66 @@
+package com.algolia.search.saas;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Result of the warm-up of the connections to one host
+ */
+@SuppressWarnings("WeakerAccess")
+public class HostWarmUp {
+
+  private final String host;
+  private final List<Long> connectMillis;
+  private final String errorMessage;
+
+  public HostWarmUp(String host, List<Long> connectMillis, String errorMessage) {
+    this.host = host;
+    this.connectMillis = Collections.unmodifiableList(connectMillis);
+    this.errorMessage = errorMessage;
+  }
+
+  /**
+   * @return the host name
+   */
+  public String getHost() {
+    return host;
+  }
+
+  /**
+   * @return the time spent to open each new connection (DNS resolution, TCP connect and TLS handshake) in MS,
+   * connections that were already open in the pool are not listed
+   */
+  public List<Long> getConnectMillis() {
+    return connectMillis;
+  }
+
+  /**
+   * @return the number of connections opened by the warm-up
+   */
+  public int getOpenedConnections() {
+    return connectMillis.size();
+  }
+
+  /**
+   * @return false if the host could not be reached
+   */
+  public boolean isSuccessful() {
+    return errorMessage == null;
+  }
+
+  /**
+   * @return the reason why the host could not be reached, or null
+   */
+  public String getErrorMessage() {
+    return errorMessage;
+  }
+
+  @Override
+  public String toString() {
+    return "HostWarmUp{" +
+      "host='" + host + '\'' +
+      ", connectMillis=" + connectMillis +
+      ", errorMessage='" + errorMessage + '\'' +
+      '}';
+  }
+}
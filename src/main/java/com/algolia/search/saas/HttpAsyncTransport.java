@@ -0,0 +1,172 @@
+package com.algolia.search.saas;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.message.BasicHeader;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * {@link AsyncTransport} based on Apache HttpAsyncClient: a few I/O threads serve all the requests in flight,
+ * {@code new APIClient(applicationID, apiKey, new HttpAsyncTransport())}.
+ * <p>
+ * Differences with {@link ApacheHttpTransport}:
+ * <ul>
+ * <li>the body of a response is received entirely before it is parsed</li>
+ * <li>the connection phases of the timed requests are not reported</li>
+ * <li>the synchronous methods still block their thread, while the request is sent by the I/O threads</li>
+ * </ul>
+ * Not available on App Engine, as it needs to start threads.
+ */
+@SuppressWarnings("WeakerAccess")
+public class HttpAsyncTransport implements AsyncTransport {
+
+  private final CloseableHttpAsyncClient httpClient;
+
+  public HttpAsyncTransport() {
+    this(HttpAsyncClients.custom()
+      .setMaxConnTotal(ApacheHttpTransport.DEFAULT_MAX_CONNECTIONS)
+      .setMaxConnPerRoute(ApacheHttpTransport.DEFAULT_MAX_CONNECTIONS_PER_HOST)
+      .setThreadFactory(APIClient.daemonThreadFactory("algolia-io-")));
+  }
+
+  /**
+   * @param builder the builder of the client sending the requests, e.g. with a custom connection manager or SSL context
+   */
+  public HttpAsyncTransport(HttpAsyncClientBuilder builder) {
+    // gzip is handled by the client, and the async client does not decompress the responses
+    this.httpClient = builder.build();
+    this.httpClient.start();
+  }
+
+  @Override
+  public void executeAsync(final TransportRequest request, final FutureCallback<TransportResponse> callback) {
+    HttpRequestBase req = ApacheHttpTransport.newRequest(request.getMethod());
+    req.setURI(request.getUri());
+    Header[] headers = new Header[request.getHeaders().size()];
+    int i = 0;
+    for (Map.Entry<String, String> entry : request.getHeaders().entrySet()) {
+      headers[i++] = new BasicHeader(entry.getKey(), entry.getValue());
+    }
+    req.setHeaders(headers);
+    if (request.getBody() != null) {
+      if (!(req instanceof HttpEntityEnclosingRequestBase)) {
+        throw new IllegalArgumentException("Method " + req.getMethod() + " cannot enclose entity");
+      }
+      ((HttpEntityEnclosingRequestBase) req).setEntity(new ByteArrayEntity(request.getBody()));
+    }
+    req.setConfig(RequestConfig.custom()
+      .setSocketTimeout(request.getReadTimeoutMS())
+      .setConnectTimeout(request.getConnectTimeoutMS())
+      .setConnectionRequestTimeout(request.getConnectTimeoutMS())
+      .build());
+
+    final Future<HttpResponse> future = httpClient.execute(req, new FutureCallback<HttpResponse>() {
+      @Override
+      public void completed(HttpResponse response) {
+        TransportResponse transportResponse;
+        try {
+          transportResponse = toTransportResponse(response);
+        } catch (IOException e) {
+          callback.failed(e);
+          return;
+        }
+        callback.completed(transportResponse);
+      }
+
+      @Override
+      public void failed(Exception e) {
+        callback.failed(e instanceof IOException ? e : new IOException(e));
+      }
+
+      @Override
+      public void cancelled() {
+        callback.cancelled();
+      }
+    });
+    if (!request.setAbortHandler(new Runnable() {
+      @Override
+      public void run() {
+        future.cancel(true);
+      }
+    })) {
+      future.cancel(true);
+    }
+  }
+
+  private static TransportResponse toTransportResponse(HttpResponse response) throws IOException {
+    Map<String, String> headers = new HashMap<String, String>();
+    for (Header header : response.getAllHeaders()) {
+      headers.put(header.getName(), header.getValue());
+    }
+    HttpEntity entity = response.getEntity();
+    InputStream body = entity != null ? entity.getContent() : new ByteArrayInputStream(new byte[0]);
+    return new TransportResponse(response.getStatusLine().getStatusCode(), headers, body, entity != null ? entity.getContentLength() : 0);
+  }
+
+  /**
+   * Send a request with the I/O threads, and wait for its response
+   */
+  @Override
+  public TransportResponse execute(TransportRequest request) throws IOException {
+    final BasicFuture<TransportResponse> future = new BasicFuture<TransportResponse>(null);
+    executeAsync(request, new FutureCallback<TransportResponse>() {
+      @Override
+      public void completed(TransportResponse response) {
+        future.completed(response);
+      }
+
+      @Override
+      public void failed(Exception e) {
+        future.failed(e);
+      }
+
+      @Override
+      public void cancelled() {
+        future.cancel();
+      }
+    });
+    try {
+      // the timeouts are enforced by the I/O threads
+      return future.get();
+    } catch (CancellationException e) {
+      throw new IOException("Request aborted");
+    } catch (InterruptedException e) {
+      request.abort();
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for the response");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    }
+  }
+
+  @Override
+  public void close() {
+    try {
+      httpClient.close();
+    } catch (IOException e) {
+      // the I/O threads are stopped anyway
+    }
+  }
+}
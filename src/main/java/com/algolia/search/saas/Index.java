@@ -1,6 +1,7 @@
 package com.algolia.search.saas;
 
 import com.algolia.search.saas.APIClient.IndexQuery;
+import org.apache.http.concurrent.FutureCallback;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -8,6 +9,7 @@ import org.json.JSONObject;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.util.*;
+import java.util.concurrent.Future;
 
 
 /*
@@ -149,11 +151,91 @@ public class Index {
     return postBatch(actions, requestOptions);
   }
 
+  /**
+   * Custom batch, without blocking the calling thread
+   *
+   * @param actions the array of actions
+   * @return a future holding the result, or an AlgoliaException as cause of its ExecutionException
+   */
+  public Future<JSONObject> batchAsync(JSONArray actions) {
+    return this.batchAsync(actions, RequestOptions.empty);
+  }
+
+  /**
+   * Custom batch, without blocking the calling thread
+   *
+   * @param actions        the array of actions
+   * @param requestOptions Options to pass to this request
+   * @return a future holding the result, or an AlgoliaException as cause of its ExecutionException
+   */
+  public Future<JSONObject> batchAsync(JSONArray actions, RequestOptions requestOptions) {
+    return this.batchAsync(actions, requestOptions, null);
+  }
+
+  /**
+   * Custom batch, without blocking the calling thread
+   *
+   * @param actions        the array of actions
+   * @param requestOptions Options to pass to this request
+   * @param callback       notified once the request is done, e.g. to chain another call; null for none
+   * @return a future holding the result, or an AlgoliaException as cause of its ExecutionException
+   */
+  public Future<JSONObject> batchAsync(JSONArray actions, RequestOptions requestOptions, FutureCallback<JSONObject> callback) {
+    return postBatchAsync(actions, requestOptions, callback);
+  }
+
+  /**
+   * Custom batch, without blocking the calling thread
+   *
+   * @param actions the array of actions
+   * @return a future holding the result, or an AlgoliaException as cause of its ExecutionException
+   */
+  public Future<JSONObject> batchAsync(List<JSONObject> actions) {
+    return this.batchAsync(actions, RequestOptions.empty);
+  }
+
+  /**
+   * Custom batch, without blocking the calling thread
+   *
+   * @param actions        the array of actions
+   * @param requestOptions Options to pass to this request
+   * @return a future holding the result, or an AlgoliaException as cause of its ExecutionException
+   */
+  public Future<JSONObject> batchAsync(List<JSONObject> actions, RequestOptions requestOptions) {
+    return this.batchAsync(actions, requestOptions, null);
+  }
+
+  /**
+   * Custom batch, without blocking the calling thread
+   *
+   * @param actions        the array of actions
+   * @param requestOptions Options to pass to this request
+   * @param callback       notified once the request is done, e.g. to chain another call; null for none
+   * @return a future holding the result, or an AlgoliaException as cause of its ExecutionException
+   */
+  public Future<JSONObject> batchAsync(List<JSONObject> actions, RequestOptions requestOptions, FutureCallback<JSONObject> callback) {
+    return postBatchAsync(actions, requestOptions, callback);
+  }
+
   private JSONObject postBatch(Object actions, RequestOptions requestOptions) throws AlgoliaException {
+    return client.postRequest("/1/indexes/" + encodedIndexName + "/batch", batchBody(actions), true, false, requestOptions);
+  }
+
+  private Future<JSONObject> postBatchAsync(Object actions, RequestOptions requestOptions, FutureCallback<JSONObject> callback) {
+    String body;
+    try {
+      body = batchBody(actions);
+    } catch (AlgoliaException e) {
+      return APIClient.failedFuture(e, callback);
+    }
+    return client.postRequestAsync("/1/indexes/" + encodedIndexName + "/batch", body, true, false, requestOptions, callback);
+  }
+
+  private static String batchBody(Object actions) throws AlgoliaException {
     try {
       JSONObject content = new JSONObject();
       content.put("requests", actions);
-      return client.postRequest("/1/indexes/" + encodedIndexName + "/batch", content.toString(), true, false, requestOptions);
+      return content.toString();
     } catch (JSONException e) {
       throw new AlgoliaException(e);
     }
@@ -310,6 +392,31 @@ public class Index {
    * @param requestOptions       Options to pass to this request
    */
   public JSONObject getObjects(List<String> objectIDs, List<String> attributesToRetrieve, RequestOptions requestOptions) throws AlgoliaException {
+    return client.postRequest("/1/indexes/*/objects", getObjectsBody(objectIDs, attributesToRetrieve), false, false, requestOptions);
+  }
+
+  /**
+   * Get several objects from this index, the response is not decoded: its bytes are given back as sent by the host,
+   * e.g. to forward them as is
+   *
+   * @param objectIDs the array of unique identifier of objects to retrieve
+   */
+  public RawResponse getObjectsRaw(List<String> objectIDs) throws AlgoliaException {
+    return getObjectsRaw(objectIDs, null, RequestOptions.empty);
+  }
+
+  /**
+   * Get several objects from this index, the response is not decoded
+   *
+   * @param objectIDs            the array of unique identifier of objects to retrieve
+   * @param attributesToRetrieve contains the list of attributes to retrieve.
+   * @param requestOptions       Options to pass to this request
+   */
+  public RawResponse getObjectsRaw(List<String> objectIDs, List<String> attributesToRetrieve, RequestOptions requestOptions) throws AlgoliaException {
+    return client.postRequestRaw("/1/indexes/*/objects", getObjectsBody(objectIDs, attributesToRetrieve), false, false, requestOptions);
+  }
+
+  private String getObjectsBody(List<String> objectIDs, List<String> attributesToRetrieve) throws AlgoliaException {
     try {
       JSONArray requests = new JSONArray();
       for (String id : objectIDs) {
@@ -321,7 +428,7 @@ public class Index {
       }
       JSONObject body = new JSONObject();
       body.put("requests", requests);
-      return client.postRequest("/1/indexes/*/objects", body.toString(), false, false, requestOptions);
+      return body.toString();
     } catch (JSONException e) {
       throw new AlgoliaException(e.getMessage());
     } catch (UnsupportedEncodingException e) {
@@ -329,6 +436,58 @@ public class Index {
     }
   }
 
+  /**
+   * Get several objects from this index, without blocking the calling thread
+   *
+   * @param objectIDs the array of unique identifier of objects to retrieve
+   * @return a future holding the result, or an AlgoliaException as cause of its ExecutionException
+   */
+  public Future<JSONObject> getObjectsAsync(List<String> objectIDs) {
+    return getObjectsAsync(objectIDs, null, RequestOptions.empty);
+  }
+
+  /**
+   * Get several objects from this index, without blocking the calling thread
+   *
+   * @param objectIDs      the array of unique identifier of objects to retrieve
+   * @param requestOptions Options to pass to this request
+   * @return a future holding the result, or an AlgoliaException as cause of its ExecutionException
+   */
+  public Future<JSONObject> getObjectsAsync(List<String> objectIDs, RequestOptions requestOptions) {
+    return getObjectsAsync(objectIDs, null, requestOptions);
+  }
+
+  /**
+   * Get several objects from this index, without blocking the calling thread
+   *
+   * @param objectIDs            the array of unique identifier of objects to retrieve
+   * @param attributesToRetrieve contains the list of attributes to retrieve.
+   * @param requestOptions       Options to pass to this request
+   * @return a future holding the result, or an AlgoliaException as cause of its ExecutionException
+   */
+  public Future<JSONObject> getObjectsAsync(List<String> objectIDs, List<String> attributesToRetrieve, RequestOptions requestOptions) {
+    return getObjectsAsync(objectIDs, attributesToRetrieve, requestOptions, null);
+  }
+
+  /**
+   * Get several objects from this index, without blocking the calling thread
+   *
+   * @param objectIDs            the array of unique identifier of objects to retrieve
+   * @param attributesToRetrieve contains the list of attributes to retrieve.
+   * @param requestOptions       Options to pass to this request
+   * @param callback             notified once the request is done, e.g. to chain another call; null for none
+   * @return a future holding the result, or an AlgoliaException as cause of its ExecutionException
+   */
+  public Future<JSONObject> getObjectsAsync(List<String> objectIDs, List<String> attributesToRetrieve, RequestOptions requestOptions, FutureCallback<JSONObject> callback) {
+    String body;
+    try {
+      body = getObjectsBody(objectIDs, attributesToRetrieve);
+    } catch (AlgoliaException e) {
+      return APIClient.failedFuture(e, callback);
+    }
+    return client.postRequestAsync("/1/indexes/*/objects", body, false, false, requestOptions, callback);
+  }
+
   private String encodeAttributes(List<String> attributesToRetrieve, boolean forURL) throws UnsupportedEncodingException {
     if (attributesToRetrieve == null) {
       return null;
@@ -508,6 +667,10 @@ public class Index {
    * @param requestOptions Options to pass to this request
    */
   public JSONObject saveObjects(List<JSONObject> objects, RequestOptions requestOptions) throws AlgoliaException {
+    return batch(saveObjectsActions(objects), requestOptions);
+  }
+
+  private static JSONArray saveObjectsActions(List<JSONObject> objects) throws AlgoliaException {
     try {
       JSONArray array = new JSONArray();
       for (JSONObject obj : objects) {
@@ -517,7 +680,7 @@ public class Index {
         action.put("body", obj);
         array.put(action);
       }
-      return batch(array, requestOptions);
+      return array;
     } catch (JSONException e) {
       throw new AlgoliaException(e.getMessage());
     }
@@ -555,6 +718,45 @@ public class Index {
     }
   }
 
+  /**
+   * Override the content of several objects, without blocking the calling thread
+   *
+   * @param objects the array of objects to update (each object must contains an objectID attribute)
+   * @return a future holding the result, or an AlgoliaException as cause of its ExecutionException
+   */
+  public Future<JSONObject> saveObjectsAsync(List<JSONObject> objects) {
+    return this.saveObjectsAsync(objects, RequestOptions.empty);
+  }
+
+  /**
+   * Override the content of several objects, without blocking the calling thread
+   *
+   * @param objects        the array of objects to update (each object must contains an objectID attribute)
+   * @param requestOptions Options to pass to this request
+   * @return a future holding the result, or an AlgoliaException as cause of its ExecutionException
+   */
+  public Future<JSONObject> saveObjectsAsync(List<JSONObject> objects, RequestOptions requestOptions) {
+    return this.saveObjectsAsync(objects, requestOptions, null);
+  }
+
+  /**
+   * Override the content of several objects, without blocking the calling thread
+   *
+   * @param objects        the array of objects to update (each object must contains an objectID attribute)
+   * @param requestOptions Options to pass to this request
+   * @param callback       notified once the request is done, e.g. to chain another call; null for none
+   * @return a future holding the result, or an AlgoliaException as cause of its ExecutionException
+   */
+  public Future<JSONObject> saveObjectsAsync(List<JSONObject> objects, RequestOptions requestOptions, FutureCallback<JSONObject> callback) {
+    JSONArray array;
+    try {
+      array = saveObjectsActions(objects);
+    } catch (AlgoliaException e) {
+      return APIClient.failedFuture(e, callback);
+    }
+    return postBatchAsync(array, requestOptions, callback);
+  }
+
   /**
    * Delete an object from the index
    *
@@ -690,6 +892,30 @@ public class Index {
    * @param requestOptions Options to pass to this request
    */
   public JSONObject search(Query params, RequestOptions requestOptions) throws AlgoliaException {
+    return client.postRequest("/1/indexes/" + encodedIndexName + "/query", searchBody(params), false, true, requestOptions);
+  }
+
+  /**
+   * Search inside the index, the response is not decoded: its bytes are given back as sent by the host,
+   * e.g. to forward them as is
+   *
+   * @param params the query to search
+   */
+  public RawResponse searchRaw(Query params) throws AlgoliaException {
+    return this.searchRaw(params, RequestOptions.empty);
+  }
+
+  /**
+   * Search inside the index, the response is not decoded
+   *
+   * @param params         the query to search
+   * @param requestOptions Options to pass to this request
+   */
+  public RawResponse searchRaw(Query params, RequestOptions requestOptions) throws AlgoliaException {
+    return client.postRequestRaw("/1/indexes/" + encodedIndexName + "/query", searchBody(params), false, true, requestOptions);
+  }
+
+  private static String searchBody(Query params) {
     String paramsString = params.getQueryString();
     JSONObject body = new JSONObject();
     try {
@@ -697,7 +923,40 @@ public class Index {
     } catch (JSONException e) {
       throw new RuntimeException(e);
     }
-    return client.postRequest("/1/indexes/" + encodedIndexName + "/query", body.toString(), false, true, requestOptions);
+    return body.toString();
+  }
+
+  /**
+   * Search inside the index, without blocking the calling thread
+   *
+   * @param params the query to search
+   * @return a future holding the result, or an AlgoliaException as cause of its ExecutionException
+   */
+  public Future<JSONObject> searchAsync(Query params) {
+    return this.searchAsync(params, RequestOptions.empty);
+  }
+
+  /**
+   * Search inside the index, without blocking the calling thread
+   *
+   * @param params         the query to search
+   * @param requestOptions Options to pass to this request
+   * @return a future holding the result, or an AlgoliaException as cause of its ExecutionException
+   */
+  public Future<JSONObject> searchAsync(Query params, RequestOptions requestOptions) {
+    return this.searchAsync(params, requestOptions, null);
+  }
+
+  /**
+   * Search inside the index, without blocking the calling thread
+   *
+   * @param params         the query to search
+   * @param requestOptions Options to pass to this request
+   * @param callback       notified once the request is done, e.g. to chain another call; null for none
+   * @return a future holding the result, or an AlgoliaException as cause of its ExecutionException
+   */
+  public Future<JSONObject> searchAsync(Query params, RequestOptions requestOptions, FutureCallback<JSONObject> callback) {
+    return client.postRequestAsync("/1/indexes/" + encodedIndexName + "/query", searchBody(params), false, true, requestOptions, callback);
   }
 
   /**
@@ -851,10 +1110,16 @@ public class Index {
    * @param requestOptions Options to pass to this request
    */
   public void waitTask(String taskID, long timeToWait, RequestOptions requestOptions) throws AlgoliaException {
+    FlightRecorderEvents events = client.getFlightRecorderEvents();
+    Object event = events != null ? events.beginWaitTask() : null;
+    int polls = 0;
+    String status = null;
     try {
       while (true) {
+        polls++;
         JSONObject obj = client.getRequest("/1/indexes/" + encodedIndexName + "/task/" + URLEncoder.encode(taskID, "UTF-8"), false, requestOptions);
-        if (obj.getString("status").equals("published"))
+        status = obj.getString("status");
+        if (status.equals("published"))
           return;
         try {
           Thread.sleep(timeToWait);
@@ -867,6 +1132,10 @@ public class Index {
       throw new AlgoliaException(e.getMessage());
     } catch (UnsupportedEncodingException e) {
       throw new RuntimeException(e);
+    } finally {
+      if (event != null) {
+        events.endWaitTask(event, indexName, taskID, polls, status);
+      }
     }
   }
 
@@ -1967,7 +2236,18 @@ public class Index {
           throw new IllegalStateException(e);
         }
       }
-      this.answer = client.getRequest("/1/indexes/" + encodedIndexName + "/browse" + ((paramsString.length() > 0) ? ("?" + paramsString) : ""), true, requestOptions);
+      FlightRecorderEvents events = client.getFlightRecorderEvents();
+      Object event = events != null ? events.beginBrowsePage() : null;
+      int hits = -1;
+      try {
+        this.answer = client.getRequest("/1/indexes/" + encodedIndexName + "/browse" + ((paramsString.length() > 0) ? ("?" + paramsString) : ""), true, requestOptions);
+        JSONArray pageHits = answer.optJSONArray("hits");
+        hits = pageHits != null ? pageHits.length() : 0;
+      } finally {
+        if (event != null) {
+          events.endBrowsePage(event, ClientMetrics.indexName("/1/indexes/" + encodedIndexName), hits, cursor != null);
+        }
+      }
     }
   }
 
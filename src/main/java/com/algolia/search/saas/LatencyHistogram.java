@@ -0,0 +1,90 @@
+package com.algolia.search.saas;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of latencies in MS (or in microseconds for the phases of a request). The bucket bounds grow
+ * by a factor of 2^(1/4), so a percentile is over-estimated by 19% at most, up to 2^16 (about 65 seconds) with the
+ * default buckets. The counts are halved every decaySamples samples, so the percentiles follow the recent latencies.
+ */
+class LatencyHistogram {
+  private static final int DEFAULT_BUCKETS = 65;
+
+  private final int buckets;
+  private final AtomicLongArray counts;
+  private final AtomicLong count = new AtomicLong();
+  private final long decaySamples;
+
+  LatencyHistogram(long decaySamples) {
+    this(decaySamples, DEFAULT_BUCKETS);
+  }
+
+  /**
+   * @param buckets number of buckets, the last one holds the values above 2^((buckets - 1) / 4)
+   */
+  LatencyHistogram(long decaySamples, int buckets) {
+    this.decaySamples = decaySamples;
+    this.buckets = buckets;
+    this.counts = new AtomicLongArray(buckets);
+  }
+
+  void record(long millis) {
+    counts.incrementAndGet(bucket(millis));
+    // the counter goes through each value once, so a single thread decays the counts
+    if (count.incrementAndGet() == decaySamples) {
+      long removed = 0;
+      for (int i = 0; i < buckets; i++) {
+        long current;
+        do {
+          current = counts.get(i);
+        } while (!counts.compareAndSet(i, current, current - current / 2));
+        removed += current / 2;
+      }
+      count.addAndGet(-removed);
+    }
+  }
+
+  /**
+   * @return the number of samples, decayed
+   */
+  long getCount() {
+    return count.get();
+  }
+
+  /**
+   * @param percentile the percentile, between 0 and 1 (e.g. 0.99)
+   * @return the upper bound of the bucket holding the percentile in MS, or -1 without samples
+   */
+  long getPercentile(double percentile) {
+    long[] snapshot = new long[buckets];
+    long total = 0;
+    for (int i = 0; i < buckets; i++) {
+      snapshot[i] = counts.get(i);
+      total += snapshot[i];
+    }
+    if (total == 0) {
+      return -1;
+    }
+    long rank = (long) Math.ceil(percentile * total);
+    long cumulated = 0;
+    for (int i = 0; i < buckets; i++) {
+      cumulated += snapshot[i];
+      if (cumulated >= rank) {
+        return upperBound(i);
+      }
+    }
+    return upperBound(buckets - 1);
+  }
+
+  private int bucket(long millis) {
+    if (millis <= 1) {
+      return 0;
+    }
+    return (int) Math.min(buckets - 1, Math.ceil(4 * Math.log(millis) / Math.log(2)));
+  }
+
+  private static long upperBound(int bucket) {
+    return (long) Math.ceil(Math.pow(2, bucket / 4.0));
+  }
+}
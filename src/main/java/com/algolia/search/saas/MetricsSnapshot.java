@@ -0,0 +1,139 @@
+package com.algolia.search.saas;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Metrics of the requests of a client, for one kind of request or for one host, since the metrics were enabled
+ */
+@SuppressWarnings("WeakerAccess")
+public class MetricsSnapshot {
+
+  private final long requests;
+  private final long failedRequests;
+  private final long attempts;
+  private final Map<String, Long> errors;
+  private final long bytesSent;
+  private final long bytesReceived;
+  private final long p50LatencyMS;
+  private final long p90LatencyMS;
+  private final long p99LatencyMS;
+  private final long p999LatencyMS;
+  private final Map<String, Long> phaseP50Micros;
+  private final Map<String, Long> phaseP99Micros;
+
+  public MetricsSnapshot(long requests, long failedRequests, long attempts, Map<String, Long> errors, long bytesSent, long bytesReceived,
+                         long p50LatencyMS, long p90LatencyMS, long p99LatencyMS, long p999LatencyMS,
+                         Map<String, Long> phaseP50Micros, Map<String, Long> phaseP99Micros) {
+    this.requests = requests;
+    this.failedRequests = failedRequests;
+    this.attempts = attempts;
+    this.errors = Collections.unmodifiableMap(errors);
+    this.bytesSent = bytesSent;
+    this.bytesReceived = bytesReceived;
+    this.p50LatencyMS = p50LatencyMS;
+    this.p90LatencyMS = p90LatencyMS;
+    this.p99LatencyMS = p99LatencyMS;
+    this.p999LatencyMS = p999LatencyMS;
+    this.phaseP50Micros = Collections.unmodifiableMap(phaseP50Micros);
+    this.phaseP99Micros = Collections.unmodifiableMap(phaseP99Micros);
+  }
+
+  /**
+   * @return the number of requests, or of attempts for a host
+   */
+  public long getRequests() {
+    return requests;
+  }
+
+  /**
+   * @return the number of requests that ended with an exception, or of failed attempts for a host
+   */
+  public long getFailedRequests() {
+    return failedRequests;
+  }
+
+  /**
+   * @return the number of tries on a host, a request is tried again on the next host when its host fails
+   */
+  public long getAttempts() {
+    return attempts;
+  }
+
+  /**
+   * @return the number of attempts beyond the first one of each request
+   */
+  public long getRetries() {
+    return Math.max(0, attempts - requests);
+  }
+
+  /**
+   * @return the number of failed attempts by type of error: timeout, dns, network, serverError, clientError or other
+   */
+  public Map<String, Long> getErrors() {
+    return errors;
+  }
+
+  /**
+   * @return the size of the request bodies, as sent (possibly compressed)
+   */
+  public long getBytesSent() {
+    return bytesSent;
+  }
+
+  /**
+   * @return the size of the response bodies, as received (possibly compressed)
+   */
+  public long getBytesReceived() {
+    return bytesReceived;
+  }
+
+  /**
+   * @return the median latency in MS (of the whole request, or of the attempts for a host), -1 without samples
+   */
+  public long getP50LatencyMS() {
+    return p50LatencyMS;
+  }
+
+  public long getP90LatencyMS() {
+    return p90LatencyMS;
+  }
+
+  public long getP99LatencyMS() {
+    return p99LatencyMS;
+  }
+
+  public long getP999LatencyMS() {
+    return p999LatencyMS;
+  }
+
+  /**
+   * @return the median time spent in each phase of a request in microseconds, by phase (see {@link RequestTimings.Phase#getKey()}),
+   * plus serverProcessing for the processing time reported by the engine; empty for a host
+   */
+  public Map<String, Long> getPhaseP50Micros() {
+    return phaseP50Micros;
+  }
+
+  public Map<String, Long> getPhaseP99Micros() {
+    return phaseP99Micros;
+  }
+
+  @Override
+  public String toString() {
+    return "MetricsSnapshot{" +
+      "requests=" + requests +
+      ", failedRequests=" + failedRequests +
+      ", attempts=" + attempts +
+      ", errors=" + errors +
+      ", bytesSent=" + bytesSent +
+      ", bytesReceived=" + bytesReceived +
+      ", p50LatencyMS=" + p50LatencyMS +
+      ", p90LatencyMS=" + p90LatencyMS +
+      ", p99LatencyMS=" + p99LatencyMS +
+      ", p999LatencyMS=" + p999LatencyMS +
+      ", phaseP50Micros=" + phaseP50Micros +
+      ", phaseP99Micros=" + phaseP99Micros +
+      '}';
+  }
+}
@@ -0,0 +1,139 @@
+package com.algolia.search.saas;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Body of a response as sent by the host, not decoded, e.g. to forward it as is to a browser
+ */
+@SuppressWarnings("WeakerAccess")
+public class RawResponse {
+
+  // estimated memory held by the parsed objects for each char of the body
+  private static final int PARSED_BYTES_PER_CHAR = 4;
+
+  private final byte[] body;
+  private final String contentEncoding;
+  // parsed once when the response is shared, e.g. by the cache: never given out, as the callers may modify their result
+  private final JSONObject parsed;
+  private final long parsedChars;
+
+  public RawResponse(byte[] body, String contentEncoding) {
+    this(body, contentEncoding, null, 0);
+  }
+
+  /**
+   * @param parsed      the parsed body, or null to parse it in each call of {@link #toJSONObject()}
+   * @param parsedChars number of chars of the decoded body
+   */
+  RawResponse(byte[] body, String contentEncoding, JSONObject parsed, long parsedChars) {
+    this.body = body;
+    this.contentEncoding = contentEncoding;
+    this.parsed = parsed;
+    this.parsedChars = parsedChars;
+  }
+
+  /**
+   * @return the JSON body, compressed as described by {@link #getContentEncoding()}
+   */
+  public byte[] getBody() {
+    return body;
+  }
+
+  /**
+   * @return the value of the Content-Encoding header of the response (e.g. gzip), or null if the body is not compressed
+   */
+  public String getContentEncoding() {
+    return contentEncoding;
+  }
+
+  public boolean isGzipped() {
+    return BodyDecoder.isGzipped(contentEncoding);
+  }
+
+  /**
+   * @return the estimated memory held by this response, its parsed body included
+   */
+  long getRetainedSize() {
+    return body.length + (parsed != null ? PARSED_BYTES_PER_CHAR * parsedChars : 0);
+  }
+
+  /**
+   * @return the JSON body in UTF-8, decompressed if needed
+   */
+  public byte[] getDecompressedBody() throws IOException {
+    if (!isGzipped()) {
+      return body;
+    }
+    InputStream is = new GZIPInputStream(new ByteArrayInputStream(body), 8192);
+    try {
+      ByteArrayOutputStream decompressed = new ByteArrayOutputStream(body.length * 4);
+      byte[] buffer = new byte[8192];
+      int read;
+      while ((read = is.read(buffer)) > 0) {
+        decompressed.write(buffer, 0, read);
+      }
+      return decompressed.toByteArray();
+    } finally {
+      is.close();
+    }
+  }
+
+  /**
+   * Decode the body, as done by the methods that do not give back the raw response
+   *
+   * @return a new object for each call, that the caller can modify
+   */
+  public JSONObject toJSONObject() throws AlgoliaException {
+    if (parsed != null) {
+      // copying the parsed values is cheaper than decoding the body again
+      return copy(parsed);
+    }
+    try {
+      BodyDecoder decoder = BodyDecoder.open(new ByteArrayInputStream(body), isGzipped(), false);
+      try {
+        return new JSONObject(new JSONTokener(decoder));
+      } finally {
+        decoder.close();
+      }
+    } catch (IOException e) {
+      throw new AlgoliaException("JSON decode error:" + e.getMessage());
+    } catch (JSONException e) {
+      throw new AlgoliaException("JSON decode error:" + e.getMessage());
+    }
+  }
+
+  /**
+   * @return a deep copy, sharing the immutable values (strings, numbers, booleans and null)
+   */
+  private static JSONObject copy(JSONObject object) {
+    JSONObject copy = new JSONObject();
+    for (String key : object.keySet()) {
+      copy.put(key, copyValue(object.opt(key)));
+    }
+    return copy;
+  }
+
+  private static Object copyValue(Object value) {
+    if (value instanceof JSONObject) {
+      return copy((JSONObject) value);
+    }
+    if (value instanceof JSONArray) {
+      JSONArray array = (JSONArray) value;
+      JSONArray copy = new JSONArray();
+      for (int i = 0; i < array.length(); i++) {
+        copy.put(copyValue(array.opt(i)));
+      }
+      return copy;
+    }
+    return value;
+  }
+}
@@ -0,0 +1,131 @@
+package com.algolia.search.saas;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Lets the identical reads sent at the same time share one request: the first one (the leader) is sent by its caller,
+ * the next ones (the followers) wait for its response instead of sending duplicates.
+ * <p>
+ * A follower waits at most until its own deadline, and sends its own request if the leader ran out of a shorter deadline.
+ */
+class RequestCoalescer {
+  private final ConcurrentHashMap<String, FutureTask<RawResponse>> inFlight = new ConcurrentHashMap<String, FutureTask<RawResponse>>();
+  private final StripedCounter coalesced = new StripedCounter();
+
+  /**
+   * Sends a read on the hosts
+   */
+  interface Read {
+    /**
+     * @param deadlineMS maximum duration of the request, 0 without deadline
+     */
+    RawResponse send(long deadlineMS) throws AlgoliaException;
+  }
+
+  /**
+   * @return the key of a read, the same for the requests getting the same response
+   */
+  static String key(String method, String path, String body, boolean build, RequestOptions requestOptions) {
+    StringBuilder key = new StringBuilder(path.length() + (body != null ? body.length() : 0) + 32)
+      .append(method).append(' ').append(path).append(build ? " build" : " query");
+    // sorted, as the options are hash maps
+    for (Map.Entry<String, String> header : new TreeMap<String, String>(requestOptions.generateExtraHeaders()).entrySet()) {
+      key.append('\n').append(header.getKey()).append(": ").append(header.getValue());
+    }
+    for (Map.Entry<String, String> param : new TreeMap<String, String>(requestOptions.generateExtraQueryParams()).entrySet()) {
+      key.append('\n').append(param.getKey()).append('=').append(param.getValue());
+    }
+    key.append("\n\n");
+    if (body != null) {
+      key.append(body);
+    }
+    return key.toString();
+  }
+
+  /**
+   * @return the number of reads answered with the response of an identical read in flight
+   */
+  long getCoalesced() {
+    return coalesced.get();
+  }
+
+  /**
+   * @param deadlineMS maximum duration of the read for the caller, 0 to wait for the leader as long as it runs
+   * @param read       sends the read, called by the leader or by a follower whose leader exceeded its deadline
+   */
+  RawResponse execute(String key, final long deadlineMS, final Read read) throws AlgoliaException {
+    long startNanos = System.nanoTime();
+    FutureTask<RawResponse> task = new FutureTask<RawResponse>(new Callable<RawResponse>() {
+      @Override
+      public RawResponse call() throws AlgoliaException {
+        return read.send(deadlineMS);
+      }
+    });
+    FutureTask<RawResponse> leader = inFlight.putIfAbsent(key, task);
+    if (leader == null) {
+      try {
+        task.run();
+      } finally {
+        inFlight.remove(key, task);
+      }
+      try {
+        return task.get();
+      } catch (InterruptedException e) {
+        // not possible, the task is done
+        Thread.currentThread().interrupt();
+        throw new AlgoliaException("Interrupted", e);
+      } catch (ExecutionException e) {
+        throw unwrap(e);
+      }
+    }
+
+    coalesced.increment();
+    try {
+      if (deadlineMS <= 0) {
+        return leader.get();
+      }
+      long remainingMS = deadlineMS - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+      return leader.get(Math.max(remainingMS, 0), TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      throw new AlgoliaException("Deadline exceeded: no answer within " + deadlineMS + "ms");
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new AlgoliaException("Interrupted while waiting for an identical request", e);
+    } catch (ExecutionException e) {
+      AlgoliaException error = unwrap(e);
+      if (error.getMessage() == null || !error.getMessage().startsWith("Deadline exceeded")) {
+        throw error;
+      }
+    }
+    // the leader had a shorter deadline than this follower
+    if (deadlineMS <= 0) {
+      return read.send(0);
+    }
+    long remainingMS = deadlineMS - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    if (remainingMS <= 0) {
+      throw new AlgoliaException("Deadline exceeded: no answer within " + deadlineMS + "ms");
+    }
+    return read.send(remainingMS);
+  }
+
+  private static AlgoliaException unwrap(ExecutionException e) {
+    Throwable cause = e.getCause();
+    if (cause instanceof AlgoliaException) {
+      return (AlgoliaException) cause;
+    }
+    if (cause instanceof RuntimeException) {
+      throw (RuntimeException) cause;
+    }
+    if (cause instanceof Error) {
+      throw (Error) cause;
+    }
+    return new AlgoliaException(cause);
+  }
+}
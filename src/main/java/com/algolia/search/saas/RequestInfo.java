@@ -0,0 +1,97 @@
+package com.algolia.search.saas;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A request reported to the {@link RequestListener}s, the same instance is given for all the notifications of a request
+ */
+@SuppressWarnings("WeakerAccess")
+public class RequestInfo {
+
+  private final String method;
+  private final String path;
+  private final ConcurrentMap<String, Object> attributes = new ConcurrentHashMap<String, Object>();
+  private RequestTimings timings;
+  private String body;
+  // guarded by this, set once onRequestEnd is due
+  private boolean ended;
+
+  public RequestInfo(String method, String path) {
+    this.method = method;
+    this.path = path;
+  }
+
+  /**
+   * @return the HTTP method: GET, POST, PUT or DELETE
+   */
+  public String getMethod() {
+    return method;
+  }
+
+  /**
+   * @return the path of the request, with its query string
+   */
+  public String getPath() {
+    return path;
+  }
+
+  /**
+   * @return the breakdown of the time spent on the request, complete once the request ended
+   */
+  public RequestTimings getTimings() {
+    return timings;
+  }
+
+  void setTimings(RequestTimings timings) {
+    this.timings = timings;
+  }
+
+  /**
+   * @return the JSON body, or null
+   */
+  String getBody() {
+    return body;
+  }
+
+  void setBody(String body) {
+    this.body = body;
+  }
+
+  /**
+   * Must be called holding the lock of this instance, as for the notifications of the attempts
+   *
+   * @return true once the end of the request is notified: its attempts still in flight are no longer reported
+   */
+  boolean isEnded() {
+    return ended;
+  }
+
+  synchronized void end() {
+    ended = true;
+  }
+
+  /**
+   * Allow a listener to keep its own state for the request (e.g. a tracing span)
+   *
+   * @param value the value, not null
+   */
+  public void setAttribute(String name, Object value) {
+    attributes.put(name, value);
+  }
+
+  /**
+   * @return the value set by a listener, or null
+   */
+  public Object getAttribute(String name) {
+    return attributes.get(name);
+  }
+
+  @Override
+  public String toString() {
+    return "RequestInfo{" +
+      "method='" + method + '\'' +
+      ", path='" + path + '\'' +
+      '}';
+  }
+}
@@ -0,0 +1,43 @@
+package com.algolia.search.saas;
+
+/**
+ * Notified of the requests sent by an {@link APIClient}, registered with {@link APIClient#addRequestListener(RequestListener)}.
+ * <p>
+ * A request is sent to one host after the other until one of them answers, each try is an attempt.
+ * The methods are called by the thread sending the request (a background thread for a hedged search),
+ * so they must be fast and thread-safe. An exception thrown by a listener is ignored.
+ * No notification follows {@link #onRequestEnd}: an attempt of a hedged search still in flight is not reported anymore.
+ */
+public interface RequestListener {
+
+  /**
+   * Called once per request, before its first attempt
+   */
+  void onRequestStart(RequestInfo request);
+
+  /**
+   * Called before sending the request to a host
+   *
+   * @param bytesSent the size of the body, as sent (possibly compressed)
+   */
+  void onAttemptStart(RequestInfo request, String host, int bytesSent);
+
+  /**
+   * Called once the host answered, or failed to answer
+   *
+   * @param statusCode    the HTTP status code, 0 if the host did not answer
+   * @param error         null if the attempt succeeded, an {@link AlgoliaInnerException} if the next host is tried,
+   *                      or the {@link AlgoliaException} ending the request (e.g. for a 4xx status code)
+   * @param latencyMS     time spent on the attempt, including the reading of the response
+   * @param bytesReceived the size of the body, as received (possibly compressed)
+   */
+  void onAttemptEnd(RequestInfo request, String host, int statusCode, Exception error, long latencyMS, long bytesReceived);
+
+  /**
+   * Called once per request, after its last attempt
+   *
+   * @param error      null if the request succeeded, otherwise the exception thrown to the caller
+   * @param durationMS time spent on the request, all attempts included
+   */
+  void onRequestEnd(RequestInfo request, AlgoliaException error, long durationMS);
+}
@@ -10,6 +10,9 @@ public class RequestOptions {
   private final Map<String, String> headers = new HashMap<String, String>();
   private final Map<String, String> queryParams = new HashMap<String, String>();
   private String forwardedFor;
+  private Integer compressionThreshold;
+  private Long requestDeadlineMS;
+  private RequestTimings timings;
 
   public String getForwardedFor() {
     return forwardedFor;
@@ -20,6 +23,49 @@ public class RequestOptions {
     return this;
   }
 
+  public Integer getCompressionThreshold() {
+    return compressionThreshold;
+  }
+
+  /**
+   * Override the client setting for gzip compression of the request body
+   *
+   * @param compressionThreshold minimum size of the body to compress it, a negative value disables compression
+   */
+  public RequestOptions setCompressionThreshold(int compressionThreshold) {
+    this.compressionThreshold = compressionThreshold;
+    return this;
+  }
+
+  public Long getRequestDeadline() {
+    return requestDeadlineMS;
+  }
+
+  /**
+   * Override the client setting for the maximum duration of the request, all hosts retries included
+   *
+   * @param requestDeadlineMS maximum duration in MS, 0 to only rely on the timeouts of each attempt
+   */
+  public RequestOptions setRequestDeadline(long requestDeadlineMS) {
+    this.requestDeadlineMS = requestDeadlineMS;
+    return this;
+  }
+
+  public RequestTimings getTimings() {
+    return timings;
+  }
+
+  /**
+   * Record the time spent in each phase of the request (pool lease, DNS, connect, TLS, time to first byte,
+   * download, decompression, JSON parsing) and the processing time reported by the engine
+   *
+   * @param timings filled by the request, a new instance must be given for each request
+   */
+  public RequestOptions setTimings(RequestTimings timings) {
+    this.timings = timings;
+    return this;
+  }
+
   public RequestOptions addExtraHeader(String key, String value) {
     headers.put(key, value);
     return this;
@@ -41,12 +87,29 @@ public class RequestOptions {
     return queryParams;
   }
 
+  /**
+   * @return a copy of these options, with the same timings
+   */
+  RequestOptions copy() {
+    RequestOptions copy = new RequestOptions();
+    copy.headers.putAll(headers);
+    copy.queryParams.putAll(queryParams);
+    copy.forwardedFor = forwardedFor;
+    copy.compressionThreshold = compressionThreshold;
+    copy.requestDeadlineMS = requestDeadlineMS;
+    copy.timings = timings;
+    return copy;
+  }
+
   @Override
   public String toString() {
     return "RequestOptions{" +
       "headers=" + headers +
       ", queryParams=" + queryParams +
       ", forwardedFor='" + forwardedFor + '\'' +
+      ", compressionThreshold=" + compressionThreshold +
+      ", requestDeadlineMS=" + requestDeadlineMS +
+      ", timings=" + timings +
       '}';
   }
 }
@@ -0,0 +1,129 @@
+package com.algolia.search.saas;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Breakdown of the time spent on a request, filled by the client when given with {@link RequestOptions#setTimings(RequestTimings)}.
+ * The time of the phases is summed over all the attempts of the request (e.g. the connect time of a host that failed is included),
+ * so the client overhead is the total minus the sum of the phases.
+ * <p>
+ * A new instance must be used for each request.
+ */
+@SuppressWarnings("WeakerAccess")
+public class RequestTimings {
+
+  public enum Phase {
+    /**
+     * Waiting for a connection from the pool
+     */
+    POOL_LEASE("poolLease"),
+    /**
+     * Resolving the host name of a new connection
+     */
+    DNS("dns"),
+    /**
+     * Opening the TCP connection of a new connection
+     */
+    CONNECT("connect"),
+    /**
+     * TLS handshake of a new connection
+     */
+    TLS("tls"),
+    /**
+     * Sending the request and waiting for the status line and headers of the response
+     */
+    TIME_TO_FIRST_BYTE("timeToFirstByte"),
+    /**
+     * Receiving the body of the response
+     */
+    DOWNLOAD("download"),
+    /**
+     * Decompressing a gzipped body
+     */
+    DECOMPRESS("decompress"),
+    /**
+     * Parsing the JSON body
+     */
+    PARSE("parse");
+
+    private final String key;
+
+    Phase(String key) {
+      this.key = key;
+    }
+
+    /**
+     * @return the name of the phase in the metrics, e.g. timeToFirstByte
+     */
+    public String getKey() {
+      return key;
+    }
+  }
+
+  private final AtomicLongArray phaseNanos = new AtomicLongArray(Phase.values().length);
+  private volatile long totalNanos = -1;
+  private volatile int processingTimeMS = -1;
+  private final AtomicInteger attempts = new AtomicInteger();
+
+  void addPhase(Phase phase, long nanos) {
+    if (nanos > 0) {
+      phaseNanos.addAndGet(phase.ordinal(), nanos);
+    }
+  }
+
+  /**
+   * @return the time spent in the phase in microseconds, all attempts included
+   */
+  public long getPhaseMicros(Phase phase) {
+    return TimeUnit.NANOSECONDS.toMicros(phaseNanos.get(phase.ordinal()));
+  }
+
+  /**
+   * @return the time spent on the whole request in microseconds, or -1 if the request is not finished
+   */
+  public long getTotalMicros() {
+    long total = totalNanos;
+    return total < 0 ? -1 : TimeUnit.NANOSECONDS.toMicros(total);
+  }
+
+  /**
+   * @return the processing time reported by the engine (processingTimeMS in the response), or -1 if absent
+   */
+  public int getProcessingTimeMS() {
+    return processingTimeMS;
+  }
+
+  /**
+   * @return the number of hosts the request was sent to
+   */
+  public int getAttempts() {
+    return attempts.get();
+  }
+
+  void attempted() {
+    attempts.incrementAndGet();
+  }
+
+  void setProcessingTimeMS(int processingTimeMS) {
+    this.processingTimeMS = processingTimeMS;
+  }
+
+  void finished(long totalNanos) {
+    this.totalNanos = totalNanos;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder("RequestTimings{");
+    for (Phase phase : Phase.values()) {
+      builder.append(phase.getKey()).append("Micros=").append(getPhaseMicros(phase)).append(", ");
+    }
+    return builder
+      .append("totalMicros=").append(getTotalMicros())
+      .append(", processingTimeMS=").append(processingTimeMS)
+      .append(", attempts=").append(attempts.get())
+      .append('}').toString();
+  }
+}
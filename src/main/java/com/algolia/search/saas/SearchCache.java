@@ -0,0 +1,601 @@
+package com.algolia.search.saas;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process cache of the search results of one {@link APIClient}, set with {@link APIClient#setSearchCache(SearchCache)}.
+ * <p>
+ * Caches search, multipleQueries and searchInFacetValues. The key is the index, the search parameters (whatever their order)
+ * and the extra headers and query parameters of the RequestOptions. The least recently used entries are evicted
+ * when the size of the cached responses exceeds the limit.
+ * <p>
+ * The writes sent through the client (saveObjects, batch, setSettings, clearIndex, moveIndex...) evict the entries
+ * of the written index; the writes sent by other clients are only seen once the entries expire.
+ * A cache must not be shared by several clients, as their API keys may give different results.
+ * <p>
+ * An expired entry can still be served while it is refreshed in the background (stale-while-revalidate),
+ * or when no host answers (stale-if-error), see {@link #setStaleWhileRevalidate(long)} and {@link #setStaleIfError(long)}.
+ */
+@SuppressWarnings("WeakerAccess")
+public class SearchCache {
+  // estimated memory used by an entry besides its key and response
+  private static final int ENTRY_OVERHEAD_BYTES = 128;
+
+  private final long maxBytes;
+  private final long ttlNanos;
+  private volatile long staleWhileRevalidateNanos = 0;
+  private volatile long staleIfErrorNanos = 0;
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+  private final Map<String, Set<String>> keysByIndex = new HashMap<String, Set<String>>();
+  private long bytes = 0;
+  // incremented by each write, a response is not cached if one of its indexes was written while it was fetched
+  private final AtomicLong version = new AtomicLong();
+  // version of the last write of each index, of the last write of any index and of the last clear
+  // an index is kept only while a fill started before its last write, in the order of the writes
+  private final LinkedHashMap<String, Long> writeVersions = new LinkedHashMap<String, Long>();
+  // number of fills in flight by the version when they started
+  private final TreeMap<Long, Integer> fills = new TreeMap<Long, Integer>();
+  private long lastWriteVersion = 0;
+  private long clearVersion = 0;
+
+  private final StripedCounter hits = new StripedCounter();
+  private final StripedCounter misses = new StripedCounter();
+  private final StripedCounter evictions = new StripedCounter();
+  private final StripedCounter expirations = new StripedCounter();
+  private final StripedCounter invalidations = new StripedCounter();
+  private final StripedCounter staleHits = new StripedCounter();
+  private final StripedCounter staleIfErrorHits = new StripedCounter();
+  private final StripedCounter revalidations = new StripedCounter();
+
+  /**
+   * @param maxBytes maximum estimated size of the cached responses, kept both as received and parsed
+   * @param ttlMS    time to live of an entry in MS
+   */
+  public SearchCache(long maxBytes, long ttlMS) {
+    this.maxBytes = maxBytes;
+    this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMS);
+  }
+
+  /**
+   * Allow to serve an expired entry for a while, the first search hitting it refreshes it in the background
+   * so the next ones get the new results. Without it, the searches of an expired entry wait for the API.
+   *
+   * @param graceMS how long an entry can be served after it expired, in MS; 0 to disable
+   */
+  public SearchCache setStaleWhileRevalidate(long graceMS) {
+    this.staleWhileRevalidateNanos = TimeUnit.MILLISECONDS.toNanos(graceMS);
+    return this;
+  }
+
+  /**
+   * Allow to serve an expired entry when no host answers (the search fails with "Hosts unreachable"),
+   * to stay available during an outage
+   *
+   * @param maxStaleMS how long an entry can be served after it expired, in MS; 0 to disable
+   */
+  public SearchCache setStaleIfError(long maxStaleMS) {
+    this.staleIfErrorNanos = TimeUnit.MILLISECONDS.toNanos(maxStaleMS);
+    return this;
+  }
+
+  private static class Entry {
+    final String key;
+    final RawResponse response;
+    final List<String> indexNames;
+    final long expiresAtNanos;
+    final long size;
+    // true while a background refresh of the entry runs
+    boolean refreshing = false;
+
+    Entry(String key, RawResponse response, List<String> indexNames, long expiresAtNanos) {
+      this.key = key;
+      this.response = response;
+      this.indexNames = indexNames;
+      this.expiresAtNanos = expiresAtNanos;
+      this.size = response.getRetainedSize() + 2L * key.length() + ENTRY_OVERHEAD_BYTES;
+    }
+  }
+
+  /**
+   * What the cache holds for a key
+   */
+  static class Lookup {
+    static final Lookup MISS = new Lookup(null, false, false);
+
+    /**
+     * the cached response, possibly stale, null if none
+     */
+    final RawResponse response;
+    /**
+     * true if the response can be served: fresh, or stale while it is refreshed
+     */
+    final boolean servable;
+    /**
+     * true if the caller must refresh the entry in the background
+     */
+    final boolean revalidate;
+
+    Lookup(RawResponse response, boolean servable, boolean revalidate) {
+      this.response = response;
+      this.servable = servable;
+      this.revalidate = revalidate;
+    }
+  }
+
+  /**
+   * Key of a search, with the indexes it targets
+   */
+  static class Key {
+    final String value;
+    final List<String> indexNames;
+
+    Key(String value, List<String> indexNames) {
+      this.value = value;
+      this.indexNames = indexNames;
+    }
+  }
+
+  /**
+   * @return the number of searches answered from the cache
+   */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * @return the number of searches sent to the API, because they were not cached or their entry expired
+   */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * @return the number of searches answered with an expired entry while it was refreshed, included in the hits
+   */
+  public long getStaleHits() {
+    return staleHits.get();
+  }
+
+  /**
+   * @return the number of searches answered with an expired entry because no host answered
+   */
+  public long getStaleIfErrorHits() {
+    return staleIfErrorHits.get();
+  }
+
+  /**
+   * @return the number of background refreshes of expired entries
+   */
+  public long getRevalidations() {
+    return revalidations.get();
+  }
+
+  /**
+   * @return the number of entries evicted to stay below the size limit
+   */
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  /**
+   * @return the number of entries removed because they expired
+   */
+  public long getExpirations() {
+    return expirations.get();
+  }
+
+  /**
+   * @return the number of entries removed because their index was written
+   */
+  public long getInvalidations() {
+    return invalidations.get();
+  }
+
+  public synchronized int getEntryCount() {
+    return entries.size();
+  }
+
+  /**
+   * @return the estimated size of the entries, responses and keys included
+   */
+  public synchronized long getBytes() {
+    return bytes;
+  }
+
+  public synchronized void clear() {
+    entries.clear();
+    keysByIndex.clear();
+    bytes = 0;
+    clearVersion = version.incrementAndGet();
+    lastWriteVersion = clearVersion;
+    // older than the clear, so no longer needed
+    writeVersions.clear();
+  }
+
+  /**
+   * @return true for a search (on one or several indexes, or in the values of a facet)
+   */
+  static boolean isCacheable(String method, String path) {
+    if (!"POST".equals(method)) {
+      return false;
+    }
+    String[] segments = segments(path);
+    if (segments.length == 5 && "*".equals(segments[3])) {
+      return "queries".equals(segments[4]);
+    }
+    return segments.length == 5 && "query".equals(segments[4])
+      || segments.length == 7 && "facets".equals(segments[4]) && "query".equals(segments[6]);
+  }
+
+  /**
+   * @return true if a request with this method and path only reads: a GET, a search, a browse, a getObjects,
+   * or a search of the synonyms or of the rules
+   */
+  static boolean isRead(String method, String path) {
+    if ("GET".equals(method)) {
+      return true;
+    }
+    if (!"POST".equals(method)) {
+      return false;
+    }
+    if (isCacheable(method, path)) {
+      return true;
+    }
+    String[] segments = segments(path);
+    if (segments.length == 5) {
+      return "*".equals(segments[3]) ? "objects".equals(segments[4]) : "browse".equals(segments[4]);
+    }
+    return segments.length == 6 && !"*".equals(segments[3]) && "search".equals(segments[5])
+      && ("synonyms".equals(segments[4]) || "rules".equals(segments[4]));
+  }
+
+  /**
+   * @return true if a request with this method and path may modify an index
+   */
+  static boolean isWrite(String method, String path) {
+    return !isRead(method, path);
+  }
+
+  /**
+   * @return the segments of the path of an index, e.g. ["", "1", "indexes", "name", "query"]; an empty array for another path
+   */
+  private static String[] segments(String path) {
+    if (!path.startsWith("/1/indexes/")) {
+      return new String[0];
+    }
+    int queryStart = path.indexOf('?');
+    // the names of the indexes and objects are encoded, so they contain no slash
+    return (queryStart >= 0 ? path.substring(0, queryStart) : path).split("/", -1);
+  }
+
+  /**
+   * @return the key of a search, independent of the order of its parameters
+   */
+  static Key key(String path, String body, RequestOptions requestOptions) {
+    StringBuilder key = new StringBuilder(path.length() + (body != null ? body.length() : 0) + 32);
+    List<String> indexNames = new ArrayList<String>(1);
+    int queryStart = path.indexOf('?');
+    if (queryStart >= 0) {
+      key.append(path, 0, queryStart).append('?').append(canonicalParams(path.substring(queryStart + 1)));
+    } else {
+      key.append(path);
+    }
+    String indexName = ClientMetrics.indexName(path);
+    if (indexName != null) {
+      indexNames.add(indexName);
+    }
+    key.append('\n');
+    if (body != null) {
+      try {
+        JSONObject json = new JSONObject(body);
+        appendCanonical(key, json);
+        JSONArray requests = json.optJSONArray("requests");
+        if (requests != null) {
+          for (int i = 0; i < requests.length(); i++) {
+            JSONObject request = requests.optJSONObject(i);
+            if (request != null && request.has("indexName")) {
+              indexNames.add(request.getString("indexName"));
+            }
+          }
+        }
+      } catch (JSONException e) {
+        key.append(body);
+      }
+    }
+    key.append('\n');
+    appendSorted(key, requestOptions.generateExtraHeaders());
+    key.append('\n');
+    appendSorted(key, requestOptions.generateExtraQueryParams());
+    return new Key(key.toString(), indexNames);
+  }
+
+  private static void appendCanonical(StringBuilder key, Object value) throws JSONException {
+    if (value instanceof JSONObject) {
+      JSONObject object = (JSONObject) value;
+      List<String> names = new ArrayList<String>(object.keySet());
+      Collections.sort(names);
+      key.append('{');
+      for (String name : names) {
+        key.append(JSONObject.quote(name)).append(':');
+        Object child = object.get(name);
+        if ("params".equals(name) && child instanceof String) {
+          key.append(JSONObject.quote(canonicalParams((String) child)));
+        } else {
+          appendCanonical(key, child);
+        }
+        key.append(',');
+      }
+      key.append('}');
+    } else if (value instanceof JSONArray) {
+      JSONArray array = (JSONArray) value;
+      key.append('[');
+      for (int i = 0; i < array.length(); i++) {
+        appendCanonical(key, array.get(i));
+        key.append(',');
+      }
+      key.append(']');
+    } else if (value instanceof String) {
+      key.append(JSONObject.quote((String) value));
+    } else {
+      key.append(value);
+    }
+  }
+
+  private static String canonicalParams(String queryString) {
+    String[] params = queryString.split("&");
+    Arrays.sort(params);
+    StringBuilder builder = new StringBuilder(queryString.length());
+    for (String param : params) {
+      if (param.length() > 0) {
+        builder.append(param).append('&');
+      }
+    }
+    return builder.toString();
+  }
+
+  private static void appendSorted(StringBuilder key, Map<String, String> values) {
+    for (Map.Entry<String, String> entry : new TreeMap<String, String>(values).entrySet()) {
+      key.append(entry.getKey()).append('=').append(entry.getValue()).append('\n');
+    }
+  }
+
+  /**
+   * @return the cached response and whether it can be served, a response that cannot be served is only
+   * kept for {@link #getIfError(Key)}
+   */
+  synchronized Lookup lookup(Key key) {
+    Entry entry = entries.get(key.value);
+    if (entry == null) {
+      misses.increment();
+      return Lookup.MISS;
+    }
+    long expiredNanos = System.nanoTime() - entry.expiresAtNanos;
+    if (expiredNanos < 0) {
+      hits.increment();
+      return new Lookup(entry.response, true, false);
+    }
+    if (expiredNanos < staleWhileRevalidateNanos) {
+      hits.increment();
+      staleHits.increment();
+      boolean revalidate = !entry.refreshing;
+      if (revalidate) {
+        entry.refreshing = true;
+        revalidations.increment();
+      }
+      return new Lookup(entry.response, true, revalidate);
+    }
+    misses.increment();
+    if (expiredNanos < staleIfErrorNanos) {
+      return new Lookup(entry.response, false, false);
+    }
+    remove(entry);
+    expirations.increment();
+    return Lookup.MISS;
+  }
+
+  /**
+   * @return the expired response that can be served as no host answered, or null
+   */
+  synchronized RawResponse getIfError(Key key) {
+    Entry entry = entries.get(key.value);
+    if (entry == null || System.nanoTime() - entry.expiresAtNanos >= staleIfErrorNanos) {
+      return null;
+    }
+    staleIfErrorHits.increment();
+    return entry.response;
+  }
+
+  /**
+   * Allow another search to refresh an entry, after a failed refresh or a refresh whose response was not cached
+   */
+  synchronized void revalidationFailed(Key key) {
+    Entry entry = entries.get(key.value);
+    if (entry != null) {
+      entry.refreshing = false;
+    }
+  }
+
+  /**
+   * Start to fetch a response to cache, {@link #endFill(long)} must be called once it is received or failed
+   *
+   * @return the current version, to give to {@link #put(Key, RawResponse, long)} once the response is received
+   */
+  synchronized long startFill() {
+    long current = version.get();
+    Integer count = fills.get(current);
+    fills.put(current, count == null ? 1 : count + 1);
+    return current;
+  }
+
+  /**
+   * @param version the version returned by {@link #startFill()}
+   */
+  synchronized void endFill(long version) {
+    Integer count = fills.get(version);
+    if (count == null) {
+      return;
+    }
+    if (count > 1) {
+      fills.put(version, count - 1);
+    } else {
+      fills.remove(version);
+    }
+    pruneWriteVersions();
+  }
+
+  /**
+   * Forget the writes older than any fill in flight, as they cannot reject its response
+   */
+  private void pruneWriteVersions() {
+    long oldestFill = fills.isEmpty() ? Long.MAX_VALUE : fills.firstKey();
+    Iterator<Long> writes = writeVersions.values().iterator();
+    while (writes.hasNext() && writes.next() <= oldestFill) {
+      writes.remove();
+    }
+  }
+
+  /**
+   * @return the number of indexes whose last write is kept to reject the fills in flight
+   */
+  synchronized int getWriteVersionCount() {
+    return writeVersions.size();
+  }
+
+  /**
+   * Cache a response, unless one of its indexes was written since the request was sent
+   *
+   * @param version the version when the request was sent
+   * @return false if the response was not cached, as one of its indexes was written
+   */
+  synchronized boolean put(Key key, RawResponse response, long version) {
+    if (isWrittenSince(key, version)) {
+      return false;
+    }
+    Entry previous = entries.get(key.value);
+    if (previous != null) {
+      remove(previous);
+    }
+    Entry entry = new Entry(key.value, response, key.indexNames, System.nanoTime() + ttlNanos);
+    if (entry.size > maxBytes) {
+      return true;
+    }
+    entries.put(entry.key, entry);
+    for (String indexName : entry.indexNames) {
+      Set<String> keys = keysByIndex.get(indexName);
+      if (keys == null) {
+        keys = new HashSet<String>();
+        keysByIndex.put(indexName, keys);
+      }
+      keys.add(entry.key);
+    }
+    bytes += entry.size;
+    Iterator<Entry> leastRecentlyUsed = entries.values().iterator();
+    while (bytes > maxBytes && leastRecentlyUsed.hasNext()) {
+      Entry evicted = leastRecentlyUsed.next();
+      leastRecentlyUsed.remove();
+      unindex(evicted);
+      evictions.increment();
+    }
+    return true;
+  }
+
+  private boolean isWrittenSince(Key key, long version) {
+    if (clearVersion > version) {
+      return true;
+    }
+    if (key.indexNames.isEmpty()) {
+      // the indexes of the search are not known
+      return lastWriteVersion > version;
+    }
+    for (String indexName : key.indexNames) {
+      Long writeVersion = writeVersions.get(indexName);
+      if (writeVersion != null && writeVersion > version) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Evict the entries of the indexes written by a request, called before it is sent and once it is done
+   */
+  void invalidate(String path, String body) {
+    if (path.contains("forwardToReplicas=true")) {
+      // the replicas are not known by the client
+      int count = getEntryCount();
+      clear();
+      invalidations.add(count);
+      return;
+    }
+    Set<String> indexNames = new HashSet<String>();
+    String indexName = ClientMetrics.indexName(path);
+    if (indexName != null) {
+      indexNames.add(indexName);
+    }
+    if (body != null && (indexName == null || path.endsWith("/operation"))) {
+      try {
+        JSONObject json = new JSONObject(body);
+        // the destination of a copy or a move
+        if (json.has("destination")) {
+          indexNames.add(json.getString("destination"));
+        }
+        // a batch on several indexes
+        JSONArray requests = json.optJSONArray("requests");
+        if (requests != null) {
+          for (int i = 0; i < requests.length(); i++) {
+            JSONObject request = requests.optJSONObject(i);
+            if (request != null && request.has("indexName")) {
+              indexNames.add(request.getString("indexName"));
+            }
+          }
+        }
+      } catch (JSONException e) {
+        // no other index written
+      }
+    }
+    synchronized (this) {
+      lastWriteVersion = version.incrementAndGet();
+      for (String name : indexNames) {
+        // moved last, to keep the writes in order
+        writeVersions.remove(name);
+        writeVersions.put(name, lastWriteVersion);
+        Set<String> keys = keysByIndex.get(name);
+        if (keys == null) {
+          continue;
+        }
+        for (String key : new ArrayList<String>(keys)) {
+          Entry entry = entries.get(key);
+          if (entry != null) {
+            remove(entry);
+            invalidations.increment();
+          }
+        }
+      }
+      pruneWriteVersions();
+    }
+  }
+
+  private void remove(Entry entry) {
+    entries.remove(entry.key);
+    unindex(entry);
+  }
+
+  private void unindex(Entry entry) {
+    bytes -= entry.size;
+    for (String indexName : entry.indexNames) {
+      Set<String> keys = keysByIndex.get(indexName);
+      if (keys != null) {
+        keys.remove(entry.key);
+        if (keys.isEmpty()) {
+          keysByIndex.remove(indexName);
+        }
+      }
+    }
+  }
+}
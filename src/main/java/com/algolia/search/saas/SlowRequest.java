@@ -0,0 +1,186 @@
+package com.algolia.search.saas;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A request slower than the threshold of a {@link SlowRequestLog}
+ */
+@SuppressWarnings("WeakerAccess")
+public class SlowRequest {
+
+  /**
+   * One try of the request on one host
+   */
+  public static class HostAttempt {
+    private final String host;
+    private final int statusCode;
+    private final long latencyMS;
+    private final String error;
+
+    public HostAttempt(String host, int statusCode, long latencyMS, String error) {
+      this.host = host;
+      this.statusCode = statusCode;
+      this.latencyMS = latencyMS;
+      this.error = error;
+    }
+
+    public String getHost() {
+      return host;
+    }
+
+    /**
+     * @return the HTTP status code, 0 if the host did not answer
+     */
+    public int getStatusCode() {
+      return statusCode;
+    }
+
+    public long getLatencyMS() {
+      return latencyMS;
+    }
+
+    /**
+     * @return the reason of the failure of the attempt, or null
+     */
+    public String getError() {
+      return error;
+    }
+
+    @Override
+    public String toString() {
+      return "HostAttempt{" +
+        "host='" + host + '\'' +
+        ", statusCode=" + statusCode +
+        ", latencyMS=" + latencyMS +
+        ", error='" + error + '\'' +
+        '}';
+    }
+  }
+
+  private final String method;
+  private final String endpoint;
+  private final String indexName;
+  private final List<String> params;
+  private final long durationMS;
+  private final String error;
+  private final List<HostAttempt> attempts;
+  private final RequestTimings timings;
+  private final long suppressed;
+
+  public SlowRequest(String method, String endpoint, String indexName, List<String> params, long durationMS, String error,
+                     List<HostAttempt> attempts, RequestTimings timings, long suppressed) {
+    this.method = method;
+    this.endpoint = endpoint;
+    this.indexName = indexName;
+    this.params = Collections.unmodifiableList(params);
+    this.durationMS = durationMS;
+    this.error = error;
+    this.attempts = Collections.unmodifiableList(attempts);
+    this.timings = timings;
+    this.suppressed = suppressed;
+  }
+
+  public String getMethod() {
+    return method;
+  }
+
+  /**
+   * @return the kind of request: search, multiQuery, browse, batch, getObject, task or other
+   */
+  public String getEndpoint() {
+    return endpoint;
+  }
+
+  /**
+   * @return the targeted index, or null for a request on several indexes
+   */
+  public String getIndexName() {
+    return indexName;
+  }
+
+  /**
+   * @return the search parameters, redacted and truncated, one per query for a multi-queries request;
+   * empty for a request without search parameters (e.g. a batch)
+   */
+  public List<String> getParams() {
+    return params;
+  }
+
+  public long getDurationMS() {
+    return durationMS;
+  }
+
+  /**
+   * @return the message of the exception thrown to the caller, or null if the request succeeded
+   */
+  public String getError() {
+    return error;
+  }
+
+  public List<HostAttempt> getAttempts() {
+    return attempts;
+  }
+
+  public RequestTimings getTimings() {
+    return timings;
+  }
+
+  /**
+   * @return the number of slow requests not logged since the previous one, because of the rate limit
+   */
+  public long getSuppressed() {
+    return suppressed;
+  }
+
+  /**
+   * @return the request as a JSON object, e.g. to write one JSON line per slow request
+   */
+  public JSONObject toJSONObject() {
+    JSONObject json = new JSONObject()
+      .put("method", method)
+      .put("endpoint", endpoint)
+      .put("durationMS", durationMS)
+      .put("params", new JSONArray(params));
+    if (indexName != null) {
+      json.put("indexName", indexName);
+    }
+    if (error != null) {
+      json.put("error", error);
+    }
+    JSONArray jsonAttempts = new JSONArray();
+    for (HostAttempt attempt : attempts) {
+      JSONObject jsonAttempt = new JSONObject()
+        .put("host", attempt.getHost())
+        .put("statusCode", attempt.getStatusCode())
+        .put("latencyMS", attempt.getLatencyMS());
+      if (attempt.getError() != null) {
+        jsonAttempt.put("error", attempt.getError());
+      }
+      jsonAttempts.put(jsonAttempt);
+    }
+    json.put("attempts", jsonAttempts);
+    if (timings != null) {
+      JSONObject jsonTimings = new JSONObject();
+      for (RequestTimings.Phase phase : RequestTimings.Phase.values()) {
+        jsonTimings.put(phase.getKey() + "Micros", timings.getPhaseMicros(phase));
+      }
+      if (timings.getProcessingTimeMS() >= 0) {
+        jsonTimings.put("processingTimeMS", timings.getProcessingTimeMS());
+      }
+      json.put("timings", jsonTimings);
+    }
+    if (suppressed > 0) {
+      json.put("suppressed", suppressed);
+    }
+    return json;
+  }
+
+  @Override
+  public String toString() {
+    return toJSONObject().toString();
+  }
+}
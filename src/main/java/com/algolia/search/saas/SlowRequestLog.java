@@ -0,0 +1,240 @@
+package com.algolia.search.saas;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Logs the requests slower than a threshold, with their search parameters, host attempts and timings,
+ * to find the few queries driving the tail latency. Registered with {@link APIClient#addRequestListener(RequestListener)}:
+ * <pre>
+ * client.addRequestListener(new SlowRequestLog(sink).setThreshold("search", 300).setMaxPerSecond(10));
+ * </pre>
+ * The slow requests are sampled then rate limited, the ones dropped by the rate limit are counted in the next logged one.
+ */
+@SuppressWarnings("WeakerAccess")
+public class SlowRequestLog implements RequestListener {
+  private static final String ATTEMPTS_ATTRIBUTE = SlowRequestLog.class.getName() + ".attempts";
+  private static final String REDACTED = "[redacted]";
+  private static final String ELLIPSIS = "...";
+
+  private final SlowRequestSink sink;
+  private final Map<String, Long> thresholds = new ConcurrentHashMap<String, Long>();
+  private volatile long defaultThresholdMS = 1000;
+  private volatile long minThresholdMS = 1000;
+  private volatile double sampleRate = 1;
+  private volatile int maxPerSecond = 10;
+  private volatile int maxValueLength = 64;
+  private volatile int maxParamsLength = 512;
+  private volatile Set<String> redactedParameters = Collections.singleton("userToken");
+  private final Random random = new Random();
+
+  private long windowStartNanos = System.nanoTime();
+  private int loggedInWindow = 0;
+  private long suppressed = 0;
+
+  /**
+   * @param sink the destination of the slow requests
+   */
+  public SlowRequestLog(SlowRequestSink sink) {
+    this.sink = sink;
+  }
+
+  /**
+   * Allow to set the duration above which a request is logged, for all kinds of requests without their own threshold.
+   * Default: 1000ms
+   */
+  public SlowRequestLog setDefaultThreshold(long thresholdMS) {
+    this.defaultThresholdMS = thresholdMS;
+    updateMinThreshold();
+    return this;
+  }
+
+  /**
+   * Allow to set the duration above which a request is logged, for one kind of request
+   *
+   * @param endpoint the kind of request: search, multiQuery, browse, batch, getObject, task or other
+   */
+  public SlowRequestLog setThreshold(String endpoint, long thresholdMS) {
+    thresholds.put(endpoint, thresholdMS);
+    updateMinThreshold();
+    return this;
+  }
+
+  private synchronized void updateMinThreshold() {
+    long min = defaultThresholdMS;
+    for (Long threshold : thresholds.values()) {
+      min = Math.min(min, threshold);
+    }
+    minThresholdMS = min;
+  }
+
+  /**
+   * Allow to only log a fraction of the slow requests. Default: 1, all of them
+   *
+   * @param sampleRate probability to log a slow request, between 0 and 1
+   */
+  public SlowRequestLog setSampleRate(double sampleRate) {
+    this.sampleRate = sampleRate;
+    return this;
+  }
+
+  /**
+   * Allow to cap the number of requests logged per second. Default: 10
+   */
+  public SlowRequestLog setMaxPerSecond(int maxPerSecond) {
+    this.maxPerSecond = maxPerSecond;
+    return this;
+  }
+
+  /**
+   * Allow to set the search parameters whose value is not logged. Default: userToken
+   */
+  public SlowRequestLog setRedactedParameters(Collection<String> redactedParameters) {
+    this.redactedParameters = new HashSet<String>(redactedParameters);
+    return this;
+  }
+
+  /**
+   * Allow to truncate the logged search parameters. Default: 64 characters per value, 512 for all the parameters of a query
+   */
+  public SlowRequestLog setMaxParamsLength(int maxValueLength, int maxParamsLength) {
+    this.maxValueLength = maxValueLength;
+    this.maxParamsLength = maxParamsLength;
+    return this;
+  }
+
+  @Override
+  public void onRequestStart(RequestInfo request) {
+    request.setAttribute(ATTEMPTS_ATTRIBUTE, Collections.synchronizedList(new ArrayList<SlowRequest.HostAttempt>(2)));
+  }
+
+  @Override
+  public void onAttemptStart(RequestInfo request, String host, int bytesSent) {
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  public void onAttemptEnd(RequestInfo request, String host, int statusCode, Exception error, long latencyMS, long bytesReceived) {
+    List<SlowRequest.HostAttempt> attempts = (List<SlowRequest.HostAttempt>) request.getAttribute(ATTEMPTS_ATTRIBUTE);
+    if (attempts != null) {
+      attempts.add(new SlowRequest.HostAttempt(host, statusCode, latencyMS, error != null ? error.getMessage() : null));
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  public void onRequestEnd(RequestInfo request, AlgoliaException error, long durationMS) {
+    if (durationMS < minThresholdMS) {
+      return;
+    }
+    String endpoint = ClientMetrics.endpoint(request.getMethod(), request.getPath());
+    Long threshold = thresholds.get(endpoint);
+    if (durationMS < (threshold != null ? threshold : defaultThresholdMS)) {
+      return;
+    }
+    if (sampleRate < 1 && random.nextDouble() >= sampleRate) {
+      return;
+    }
+    long suppressedBefore = acquire();
+    if (suppressedBefore < 0) {
+      return;
+    }
+    List<SlowRequest.HostAttempt> attempts = (List<SlowRequest.HostAttempt>) request.getAttribute(ATTEMPTS_ATTRIBUTE);
+    List<SlowRequest.HostAttempt> attemptsCopy;
+    if (attempts == null) {
+      attemptsCopy = new ArrayList<SlowRequest.HostAttempt>();
+    } else {
+      synchronized (attempts) {
+        attemptsCopy = new ArrayList<SlowRequest.HostAttempt>(attempts);
+      }
+    }
+    sink.log(new SlowRequest(request.getMethod(), endpoint, ClientMetrics.indexName(request.getPath()), params(request),
+      durationMS, error != null ? error.getMessage() : null, attemptsCopy, request.getTimings(), suppressedBefore));
+  }
+
+  /**
+   * @return the number of requests suppressed since the previous logged one, or -1 if this one must be suppressed
+   */
+  private synchronized long acquire() {
+    long now = System.nanoTime();
+    if (now - windowStartNanos >= TimeUnit.SECONDS.toNanos(1)) {
+      windowStartNanos = now;
+      loggedInWindow = 0;
+    }
+    if (loggedInWindow >= maxPerSecond) {
+      suppressed++;
+      return -1;
+    }
+    loggedInWindow++;
+    long result = suppressed;
+    suppressed = 0;
+    return result;
+  }
+
+  /**
+   * @return the search parameters of the query string of the path and of the body, only parsed for a logged request
+   */
+  private List<String> params(RequestInfo request) {
+    List<String> result = new ArrayList<String>();
+    String path = request.getPath();
+    int queryStart = path.indexOf('?');
+    if (queryStart >= 0) {
+      result.add(redact(path.substring(queryStart + 1)));
+    }
+    String body = request.getBody();
+    if (body == null || !body.startsWith("{")) {
+      return result;
+    }
+    try {
+      JSONObject json = new JSONObject(body);
+      if (json.has("params")) {
+        result.add(redact(json.getString("params")));
+      }
+      JSONArray requests = json.optJSONArray("requests");
+      if (requests != null) {
+        for (int i = 0; i < requests.length(); i++) {
+          JSONObject query = requests.optJSONObject(i);
+          if (query != null && query.has("params")) {
+            result.add(redact(query.getString("params")));
+          }
+        }
+      }
+    } catch (JSONException e) {
+      // not a search, no parameters
+    }
+    return result;
+  }
+
+  private String redact(String queryString) {
+    Set<String> redacted = redactedParameters;
+    StringBuilder builder = new StringBuilder(Math.min(queryString.length(), maxParamsLength));
+    for (String param : queryString.split("&")) {
+      if (param.length() == 0) {
+        continue;
+      }
+      if (builder.length() > 0) {
+        builder.append('&');
+      }
+      int equals = param.indexOf('=');
+      String name = equals >= 0 ? param.substring(0, equals) : param;
+      builder.append(name);
+      if (equals >= 0) {
+        String value = param.substring(equals + 1);
+        builder.append('=').append(redacted.contains(name) ? REDACTED : truncate(value, maxValueLength));
+      }
+      if (builder.length() > maxParamsLength) {
+        break;
+      }
+    }
+    return truncate(builder.toString(), maxParamsLength);
+  }
+
+  private static String truncate(String value, int maxLength) {
+    return value.length() <= maxLength ? value : value.substring(0, maxLength) + ELLIPSIS;
+  }
+}
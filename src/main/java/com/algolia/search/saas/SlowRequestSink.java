@@ -0,0 +1,10 @@
+package com.algolia.search.saas;
+
+/**
+ * Destination of the requests logged by a {@link SlowRequestLog}, e.g. a logging framework or a metrics pipeline.
+ * Called by the thread that sent the request, so it must be fast and thread-safe.
+ */
+public interface SlowRequestSink {
+
+  void log(SlowRequest request);
+}
@@ -0,0 +1,31 @@
+package com.algolia.search.saas;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter spread over several cells picked by thread, so concurrent increments rarely contend on the same cache line
+ */
+class StripedCounter {
+  private static final int STRIPES = 8;
+  // 8 longs between two cells, to keep them on different cache lines
+  private static final int PADDING = 8;
+
+  private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+  void add(long value) {
+    int stripe = (int) (Thread.currentThread().getId() % STRIPES);
+    cells.addAndGet(stripe * PADDING, value);
+  }
+
+  void increment() {
+    add(1);
+  }
+
+  long get() {
+    long sum = 0;
+    for (int i = 0; i < STRIPES; i++) {
+      sum += cells.get(i * PADDING);
+    }
+    return sum;
+  }
+}
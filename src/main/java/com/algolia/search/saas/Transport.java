@@ -0,0 +1,27 @@
+package com.algolia.search.saas;
+
+import java.io.IOException;
+
+/**
+ * Sends one HTTP request to one host. The retry strategy, the headers and the JSON handling stay in {@code APIClient},
+ * so an implementation only has to move bytes.
+ * <p>
+ * Implementations must be thread-safe: the same transport is used concurrently by all the requests of a client.
+ * The default implementation is {@link ApacheHttpTransport}.
+ */
+public interface Transport {
+
+  /**
+   * Send a request and wait for the status line and headers of the response
+   *
+   * @param request the request to send
+   * @return the response, whose body must be closed by the caller
+   * @throws IOException if the host could not be reached or did not answer in time, the next host is then tried
+   */
+  TransportResponse execute(TransportRequest request) throws IOException;
+
+  /**
+   * Release the connections and threads held by this transport
+   */
+  void close();
+}
@@ -0,0 +1,147 @@
+package com.algolia.search.saas;
+
+import java.net.URI;
+import java.util.Map;
+
+/**
+ * Description of one attempt of a request on one host, as given to a {@link Transport}
+ */
+@SuppressWarnings("WeakerAccess")
+public class TransportRequest {
+
+  private final String method;
+  private final URI uri;
+  private final Map<String, String> headers;
+  private final byte[] body;
+  private final int connectTimeoutMS;
+  private final int readTimeoutMS;
+  private Runnable abortHandler;
+  private boolean aborted;
+  private RequestTimings timings;
+  private long recordedNanos = 0;
+  private boolean staticTimeouts = false;
+
+  /**
+   * @param headers the headers, not copied: the map must not be modified afterwards
+   */
+  public TransportRequest(String method, URI uri, Map<String, String> headers, byte[] body, int connectTimeoutMS, int readTimeoutMS) {
+    this.method = method;
+    this.uri = uri;
+    this.headers = headers;
+    this.body = body;
+    this.connectTimeoutMS = connectTimeoutMS;
+    this.readTimeoutMS = readTimeoutMS;
+  }
+
+  /**
+   * @return the HTTP method: GET, POST, PUT or DELETE
+   */
+  public String getMethod() {
+    return method;
+  }
+
+  /**
+   * @return the full URI, including the scheme and the host
+   */
+  public URI getUri() {
+    return uri;
+  }
+
+  public Map<String, String> getHeaders() {
+    return headers;
+  }
+
+  /**
+   * @return the encoded body, or null if the request has no body
+   */
+  public byte[] getBody() {
+    return body;
+  }
+
+  /**
+   * @return the maximum time to open a connection (or to get one from a pool), in MS
+   */
+  public int getConnectTimeoutMS() {
+    return connectTimeoutMS;
+  }
+
+  /**
+   * @return the maximum time to wait for data from the host, in MS
+   */
+  public int getReadTimeoutMS() {
+    return readTimeoutMS;
+  }
+
+  void setStaticTimeouts(boolean staticTimeouts) {
+    this.staticTimeouts = staticTimeouts;
+  }
+
+  /**
+   * @return true if the timeouts are the ones set on the client, shared by many requests; false if they were adapted
+   * to the latency of the host or reduced to the time left before the deadline of the request
+   */
+  public boolean hasStaticTimeouts() {
+    return staticTimeouts;
+  }
+
+  /**
+   * Register the action a transport runs if the client gives up on this request while it is in flight
+   *
+   * @param abortHandler the action, typically closing the underlying connection
+   * @return false if the request was already aborted, in which case it must not be sent
+   */
+  public synchronized boolean setAbortHandler(Runnable abortHandler) {
+    this.abortHandler = abortHandler;
+    return !aborted;
+  }
+
+  /**
+   * Abort this request, the transport is expected to fail it with an IOException
+   */
+  public void abort() {
+    Runnable handler;
+    synchronized (this) {
+      aborted = true;
+      handler = abortHandler;
+    }
+    if (handler != null) {
+      handler.run();
+    }
+  }
+
+  public synchronized boolean isAborted() {
+    return aborted;
+  }
+
+  void setTimings(RequestTimings timings) {
+    this.timings = timings;
+  }
+
+  /**
+   * @return true if the client records the timings of this request, a transport can then report the connection phases
+   */
+  public boolean isTimed() {
+    return timings != null;
+  }
+
+  /**
+   * Report the time spent by the transport in one of the phases before the request is sent:
+   * {@link RequestTimings.Phase#POOL_LEASE}, {@link RequestTimings.Phase#DNS}, {@link RequestTimings.Phase#CONNECT}
+   * or {@link RequestTimings.Phase#TLS}. The rest of the time spent in {@link Transport#execute(TransportRequest)}
+   * is counted as time to first byte. Ignored if the request is not timed.
+   */
+  public void recordPhase(RequestTimings.Phase phase, long nanos) {
+    if (timings != null) {
+      timings.addPhase(phase, nanos);
+      recordedNanos += nanos;
+    }
+  }
+
+  RequestTimings getTimings() {
+    return timings;
+  }
+
+  long getRecordedNanos() {
+    return recordedNanos;
+  }
+}
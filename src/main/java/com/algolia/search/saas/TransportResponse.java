@@ -0,0 +1,68 @@
+package com.algolia.search.saas;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Response returned by a {@link Transport}. The body is streamed: it must be closed to release the connection.
+ */
+@SuppressWarnings("WeakerAccess")
+public class TransportResponse {
+
+  private final int statusCode;
+  private final Map<String, String> headers;
+  private final InputStream body;
+  private final long contentLength;
+
+  /**
+   * @param statusCode    the HTTP status code
+   * @param headers       the response headers, names are case insensitive
+   * @param body          the body as sent by the host (not decompressed)
+   * @param contentLength the length of the body, or -1 if unknown
+   */
+  public TransportResponse(int statusCode, Map<String, String> headers, InputStream body, long contentLength) {
+    this.statusCode = statusCode;
+    Map<String, String> caseInsensitiveHeaders = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+    caseInsensitiveHeaders.putAll(headers);
+    this.headers = Collections.unmodifiableMap(caseInsensitiveHeaders);
+    this.body = body;
+    this.contentLength = contentLength;
+  }
+
+  public int getStatusCode() {
+    return statusCode;
+  }
+
+  /**
+   * @return the value of the header, or null if absent
+   */
+  public String getHeader(String name) {
+    return headers.get(name);
+  }
+
+  public Map<String, String> getHeaders() {
+    return headers;
+  }
+
+  public InputStream getBody() {
+    return body;
+  }
+
+  public long getContentLength() {
+    return contentLength;
+  }
+
+  /**
+   * Close the body and release the underlying connection
+   */
+  public void close() {
+    try {
+      body.close();
+    } catch (IOException e) {
+      // not fatal, the connection is discarded
+    }
+  }
+}
@@ -0,0 +1,112 @@
+package com.algolia.search.saas;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * {@link Transport} based on the HTTP client of Java 11+, multiplexing the concurrent requests to a host
+ * over a few HTTP/2 connections instead of opening one connection per request in flight.
+ * <p>
+ * Only available on Java 11+ (it is shipped in the versioned part of the multi-release jar):
+ * {@code new APIClient(applicationID, apiKey, new Http2Transport())}
+ * <p>
+ * Differences with {@link ApacheHttpTransport}:
+ * <ul>
+ * <li>the connection pool settings of the client are not available</li>
+ * <li>the connect and read timeouts of a request are not enforced separately, as the HttpClient has no
+ * per-request connect timeout: their sum bounds the whole exchange, from the connection to the last byte of the body,
+ * which is not bounded if either of them is 0</li>
+ * <li>the body of a response is received entirely before it is parsed</li>
+ * </ul>
+ */
+public class Http2Transport implements Transport {
+
+  private final HttpClient httpClient;
+
+  public Http2Transport() {
+    this(HttpClient.newBuilder()
+      .version(HttpClient.Version.HTTP_2)
+      .followRedirects(HttpClient.Redirect.NEVER)
+      .build());
+  }
+
+  /**
+   * @param httpClient the client sending the requests, e.g. with a custom executor or SSL context
+   */
+  public Http2Transport(HttpClient httpClient) {
+    this.httpClient = httpClient;
+  }
+
+  @Override
+  public TransportResponse execute(TransportRequest request) throws IOException {
+    // a timeout of 0 is infinite, as with the other transports
+    long timeoutMS = request.getConnectTimeoutMS() > 0 && request.getReadTimeoutMS() > 0 ?
+      (long) request.getConnectTimeoutMS() + request.getReadTimeoutMS() : 0;
+    HttpRequest.Builder builder = HttpRequest.newBuilder(request.getUri())
+      .method(request.getMethod(), request.getBody() != null ?
+        HttpRequest.BodyPublishers.ofByteArray(request.getBody()) :
+        HttpRequest.BodyPublishers.noBody());
+    if (timeoutMS > 0) {
+      builder.timeout(Duration.ofMillis(timeoutMS));
+    }
+    for (Map.Entry<String, String> entry : request.getHeaders().entrySet()) {
+      builder.header(entry.getKey(), entry.getValue());
+    }
+
+    // the timeout of the HttpRequest only bounds the wait for the headers, a body that stalls would block forever
+    CompletableFuture<HttpResponse<byte[]>> future = httpClient.sendAsync(builder.build(), HttpResponse.BodyHandlers.ofByteArray());
+    if (!request.setAbortHandler(() -> future.cancel(true))) {
+      future.cancel(true);
+      throw new IOException("Request aborted");
+    }
+
+    HttpResponse<byte[]> response;
+    try {
+      response = timeoutMS > 0 ? future.get(timeoutMS, TimeUnit.MILLISECONDS) : future.get();
+    } catch (TimeoutException e) {
+      future.cancel(true);
+      throw new SocketTimeoutException("Read timed out: no complete response within " + timeoutMS + "ms");
+    } catch (CancellationException e) {
+      throw new IOException("Request aborted");
+    } catch (InterruptedException e) {
+      future.cancel(true);
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for the response");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    }
+
+    Map<String, String> headers = new HashMap<>();
+    for (Map.Entry<String, List<String>> entry : response.headers().map().entrySet()) {
+      if (!entry.getValue().isEmpty()) {
+        headers.put(entry.getKey(), entry.getValue().get(0));
+      }
+    }
+    byte[] body = response.body();
+    return new TransportResponse(response.statusCode(), headers, new ByteArrayInputStream(body), body.length);
+  }
+
+  /**
+   * The HttpClient of Java 11 has no close method, its connections are released when it is garbage collected
+   */
+  @Override
+  public void close() {
+  }
+}
@@ -0,0 +1,321 @@
+package com.algolia.search.saas;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.StackTrace;
+
+import java.lang.ref.WeakReference;
+
+/**
+ * Java Flight Recorder events of a client, loaded by {@link FlightRecorderEvents#load(APIClient)}.
+ * <p>
+ * Each event is only created while a recording enables it. The request listener is added to the client
+ * when a recording enabling the request or attempt events starts, and removed when no such recording runs anymore. The client is only weakly referenced by the flight recorder,
+ * so a client that is not closed can still be collected.
+ */
+class JdkFlightRecorderEvents extends FlightRecorderEvents implements RequestListener {
+  private static final String REQUEST_EVENT = JdkFlightRecorderEvents.class.getName() + ".request";
+  private static final String ATTEMPT_EVENT = JdkFlightRecorderEvents.class.getName() + ".attempt.";
+
+  private static final EventType REQUEST_EVENT_TYPE = EventType.getEventType(RequestEvent.class);
+  private static final EventType ATTEMPT_EVENT_TYPE = EventType.getEventType(AttemptEvent.class);
+
+  private final WeakReference<APIClient> client;
+  private final RecorderListener recorderListener;
+  private boolean listening = false;
+
+  JdkFlightRecorderEvents(APIClient client) {
+    this.client = new WeakReference<>(client);
+    this.recorderListener = new RecorderListener(this);
+    FlightRecorder.addListener(recorderListener);
+    update();
+  }
+
+  /**
+   * Follows the recordings, without holding the client
+   */
+  private static class RecorderListener implements FlightRecorderListener {
+    private final WeakReference<JdkFlightRecorderEvents> events;
+
+    RecorderListener(JdkFlightRecorderEvents events) {
+      this.events = new WeakReference<>(events);
+    }
+
+    @Override
+    public void recorderInitialized(FlightRecorder recorder) {
+      recordingStateChanged(null);
+    }
+
+    @Override
+    public void recordingStateChanged(Recording recording) {
+      JdkFlightRecorderEvents current = events.get();
+      if (current == null || current.client.get() == null) {
+        FlightRecorder.removeListener(this);
+      } else {
+        current.update();
+      }
+    }
+  }
+
+  private synchronized void update() {
+    APIClient current = client.get();
+    if (current == null) {
+      return;
+    }
+    // an event type is enabled only while a recording running enables it
+    boolean listen = FlightRecorder.isAvailable() && FlightRecorder.isInitialized() &&
+      (REQUEST_EVENT_TYPE.isEnabled() || ATTEMPT_EVENT_TYPE.isEnabled());
+    if (listen && !listening) {
+      current.addRequestListener(this);
+      listening = true;
+    } else if (!listen && listening) {
+      current.removeRequestListener(this);
+      listening = false;
+    }
+  }
+
+  /**
+   * @return true while the request listener is added to the client
+   */
+  synchronized boolean isListening() {
+    return listening;
+  }
+
+  @Override
+  synchronized void close() {
+    FlightRecorder.removeListener(recorderListener);
+    APIClient current = client.get();
+    if (listening && current != null) {
+      current.removeRequestListener(this);
+    }
+    listening = false;
+  }
+
+  @Name("com.algolia.search.Request")
+  @Label("Algolia Request")
+  @Category("Algolia")
+  @Description("A call to the Algolia API, all the attempts on the hosts included")
+  static class RequestEvent extends Event {
+    @Label("Method")
+    String method;
+
+    @Label("Endpoint")
+    @Description("Kind of request: search, multiQuery, browse, batch, getObject, task or other")
+    String endpoint;
+
+    @Label("Index Name")
+    String indexName;
+
+    @Label("Status Code")
+    @Description("Status code of the last attempt, 0 if no host answered")
+    int statusCode;
+
+    @Label("Attempts")
+    int attempts;
+
+    @Label("Retries")
+    int retries;
+
+    @Label("Bytes Sent")
+    @DataAmount
+    long bytesSent;
+
+    @Label("Bytes Received")
+    @DataAmount
+    long bytesReceived;
+
+    @Label("Error")
+    String error;
+  }
+
+  @Name("com.algolia.search.Attempt")
+  @Label("Algolia Attempt")
+  @Category("Algolia")
+  @Description("A try of a call on one host")
+  @StackTrace(false)
+  static class AttemptEvent extends Event {
+    @Label("Endpoint")
+    String endpoint;
+
+    @Label("Index Name")
+    String indexName;
+
+    @Label("Host")
+    String host;
+
+    @Label("Status Code")
+    @Description("0 if the host did not answer")
+    int statusCode;
+
+    @Label("Bytes Sent")
+    @DataAmount
+    long bytesSent;
+
+    @Label("Bytes Received")
+    @DataAmount
+    long bytesReceived;
+
+    @Label("Error")
+    String error;
+  }
+
+  @Name("com.algolia.search.WaitTask")
+  @Label("Algolia Wait Task")
+  @Category("Algolia")
+  @Description("Polling of the status of a task until it is published")
+  static class WaitTaskEvent extends Event {
+    @Label("Index Name")
+    String indexName;
+
+    @Label("Task ID")
+    String taskID;
+
+    @Label("Polls")
+    int polls;
+
+    @Label("Status")
+    String status;
+  }
+
+  @Name("com.algolia.search.BrowsePage")
+  @Label("Algolia Browse Page")
+  @Category("Algolia")
+  @Description("Fetch of one page of hits by an index browser")
+  static class BrowsePageEvent extends Event {
+    @Label("Index Name")
+    String indexName;
+
+    @Label("Hits")
+    @Description("-1 if the page could not be fetched")
+    int hits;
+
+    @Label("With Cursor")
+    boolean hasCursor;
+  }
+
+  @Override
+  public void onRequestStart(RequestInfo request) {
+    RequestEvent event = new RequestEvent();
+    if (!event.isEnabled()) {
+      return;
+    }
+    event.begin();
+    event.method = request.getMethod();
+    event.endpoint = ClientMetrics.endpoint(request.getMethod(), request.getPath());
+    event.indexName = ClientMetrics.indexName(request.getPath());
+    request.setAttribute(REQUEST_EVENT, event);
+  }
+
+  @Override
+  public void onAttemptStart(RequestInfo request, String host, int bytesSent) {
+    RequestEvent requestEvent = (RequestEvent) request.getAttribute(REQUEST_EVENT);
+    if (requestEvent != null) {
+      // the attempts of a hedged search run concurrently
+      synchronized (requestEvent) {
+        requestEvent.attempts++;
+        requestEvent.bytesSent += bytesSent;
+      }
+    }
+    AttemptEvent event = new AttemptEvent();
+    if (!event.isEnabled()) {
+      return;
+    }
+    event.begin();
+    event.endpoint = requestEvent != null ? requestEvent.endpoint : ClientMetrics.endpoint(request.getMethod(), request.getPath());
+    event.indexName = requestEvent != null ? requestEvent.indexName : ClientMetrics.indexName(request.getPath());
+    event.host = host;
+    event.bytesSent = bytesSent;
+    request.setAttribute(ATTEMPT_EVENT + host, event);
+  }
+
+  @Override
+  public void onAttemptEnd(RequestInfo request, String host, int statusCode, Exception error, long latencyMS, long bytesReceived) {
+    RequestEvent requestEvent = (RequestEvent) request.getAttribute(REQUEST_EVENT);
+    if (requestEvent != null) {
+      synchronized (requestEvent) {
+        requestEvent.statusCode = statusCode;
+        requestEvent.bytesReceived += bytesReceived;
+      }
+    }
+    AttemptEvent event = (AttemptEvent) request.getAttribute(ATTEMPT_EVENT + host);
+    if (event == null) {
+      return;
+    }
+    event.end();
+    if (event.shouldCommit()) {
+      event.statusCode = statusCode;
+      event.bytesReceived = bytesReceived;
+      event.error = error != null ? error.getMessage() : null;
+      event.commit();
+    }
+  }
+
+  @Override
+  public void onRequestEnd(RequestInfo request, AlgoliaException error, long durationMS) {
+    RequestEvent event = (RequestEvent) request.getAttribute(REQUEST_EVENT);
+    if (event == null) {
+      return;
+    }
+    event.end();
+    if (event.shouldCommit()) {
+      synchronized (event) {
+        event.retries = Math.max(0, event.attempts - 1);
+        event.error = error != null ? error.getMessage() : null;
+        event.commit();
+      }
+    }
+  }
+
+  @Override
+  Object beginWaitTask() {
+    WaitTaskEvent event = new WaitTaskEvent();
+    if (!event.isEnabled()) {
+      return null;
+    }
+    event.begin();
+    return event;
+  }
+
+  @Override
+  void endWaitTask(Object started, String indexName, String taskID, int polls, String status) {
+    WaitTaskEvent event = (WaitTaskEvent) started;
+    event.end();
+    if (event.shouldCommit()) {
+      event.indexName = indexName;
+      event.taskID = taskID;
+      event.polls = polls;
+      event.status = status;
+      event.commit();
+    }
+  }
+
+  @Override
+  Object beginBrowsePage() {
+    BrowsePageEvent event = new BrowsePageEvent();
+    if (!event.isEnabled()) {
+      return null;
+    }
+    event.begin();
+    return event;
+  }
+
+  @Override
+  void endBrowsePage(Object started, String indexName, int hits, boolean hasCursor) {
+    BrowsePageEvent event = (BrowsePageEvent) started;
+    event.end();
+    if (event.shouldCommit()) {
+      event.indexName = indexName;
+      event.hits = hits;
+      event.hasCursor = hasCursor;
+      event.commit();
+    }
+  }
+}
@@ -2,9 +2,136 @@ package com.algolia.search.saas;
 
 import org.junit.Test;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
 public class APIClientTest {
   @Test
   public void getJavaVersion() {
     APIClient.getJavaVersion();
   }
+
+  @Test
+  public void connectionPoolIsConfigurable() {
+    APIClient client = new APIClient("appID", "apiKey");
+    client.setMaxConnections(42, 7);
+
+    ConnectionPoolStats stats = client.getTotalConnectionPoolStats();
+    assertEquals(42, stats.getMax());
+    assertEquals(0, stats.getLeased());
+    assertEquals(0, stats.getPending());
+    assertTrue(client.getConnectionPoolStats().isEmpty());
+    client.close();
+  }
+
+  @Test
+  public void connectionPoolFollowsSystemProperties() {
+    System.setProperty("http.maxConnections", "8");
+    try {
+      ApacheHttpTransport transport = new ApacheHttpTransport();
+      assertEquals(8, transport.getMaxConnectionsPerHost());
+      assertEquals(16, transport.getTotalConnectionPoolStats().getMax());
+      transport.close();
+
+      System.setProperty("http.keepAlive", "false");
+      transport = new ApacheHttpTransport();
+      assertEquals(ApacheHttpTransport.DEFAULT_MAX_CONNECTIONS_PER_HOST, transport.getMaxConnectionsPerHost());
+      transport.close();
+    } finally {
+      System.clearProperty("http.maxConnections");
+      System.clearProperty("http.keepAlive");
+    }
+  }
+
+  @Test
+  public void hostsHealthListsBuildAndQueryHosts() {
+    APIClient client = new APIClient("appID", "apiKey");
+    Map<String, HostHealth> health = client.getHostsHealth();
+
+    assertEquals(5, health.size());
+    assertEquals("appID.algolia.net", health.keySet().iterator().next());
+    assertTrue(health.containsKey("appID-dsn.algolia.net"));
+    for (HostHealth hostHealth : health.values()) {
+      assertTrue(hostHealth.isUp());
+    }
+    client.close();
+  }
+
+  @Test
+  public void warmUpOpensPooledConnections() throws IOException {
+    ServerSocket server = new ServerSocket(0);
+    ServerSocket closed = new ServerSocket(0);
+    closed.close();
+    String host = "http://localhost:" + server.getLocalPort();
+    String downHost = "http://localhost:" + closed.getLocalPort();
+    APIClient client = new APIClient("appID", "apiKey", Collections.singletonList(host), Collections.singletonList(downHost));
+
+    Map<String, HostWarmUp> result = client.warmUp(3);
+
+    assertEquals(2, result.size());
+    assertTrue(result.get(host).isSuccessful());
+    assertEquals(3, result.get(host).getOpenedConnections());
+    assertEquals(3, client.getConnectionPoolStats().get("localhost:" + server.getLocalPort()).getAvailable());
+    assertFalse(result.get(downHost).isSuccessful());
+
+    // the pooled connections are reused
+    assertEquals(0, client.warmUp(3).get(host).getOpenedConnections());
+    client.close();
+    server.close();
+  }
+
+  @Test
+  public void recordsTimingsOfRequest() throws Exception {
+    final ServerSocket server = new ServerSocket(0);
+    Thread answer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          Socket socket = server.accept();
+          BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+          String line;
+          while ((line = reader.readLine()) != null && line.length() > 0) {
+            // skip the request headers
+          }
+          byte[] body = "{\"items\":[],\"processingTimeMS\":3}".getBytes("UTF-8");
+          OutputStream os = socket.getOutputStream();
+          os.write(("HTTP/1.1 200 OK\r\nContent-Type: application/json\r\nContent-Length: " + body.length + "\r\nConnection: close\r\n\r\n").getBytes("UTF-8"));
+          os.write(body);
+          socket.close();
+        } catch (IOException e) {
+          // the client fails the test
+        }
+      }
+    });
+    answer.start();
+    String host = "http://localhost:" + server.getLocalPort();
+    APIClient client = new APIClient("appID", "apiKey", Collections.singletonList(host), Collections.singletonList(host));
+    RequestTimings timings = new RequestTimings();
+
+    client.listIndexes(new RequestOptions().setTimings(timings));
+
+    assertEquals(1, timings.getAttempts());
+    assertEquals(3, timings.getProcessingTimeMS());
+    assertTrue(timings.getPhaseMicros(RequestTimings.Phase.CONNECT) > 0);
+    assertTrue(timings.getPhaseMicros(RequestTimings.Phase.TIME_TO_FIRST_BYTE) > 0);
+    assertEquals(0, timings.getPhaseMicros(RequestTimings.Phase.TLS));
+    long phasesMicros = 0;
+    for (RequestTimings.Phase phase : RequestTimings.Phase.values()) {
+      phasesMicros += timings.getPhaseMicros(phase);
+    }
+    assertTrue(phasesMicros <= timings.getTotalMicros());
+    answer.join();
+    client.close();
+    server.close();
+  }
 }
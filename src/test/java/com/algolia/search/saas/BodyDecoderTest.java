@@ -0,0 +1,139 @@
+package com.algolia.search.saas;
+
+import org.json.JSONObject;
+import org.json.JSONTokener;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BodyDecoderTest {
+
+  /**
+   * A body larger than the buffers, with chars of 2, 3 and 4 bytes in UTF-8 split across them
+   */
+  private static String largeBody() {
+    StringBuilder body = new StringBuilder("{\"hits\":[");
+    for (int i = 0; i < 2000; i++) {
+      body.append(i > 0 ? "," : "").append("{\"name\":\"caf\u00e9 \u6771\u4eac \ud83d\ude00 ").append(i).append("\"}");
+    }
+    return body.append("]}").toString();
+  }
+
+  private static byte[] gzip(byte[] bytes) throws IOException {
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    GZIPOutputStream os = new GZIPOutputStream(compressed);
+    os.write(bytes);
+    os.close();
+    return compressed.toByteArray();
+  }
+
+  /**
+   * Gives at most 100 bytes by read, as a network stream would
+   */
+  private static InputStream trickling(byte[] bytes) {
+    return new ByteArrayInputStream(bytes) {
+      @Override
+      public synchronized int read(byte[] b, int off, int len) {
+        return super.read(b, off, Math.min(len, 100));
+      }
+    };
+  }
+
+  private static String decode(InputStream in, boolean gzipped) throws IOException {
+    BodyDecoder decoder = BodyDecoder.open(in, gzipped, false);
+    try {
+      StringBuilder decoded = new StringBuilder();
+      int c;
+      while ((c = decoder.read()) >= 0) {
+        decoded.append((char) c);
+      }
+      return decoded.toString();
+    } finally {
+      decoder.close();
+    }
+  }
+
+  @Test
+  public void decodesPlainAndGzippedBodies() throws IOException {
+    String body = largeBody();
+    byte[] bytes = body.getBytes("UTF-8");
+
+    assertEquals(body, decode(trickling(bytes), false));
+    assertEquals(body, decode(trickling(gzip(bytes)), true));
+  }
+
+  @Test
+  public void decodesConcatenatedGzipMembers() throws IOException {
+    ByteArrayOutputStream members = new ByteArrayOutputStream();
+    members.write(gzip("{\"a\":".getBytes("UTF-8")));
+    members.write(gzip("1}".getBytes("UTF-8")));
+
+    assertEquals("{\"a\":1}", decode(new ByteArrayInputStream(members.toByteArray()), true));
+  }
+
+  @Test
+  public void rejectsCorruptGzipBody() throws IOException {
+    byte[] compressed = gzip("{\"a\":1}".getBytes("UTF-8"));
+    // the CRC of the trailer
+    compressed[compressed.length - 8] ^= 1;
+    try {
+      decode(new ByteArrayInputStream(compressed), true);
+      fail();
+    } catch (ZipException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void parsesWithTokenizer() throws IOException {
+    String body = largeBody();
+    BodyDecoder decoder = BodyDecoder.open(trickling(gzip(body.getBytes("UTF-8"))), true, true);
+    try {
+      JSONTokener tokener = new JSONTokener(decoder);
+      JSONObject parsed = new JSONObject(tokener);
+      assertEquals(2000, parsed.getJSONArray("hits").length());
+      assertEquals("caf\u00e9 \u6771\u4eac \ud83d\ude00 1999", parsed.getJSONArray("hits").getJSONObject(1999).getString("name"));
+      // reads one char ahead, and gives it back
+      assertFalse(tokener.more());
+      assertEquals(body.length(), decoder.getDecodedChars());
+      assertTrue(decoder.getInflateNanos() > 0);
+    } finally {
+      decoder.close();
+    }
+  }
+
+  @Test
+  public void reusesDecoderOfThread() throws IOException {
+    BodyDecoder first = BodyDecoder.open(new ByteArrayInputStream(new byte[0]), false, false);
+    BodyDecoder nested = BodyDecoder.open(new ByteArrayInputStream(new byte[0]), false, false);
+    assertNotSame(first, nested);
+    nested.close();
+    first.close();
+
+    BodyDecoder next = BodyDecoder.open(new ByteArrayInputStream("{}".getBytes("UTF-8")), false, false);
+    assertSame(first, next);
+    assertEquals('{', next.read());
+    next.close();
+  }
+
+  @Test
+  public void readsWholeBody() throws IOException {
+    byte[] bytes = largeBody().getBytes("UTF-8");
+
+    assertArrayEquals(bytes, BodyDecoder.readAll(trickling(bytes), bytes.length));
+    assertArrayEquals(bytes, BodyDecoder.readAll(trickling(bytes), -1));
+  }
+}
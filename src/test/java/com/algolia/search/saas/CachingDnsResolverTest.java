@@ -0,0 +1,117 @@
+package com.algolia.search.saas;
+
+import org.apache.http.conn.DnsResolver;
+import org.junit.After;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CachingDnsResolverTest {
+
+  /**
+   * Resolves every host to the same address, after waiting for the latch when it is set
+   */
+  static class FakeResolver implements DnsResolver {
+    final AtomicInteger resolutions = new AtomicInteger();
+    volatile CountDownLatch latch;
+    volatile InetAddress[] addresses;
+
+    FakeResolver() throws UnknownHostException {
+      addresses = new InetAddress[]{InetAddress.getByAddress("host", new byte[]{10, 0, 0, 1})};
+    }
+
+    @Override
+    public InetAddress[] resolve(String host) throws UnknownHostException {
+      resolutions.incrementAndGet();
+      CountDownLatch currentLatch = latch;
+      if (currentLatch != null) {
+        try {
+          currentLatch.await();
+        } catch (InterruptedException e) {
+          throw new UnknownHostException(host);
+        }
+      }
+      return addresses;
+    }
+  }
+
+  private final FakeResolver delegate;
+  private CachingDnsResolver resolver;
+
+  public CachingDnsResolverTest() throws UnknownHostException {
+    delegate = new FakeResolver();
+  }
+
+  @After
+  public void close() {
+    resolver.close();
+    if (delegate.latch != null) {
+      delegate.latch.countDown();
+    }
+  }
+
+  @Test
+  public void cachesAddresses() throws UnknownHostException {
+    resolver = new CachingDnsResolver(delegate, 60000, 1000);
+
+    InetAddress[] first = resolver.resolve("host");
+    InetAddress[] second = resolver.resolve("host");
+
+    assertArrayEquals(delegate.addresses, first);
+    assertArrayEquals(delegate.addresses, second);
+    assertEquals(1, delegate.resolutions.get());
+  }
+
+  @Test
+  public void servesStaleAddressesWhenResolutionIsSlow() throws Exception {
+    resolver = new CachingDnsResolver(delegate, 1, 50);
+    InetAddress[] stale = resolver.resolve("host");
+    Thread.sleep(5);
+
+    delegate.latch = new CountDownLatch(1);
+    long start = System.nanoTime();
+    assertArrayEquals(stale, resolver.resolve("host"));
+    assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000);
+  }
+
+  @Test
+  public void timesOutOnSlowFirstResolution() throws Exception {
+    resolver = new CachingDnsResolver(delegate, 60000, 50);
+    delegate.latch = new CountDownLatch(1);
+    try {
+      resolver.resolve("host");
+      fail();
+    } catch (UnknownHostException e) {
+      assertTrue(e.getMessage().contains("timed out"));
+    }
+
+    // the resolution goes on in the background and is used by the next requests
+    delegate.latch.countDown();
+    Thread.sleep(100);
+    assertArrayEquals(delegate.addresses, resolver.resolve("host"));
+    assertEquals(1, delegate.resolutions.get());
+  }
+
+  @Test
+  public void prefetchesNothingWhenThreadsCannotBeStarted() throws UnknownHostException {
+    resolver = new CachingDnsResolver(delegate, 60000, 1000);
+    resolver.close();
+
+    resolver.prefetch(Arrays.asList("host1", "host2"));
+    assertEquals(0, delegate.resolutions.get());
+
+    // a request still resolves its host, in its own thread
+    assertArrayEquals(delegate.addresses, resolver.resolve("host1"));
+    assertEquals(1, delegate.resolutions.get());
+  }
+}
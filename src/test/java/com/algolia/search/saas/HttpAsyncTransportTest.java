@@ -0,0 +1,186 @@
+package com.algolia.search.saas;
+
+import org.apache.http.concurrent.FutureCallback;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HttpAsyncTransportTest {
+  private final HttpAsyncTransport transport = new HttpAsyncTransport();
+
+  @After
+  public void close() {
+    transport.close();
+  }
+
+  /**
+   * Answer the requests of one connection with the given raw response, then close it
+   */
+  private static Thread answer(final ServerSocket server, final String response) {
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          Socket socket = server.accept();
+          BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+          String line;
+          while ((line = reader.readLine()) != null && line.length() > 0) {
+            // skip the request headers
+          }
+          OutputStream os = socket.getOutputStream();
+          os.write(response.getBytes("UTF-8"));
+          os.flush();
+          // keeps the connection open until the client closes it
+          while (socket.getInputStream().read() >= 0) {
+            // skip the request body
+          }
+          socket.close();
+        } catch (IOException e) {
+          // the client fails the test
+        }
+      }
+    });
+    thread.start();
+    return thread;
+  }
+
+  private static String ok(String body) {
+    return "HTTP/1.1 200 OK\r\nContent-Type: application/json\r\nContent-Length: " + body.length() + "\r\n\r\n" + body;
+  }
+
+  private static TransportRequest request(ServerSocket server, int readTimeoutMS) {
+    Map<String, String> headers = new HashMap<String, String>();
+    headers.put("Content-Type", "application/json; charset=utf-8");
+    return new TransportRequest("GET", URI.create("http://localhost:" + server.getLocalPort() + "/1/indexes/"), headers, null, 1000, readTimeoutMS);
+  }
+
+  @Test
+  public void returnsResponse() throws Exception {
+    ServerSocket server = new ServerSocket(0);
+    Thread answer = answer(server, ok("{\"items\":[]}"));
+
+    TransportResponse response = transport.execute(request(server, 1000));
+
+    assertEquals(200, response.getStatusCode());
+    assertEquals("application/json", response.getHeaders().get("Content-Type"));
+    assertEquals("{\"items\":[]}", new String(BodyDecoder.readAll(response.getBody(), response.getContentLength()), "UTF-8"));
+    response.close();
+    transport.close();
+    answer.join();
+    server.close();
+  }
+
+  @Test
+  public void timesOutOnStalledBody() throws Exception {
+    ServerSocket server = new ServerSocket(0);
+    Thread answer = answer(server, "HTTP/1.1 200 OK\r\nContent-Type: application/json\r\nContent-Length: 100\r\n\r\n{\"items\":");
+    final CountDownLatch done = new CountDownLatch(1);
+    final AtomicReference<Exception> error = new AtomicReference<Exception>();
+
+    long start = System.currentTimeMillis();
+    transport.executeAsync(request(server, 200), new FutureCallback<TransportResponse>() {
+      @Override
+      public void completed(TransportResponse result) {
+        done.countDown();
+      }
+
+      @Override
+      public void failed(Exception e) {
+        error.set(e);
+        done.countDown();
+      }
+
+      @Override
+      public void cancelled() {
+        done.countDown();
+      }
+    });
+
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertTrue(String.valueOf(error.get()), error.get() instanceof SocketTimeoutException);
+    assertTrue(System.currentTimeMillis() - start >= 200);
+    transport.close();
+    answer.join();
+    server.close();
+  }
+
+  @Test
+  public void searchAsyncFailsOverToLiveHost() throws Exception {
+    ServerSocket server = new ServerSocket(0);
+    ServerSocket closed = new ServerSocket(0);
+    closed.close();
+    Thread answer = answer(server, ok("{\"hits\":[{\"objectID\":\"1\"}]}"));
+    String host = "http://localhost:" + server.getLocalPort();
+    String downHost = "http://localhost:" + closed.getLocalPort();
+    APIClient client = new APIClient("appID", "apiKey", Collections.singletonList(host), Arrays.asList(downHost, host), transport);
+    final CountDownLatch done = new CountDownLatch(1);
+    final AtomicReference<String> callbackThread = new AtomicReference<String>();
+
+    Future<JSONObject> future = client.initIndex("index").searchAsync(new Query("foo"), RequestOptions.empty, new FutureCallback<JSONObject>() {
+      @Override
+      public void completed(JSONObject result) {
+        callbackThread.set(Thread.currentThread().getName());
+        done.countDown();
+      }
+
+      @Override
+      public void failed(Exception e) {
+        done.countDown();
+      }
+
+      @Override
+      public void cancelled() {
+        done.countDown();
+      }
+    });
+
+    assertEquals("1", future.get(5, TimeUnit.SECONDS).getJSONArray("hits").getJSONObject(0).getString("objectID"));
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertTrue(callbackThread.get(), callbackThread.get().startsWith("algolia-io-"));
+    assertFalse(client.getHostsHealth().get(downHost).isUp());
+    client.close();
+    answer.join();
+    server.close();
+  }
+
+  @Test
+  public void failsOnceEveryHostIsDown() throws Exception {
+    ServerSocket closed = new ServerSocket(0);
+    closed.close();
+    String downHost = "http://localhost:" + closed.getLocalPort();
+    APIClient client = new APIClient("appID", "apiKey", Collections.singletonList(downHost), Collections.singletonList(downHost), transport);
+
+    Future<JSONObject> future = client.initIndex("index").searchAsync(new Query("foo"));
+    try {
+      future.get(5, TimeUnit.SECONDS);
+      fail();
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof AlgoliaException);
+      assertTrue(e.getCause().getMessage(), e.getCause().getMessage().startsWith("Hosts unreachable"));
+    }
+    client.close();
+  }
+}
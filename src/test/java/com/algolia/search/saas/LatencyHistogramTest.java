@@ -0,0 +1,42 @@
+package com.algolia.search.saas;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+  @Test
+  public void computesPercentiles() {
+    LatencyHistogram histogram = new LatencyHistogram(100000);
+    for (int i = 1; i <= 1000; i++) {
+      histogram.record(i);
+    }
+
+    assertEquals(1000, histogram.getCount());
+    long median = histogram.getPercentile(0.5);
+    assertTrue("median was " + median, median >= 500 && median <= 500 * 1.19);
+    long p99 = histogram.getPercentile(0.99);
+    assertTrue("p99 was " + p99, p99 >= 990 && p99 <= 990 * 1.19);
+  }
+
+  @Test
+  public void followsRecentLatencies() {
+    LatencyHistogram histogram = new LatencyHistogram(100);
+    for (int i = 0; i < 100; i++) {
+      histogram.record(1000);
+    }
+    for (int i = 0; i < 400; i++) {
+      histogram.record(10);
+    }
+
+    assertTrue(histogram.getCount() < 100);
+    assertTrue(histogram.getPercentile(0.9) <= 12);
+  }
+
+  @Test
+  public void hasNoPercentileWithoutSamples() {
+    assertEquals(-1, new LatencyHistogram(100).getPercentile(0.99));
+  }
+}
@@ -7,6 +7,8 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import java.util.concurrent.ExecutionException;
+
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
@@ -24,6 +26,15 @@ public class SearchTest extends AlgoliaTest {
     assertEquals(true, res.getJSONArray("hits").getJSONObject(0).getBoolean("b"));
   }
 
+  @Test
+  public void searchAsync() throws AlgoliaException, JSONException, InterruptedException, ExecutionException {
+    JSONObject obj = index.addObject(new JSONObject().put("i", 42).put("s", "foo").put("b", true));
+    index.waitTask(obj.getLong("taskID"));
+    JSONObject res = index.searchAsync(new Query("foo").setTypoTolerance(Query.TypoTolerance.TYPO_FALSE)).get();
+    assertEquals(1, res.getJSONArray("hits").length());
+    assertEquals("foo", res.getJSONArray("hits").getJSONObject(0).getString("s"));
+  }
+
   @Test
   public void searchFacets() throws AlgoliaException, JSONException {
     final JSONObject setSettingsTask = index.setSettings(new JSONObject()
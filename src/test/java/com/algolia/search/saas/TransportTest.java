@@ -0,0 +1,1306 @@
+package com.algolia.search.saas;
+
+import org.apache.http.concurrent.FutureCallback;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+import org.junit.Test;
+
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.SequenceInputStream;
+import java.lang.management.ManagementFactory;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TransportTest {
+
+  /**
+   * Answers with the configured body for the hosts that are not listed as down
+   */
+  static class FakeTransport implements Transport {
+    final List<TransportRequest> requests = Collections.synchronizedList(new ArrayList<TransportRequest>());
+    final List<String> downHosts = new ArrayList<String>();
+    final List<String> truncatingHosts = new ArrayList<String>();
+    final List<String> slowHosts = new ArrayList<String>();
+    final List<String> blockedHosts = new ArrayList<String>();
+    final List<String> hangingHosts = new ArrayList<String>();
+    final Map<String, Long> delaysMS = new ConcurrentHashMap<String, Long>();
+    final List<TransportRequest> abortedRequests = Collections.synchronizedList(new ArrayList<TransportRequest>());
+    final CountDownLatch unblock = new CountDownLatch(1);
+    volatile int statusCode = 200;
+    volatile String body = "{\"hits\":[]}";
+
+    @Override
+    public TransportResponse execute(TransportRequest request) throws IOException {
+      requests.add(request);
+      if (downHosts.contains(request.getUri().getHost())) {
+        throw new IOException("Connection refused");
+      }
+      if (blockedHosts.contains(request.getUri().getHost())) {
+        try {
+          unblock.await();
+        } catch (InterruptedException e) {
+          throw new InterruptedIOException();
+        }
+      }
+      if (hangingHosts.contains(request.getUri().getHost())) {
+        // until the client gives up on the request
+        final CountDownLatch aborted = new CountDownLatch(1);
+        try {
+          if (request.setAbortHandler(new Runnable() {
+            @Override
+            public void run() {
+              aborted.countDown();
+            }
+          })) {
+            aborted.await();
+          }
+        } catch (InterruptedException e) {
+          // the future of an aborted request is also cancelled
+          throw new InterruptedIOException();
+        } finally {
+          abortedRequests.add(request);
+        }
+        throw new IOException("Request aborted");
+      }
+      Long delayMS = delaysMS.get(request.getUri().getHost());
+      if (delayMS != null) {
+        try {
+          Thread.sleep(delayMS);
+        } catch (InterruptedException e) {
+          throw new InterruptedIOException();
+        }
+      }
+      if (slowHosts.contains(request.getUri().getHost())) {
+        try {
+          Thread.sleep(request.getReadTimeoutMS());
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        throw new SocketTimeoutException("Read timed out");
+      }
+      Map<String, String> headers = new HashMap<String, String>();
+      headers.put("Content-Type", "application/json");
+      final byte[] bytes = body.getBytes("UTF-8");
+      if (truncatingHosts.contains(request.getUri().getHost())) {
+        InputStream timeout = new InputStream() {
+          @Override
+          public int read() throws IOException {
+            throw new SocketTimeoutException("Read timed out");
+          }
+        };
+        return new TransportResponse(statusCode, headers, new SequenceInputStream(new ByteArrayInputStream(bytes, 0, bytes.length / 2), timeout), bytes.length);
+      }
+      return new TransportResponse(statusCode, headers, new ByteArrayInputStream(bytes), bytes.length);
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+  /**
+   * Sends the requests of the fake transport from its own I/O thread, as an async HTTP client would
+   */
+  static class FakeAsyncTransport extends FakeTransport implements AsyncTransport {
+    final ExecutorService ioThread = Executors.newSingleThreadExecutor(APIClient.daemonThreadFactory("fake-io-"));
+
+    @Override
+    public void executeAsync(final TransportRequest request, final FutureCallback<TransportResponse> callback) {
+      ioThread.execute(new Runnable() {
+        @Override
+        public void run() {
+          TransportResponse response;
+          try {
+            response = execute(request);
+          } catch (IOException e) {
+            callback.failed(e);
+            return;
+          }
+          callback.completed(response);
+        }
+      });
+    }
+
+    @Override
+    public void close() {
+      ioThread.shutdownNow();
+    }
+  }
+
+  private final FakeTransport transport = new FakeTransport();
+  private final APIClient client = new APIClient("appID", "apiKey", Arrays.asList("build1", "build2"), Arrays.asList("query1", "query2"), transport);
+
+  @Test
+  public void sendsRequestThroughTransport() throws AlgoliaException, JSONException, IOException {
+    JSONObject res = client.initIndex("index").search(new Query("foo"));
+
+    assertEquals(0, res.getJSONArray("hits").length());
+    assertEquals(1, transport.requests.size());
+    TransportRequest request = transport.requests.get(0);
+    assertEquals("POST", request.getMethod());
+    assertEquals("https://query1/1/indexes/index/query", request.getUri().toString());
+    assertEquals("appID", request.getHeaders().get("X-Algolia-Application-Id"));
+    assertEquals("{\"params\":\"query=foo\"}", new String(request.getBody(), "UTF-8"));
+  }
+
+  @Test
+  public void failsOverToNextHost() throws AlgoliaException {
+    transport.downHosts.add("build1");
+    client.initIndex("index").clearIndex();
+
+    assertEquals(2, transport.requests.size());
+    assertEquals("build2", transport.requests.get(1).getUri().getHost());
+    assertFalse(client.getHostsHealth().get("build1").isUp());
+    assertTrue(client.getHostsHealth().get("build2").isUp());
+  }
+
+  @Test
+  public void throwsOnClientError() {
+    transport.statusCode = 403;
+    transport.body = "{\"message\":\"Invalid API key\"}";
+    try {
+      client.listIndexes();
+      fail();
+    } catch (AlgoliaException e) {
+      assertEquals(403, e.getCode());
+      assertEquals(1, transport.requests.size());
+    }
+  }
+
+  @Test
+  public void usesSchemeAndPortOfHost() throws AlgoliaException {
+    APIClient localClient = new APIClient("appID", "apiKey", Collections.singletonList("http://localhost:8080"), Collections.singletonList("http://localhost:8080"), transport);
+    localClient.listIndexes();
+
+    assertEquals("http://localhost:8080/1/indexes/", transport.requests.get(0).getUri().toString());
+  }
+
+  @Test
+  public void compressesLargeBodies() throws AlgoliaException, JSONException, IOException {
+    client.setCompressionThreshold(100);
+    JSONArray objects = new JSONArray();
+    for (int i = 0; i < 100; i++) {
+      objects.put(new JSONObject().put("objectID", String.valueOf(i)).put("name", "Name " + i));
+    }
+    client.initIndex("index").saveObjects(objects);
+    client.initIndex("index").search(new Query("foo"));
+
+    TransportRequest batch = transport.requests.get(0);
+    assertEquals("gzip", batch.getHeaders().get("Content-Encoding"));
+    GZIPInputStream decompressed = new GZIPInputStream(new ByteArrayInputStream(batch.getBody()));
+    JSONObject decoded = new JSONObject(new JSONTokener(decompressed));
+    assertEquals(100, decoded.getJSONArray("requests").length());
+
+    TransportRequest search = transport.requests.get(1);
+    assertFalse(search.getHeaders().containsKey("Content-Encoding"));
+  }
+
+  @Test
+  public void failsOverWhenBodyIsTruncated() throws AlgoliaException, JSONException {
+    transport.truncatingHosts.add("query1");
+    JSONObject res = client.initIndex("index").search(new Query("foo"));
+
+    assertEquals(0, res.getJSONArray("hits").length());
+    assertEquals("query2", transport.requests.get(1).getUri().getHost());
+  }
+
+  @Test
+  public void mergesClientAndRequestHeaders() throws AlgoliaException {
+    client.setExtraHeader("X-Client", "1");
+    client.listIndexes();
+    client.listIndexes(new RequestOptions().addExtraHeader("X-Request", "2").addExtraHeader("User-Agent", "ignored"));
+    client.setExtraHeader("X-Client", "3");
+    client.listIndexes();
+
+    assertEquals("1", transport.requests.get(0).getHeaders().get("X-Client"));
+    assertFalse(transport.requests.get(0).getHeaders().containsKey("X-Request"));
+    assertEquals("2", transport.requests.get(1).getHeaders().get("X-Request"));
+    assertTrue(transport.requests.get(1).getHeaders().get("User-Agent").startsWith("Algolia for Java"));
+    assertEquals("3", transport.requests.get(2).getHeaders().get("X-Client"));
+  }
+
+  @Test
+  public void requestHeaderOverridesClientHeaderDifferingInCase() throws AlgoliaException {
+    client.setExtraHeader("X-Client", "1");
+    client.listIndexes(new RequestOptions().addExtraHeader("x-client", "2").addExtraHeader("user-agent", "ignored"));
+
+    int clientHeaders = 0;
+    int userAgents = 0;
+    for (Map.Entry<String, String> header : transport.requests.get(0).getHeaders().entrySet()) {
+      if (header.getKey().equalsIgnoreCase("X-Client")) {
+        clientHeaders++;
+        assertEquals("2", header.getValue());
+      } else if (header.getKey().equalsIgnoreCase("User-Agent")) {
+        userAgents++;
+        assertTrue(header.getValue().startsWith("Algolia for Java"));
+      }
+    }
+    assertEquals(1, clientHeaders);
+    assertEquals(1, userAgents);
+  }
+
+  @Test
+  public void failsOnceDeadlineIsSpent() {
+    transport.slowHosts.add("query1");
+    transport.slowHosts.add("query2");
+    long start = System.currentTimeMillis();
+    try {
+      client.initIndex("index").search(new Query("foo"), new RequestOptions().setRequestDeadline(300));
+      fail();
+    } catch (AlgoliaException e) {
+      assertTrue(e.getMessage().startsWith("Deadline exceeded"));
+      assertEquals(1, transport.requests.size());
+      assertEquals(300, transport.requests.get(0).getReadTimeoutMS());
+      assertTrue(System.currentTimeMillis() - start < 1500);
+    }
+  }
+
+  @Test
+  public void failsOnceDeadlineCutsLastHost() {
+    transport.downHosts.add("query1");
+    transport.slowHosts.add("query2");
+    try {
+      client.initIndex("index").search(new Query("foo"), new RequestOptions().setRequestDeadline(300));
+      fail();
+    } catch (AlgoliaException e) {
+      assertTrue(e.getMessage(), e.getMessage().startsWith("Deadline exceeded"));
+      assertEquals(2, transport.requests.size());
+    }
+  }
+
+  @Test
+  public void boundsInfiniteTimeoutsByDeadline() throws AlgoliaException {
+    client.setTimeout(0, 0);
+    client.listIndexes();
+    assertEquals(0, transport.requests.get(0).getConnectTimeoutMS());
+    assertEquals(0, transport.requests.get(0).getReadTimeoutMS());
+
+    client.listIndexes(new RequestOptions().setRequestDeadline(300));
+    assertTrue(transport.requests.get(0).hasStaticTimeouts());
+    assertFalse(transport.requests.get(1).hasStaticTimeouts());
+    assertTrue(transport.requests.get(1).getConnectTimeoutMS() > 0);
+    assertTrue(transport.requests.get(1).getConnectTimeoutMS() <= 300);
+    assertTrue(transport.requests.get(1).getReadTimeoutMS() > 0);
+    assertTrue(transport.requests.get(1).getReadTimeoutMS() <= 300);
+  }
+
+  @Test
+  public void asyncCallsAreNotQueuedBehindTheConnectionLimit() throws Exception {
+    transport.blockedHosts.add("query1");
+    Index index = client.initIndex("index");
+    List<Future<JSONObject>> futures = new ArrayList<Future<JSONObject>>();
+    for (int i = 0; i < 30; i++) {
+      futures.add(index.searchAsync(new Query("foo" + i)));
+    }
+
+    long start = System.currentTimeMillis();
+    while (transport.requests.size() < 30) {
+      assertTrue(transport.requests.size() + " requests sent", System.currentTimeMillis() - start < 5000);
+      Thread.sleep(10);
+    }
+    transport.unblock.countDown();
+    for (Future<JSONObject> future : futures) {
+      assertEquals(0, future.get().getJSONArray("hits").length());
+    }
+  }
+
+  @Test
+  public void hedgedSearchUsesFirstAnswerAndAbortsTheOther() throws AlgoliaException, InterruptedException {
+    client.setSearchHedgingDelay(50);
+    transport.hangingHosts.add("query1");
+
+    JSONObject res = client.initIndex("index").search(new Query("foo"));
+
+    assertEquals(0, res.getJSONArray("hits").length());
+    assertEquals(2, transport.requests.size());
+    assertEquals("query2", transport.requests.get(1).getUri().getHost());
+    long start = System.currentTimeMillis();
+    while (transport.abortedRequests.isEmpty()) {
+      assertTrue(System.currentTimeMillis() - start < 5000);
+      Thread.sleep(10);
+    }
+    assertEquals("query1", transport.abortedRequests.get(0).getUri().getHost());
+    // the aborted request does not mark its host as down
+    assertTrue(client.getHostsHealth().get("query1").isUp());
+  }
+
+  @Test
+  public void hedgedSearchDoesNotNotifyAbortedAttemptAfterEnd() throws AlgoliaException, InterruptedException {
+    final List<String> notifications = Collections.synchronizedList(new ArrayList<String>());
+    client.addRequestListener(new RequestListener() {
+      @Override
+      public void onRequestStart(RequestInfo request) {
+        notifications.add("start");
+      }
+
+      @Override
+      public void onAttemptStart(RequestInfo request, String host, int bytesSent) {
+        notifications.add("attemptStart " + host);
+      }
+
+      @Override
+      public void onAttemptEnd(RequestInfo request, String host, int statusCode, Exception error, long latencyMS, long bytesReceived) {
+        notifications.add("attemptEnd " + host);
+      }
+
+      @Override
+      public void onRequestEnd(RequestInfo request, AlgoliaException error, long durationMS) {
+        notifications.add("end");
+      }
+    });
+    client.setSearchHedgingDelay(50);
+    transport.hangingHosts.add("query1");
+
+    client.initIndex("index").search(new Query("foo"));
+    long start = System.currentTimeMillis();
+    while (transport.abortedRequests.isEmpty()) {
+      assertTrue(System.currentTimeMillis() - start < 5000);
+      Thread.sleep(10);
+    }
+    Thread.sleep(100);
+    assertEquals("end", notifications.get(notifications.size() - 1));
+    assertTrue(notifications.contains("attemptEnd query2"));
+  }
+
+  @Test
+  public void browseIsNotHedged() throws AlgoliaException {
+    client.setSearchHedgingDelay(50);
+    transport.delaysMS.put("query1", 200L);
+    transport.body = "{\"hits\":[]}";
+
+    client.initIndex("index").browse(new Query());
+
+    assertEquals(1, transport.requests.size());
+    assertEquals("query1", transport.requests.get(0).getUri().getHost());
+  }
+
+  @Test
+  public void hedgedSearchFailsWhenAllHostsFail() {
+    client.setSearchHedgingDelay(50);
+    transport.downHosts.add("query1");
+    transport.downHosts.add("query2");
+
+    try {
+      client.initIndex("index").search(new Query("foo"));
+      fail("expected an exception");
+    } catch (AlgoliaException e) {
+      assertTrue(e.getMessage(), e.getMessage().startsWith("Hosts unreachable"));
+      assertEquals(2, transport.requests.size());
+      assertFalse(client.getHostsHealth().get("query1").isUp());
+      assertFalse(client.getHostsHealth().get("query2").isUp());
+    }
+  }
+
+  @Test
+  public void hedgedSearchReleasesProbeOfAbortedHost() throws AlgoliaException, InterruptedException {
+    client.setHostDownTimeoutMS(500);
+    client.setSearchHedgingDelay(50);
+    transport.downHosts.add("query1");
+    client.initIndex("index").search(new Query("foo"));
+    assertFalse(client.getHostsHealth().get("query1").isUp());
+    Thread.sleep(600);
+
+    // the probe of query1 loses the race against query2 and is aborted
+    transport.downHosts.clear();
+    transport.hangingHosts.add("query1");
+    client.initIndex("index").search(new Query("foo"));
+    long start = System.currentTimeMillis();
+    while (transport.abortedRequests.isEmpty()) {
+      assertTrue(System.currentTimeMillis() - start < 5000);
+      Thread.sleep(10);
+    }
+
+    // so the next search probes query1 again, without waiting for the host down timeout
+    transport.hangingHosts.clear();
+    transport.requests.clear();
+    client.initIndex("index").search(new Query("foo"));
+    assertEquals("query1", transport.requests.get(0).getUri().getHost());
+    assertTrue(client.getHostsHealth().get("query1").isUp());
+  }
+
+  @Test
+  public void opensCircuitOnFailureRate() throws AlgoliaException {
+    client.setCircuitBreaker(4, 2, 50);
+    transport.downHosts.add("query1");
+    Index index = client.initIndex("index");
+
+    index.search(new Query("foo"));
+    assertTrue(client.getHostsHealth().get("query1").isUp());
+    index.search(new Query("foo"));
+    assertFalse(client.getHostsHealth().get("query1").isUp());
+
+    transport.requests.clear();
+    index.search(new Query("foo"));
+    assertEquals(1, transport.requests.size());
+    assertEquals("query2", transport.requests.get(0).getUri().getHost());
+  }
+
+  @Test
+  public void countsConcurrentOutcomesInCircuit() throws Exception {
+    client.setCircuitBreaker(100, 50, 100);
+    final Index index = client.initIndex("index");
+    List<Future<JSONObject>> futures = new ArrayList<Future<JSONObject>>();
+    for (int i = 0; i < 40; i++) {
+      futures.add(index.searchAsync(new Query("foo" + i)));
+    }
+    for (Future<JSONObject> future : futures) {
+      future.get();
+    }
+    // the failures only reach 100% once the successes left the window
+    transport.downHosts.add("query1");
+    futures.clear();
+    for (int i = 0; i < 99; i++) {
+      futures.add(index.searchAsync(new Query("bar" + i)));
+    }
+    for (Future<JSONObject> future : futures) {
+      future.get();
+    }
+    assertTrue(client.getHostsHealth().get("query1").isUp());
+    index.search(new Query("baz"));
+    assertFalse(client.getHostsHealth().get("query1").isUp());
+  }
+
+  @Test
+  public void probesHalfOpenCircuitWithSingleRequest() throws Exception {
+    client.setHostDownTimeoutMS(1000);
+    transport.downHosts.add("query1");
+    Index index = client.initIndex("index");
+    index.search(new Query("foo"));
+    assertFalse(client.getHostsHealth().get("query1").isUp());
+
+    Thread.sleep(1100);
+    transport.downHosts.clear();
+    transport.blockedHosts.add("query1");
+    transport.requests.clear();
+    Future<JSONObject> probe = index.searchAsync(new Query("foo"));
+    while (transport.requests.isEmpty()) {
+      Thread.sleep(1);
+    }
+
+    // the probe is in flight: the other requests use the next host
+    index.search(new Query("bar"));
+    assertEquals(2, transport.requests.size());
+    assertEquals("query1", transport.requests.get(0).getUri().getHost());
+    assertEquals("query2", transport.requests.get(1).getUri().getHost());
+
+    transport.unblock.countDown();
+    probe.get();
+    assertTrue(client.getHostsHealth().get("query1").isUp());
+  }
+
+  @Test
+  public void healthProbingRevivesDownHosts() throws Exception {
+    transport.downHosts.add("query1");
+    Index index = client.initIndex("index");
+    index.search(new Query("foo"));
+    assertFalse(client.getHostsHealth().get("query1").isUp());
+
+    // the requests of the application are not used as checks
+    client.setHostDownTimeoutMS(0);
+    client.setHealthProbing(50, 500);
+    transport.requests.clear();
+    index.search(new Query("foo"));
+    assertEquals("query2", transport.requests.get(0).getUri().getHost());
+
+    transport.downHosts.clear();
+    long start = System.currentTimeMillis();
+    while (!client.getHostsHealth().get("query1").isUp() && System.currentTimeMillis() - start < 5000) {
+      Thread.sleep(10);
+    }
+    assertTrue(client.getHostsHealth().get("query1").isUp());
+    assertTrue(client.getHostsHealth().get("query1").getProbeLatencyMillis() >= 0);
+    client.close();
+  }
+
+  /**
+   * Wait until the latency of each host is known
+   */
+  private void awaitLatencies(String... hosts) throws InterruptedException {
+    long start = System.currentTimeMillis();
+    for (String host : hosts) {
+      while (client.getHostsHealth().get(host).getLatencyMillis() < 0 && System.currentTimeMillis() - start < 5000) {
+        Thread.sleep(10);
+      }
+      assertTrue(client.getHostsHealth().get(host).getLatencyMillis() >= 0);
+    }
+  }
+
+  @Test
+  public void seedsLatenciesOfQueryHosts() throws InterruptedException {
+    assertTrue(client.getHostsHealth().get("query1").getLatencyMillis() < 0);
+    client.setLatencyAwareHostSelection(true);
+    awaitLatencies("query1", "query2");
+
+    List<String> seeded = new ArrayList<String>();
+    for (TransportRequest request : new ArrayList<TransportRequest>(transport.requests)) {
+      assertEquals("GET", request.getMethod());
+      seeded.add(request.getUri().getHost());
+    }
+    Collections.sort(seeded);
+    assertEquals(Arrays.asList("query1", "query2"), seeded);
+  }
+
+  @Test
+  public void ordersQueryHostsByLatency() throws AlgoliaException, InterruptedException {
+    transport.delaysMS.put("query1", 50L);
+    client.setLatencyAwareHostSelection(true);
+    awaitLatencies("query1", "query2");
+    transport.requests.clear();
+
+    client.initIndex("index").search(new Query("foo"));
+    assertEquals(1, transport.requests.size());
+    assertEquals("query2", transport.requests.get(0).getUri().getHost());
+
+    // the order only applies to the query hosts
+    client.initIndex("index").clearIndex();
+    assertEquals("build1", transport.requests.get(1).getUri().getHost());
+  }
+
+  @Test
+  public void fallsBackFromHostGettingSlow() throws AlgoliaException, InterruptedException {
+    transport.delaysMS.put("query1", 20L);
+    client.setLatencyAwareHostSelection(true);
+    awaitLatencies("query1", "query2");
+    transport.delaysMS.put("query1", 0L);
+    transport.delaysMS.put("query2", 60L);
+    transport.requests.clear();
+
+    // the moving average of query2 needs a few slow answers to exceed the one of query1
+    Index index = client.initIndex("index");
+    for (int i = 0; i < 20 && !"query1".equals(lastHost()); i++) {
+      index.search(new Query("foo"));
+    }
+    assertEquals("query2", transport.requests.get(0).getUri().getHost());
+    assertEquals("query1", lastHost());
+  }
+
+  private String lastHost() {
+    return transport.requests.isEmpty() ? null : transport.requests.get(transport.requests.size() - 1).getUri().getHost();
+  }
+
+  @Test
+  public void adaptsReadTimeoutToLatency() throws AlgoliaException {
+    client.setAdaptiveTimeouts(4, 50, 1000);
+    Index index = client.initIndex("index");
+    for (int i = 0; i < 100; i++) {
+      index.search(new Query("foo"));
+    }
+    assertEquals(2000, transport.requests.get(99).getReadTimeoutMS());
+
+    // the fake transport answers within 1 ms: the timeout is the lower bound
+    index.search(new Query("foo"));
+    assertEquals(50, transport.requests.get(100).getReadTimeoutMS());
+    client.initIndex("index").clearIndex();
+    assertEquals(20000, transport.requests.get(101).getReadTimeoutMS());
+  }
+
+  @Test
+  public void raisesReadTimeoutAfterTimeouts() throws AlgoliaException {
+    client.setAdaptiveTimeouts(4, 50, 1000);
+    client.setCircuitBreaker(100, 100, 100);
+    Index index = client.initIndex("index");
+    for (int i = 0; i < 100; i++) {
+      index.search(new Query("foo"));
+    }
+    transport.slowHosts.add("query1");
+    index.search(new Query("foo"));
+    index.search(new Query("foo"));
+    assertEquals("query1", transport.requests.get(100).getUri().getHost());
+    int timeoutMS = transport.requests.get(100).getReadTimeoutMS();
+    assertTrue(timeoutMS < 1000);
+
+    // the two timeouts count as latencies of at least their timeout, above the 99th percentile of the fast answers
+    transport.requests.clear();
+    index.search(new Query("foo"));
+    assertEquals("query1", transport.requests.get(0).getUri().getHost());
+    assertTrue(transport.requests.get(0).getReadTimeoutMS() > timeoutMS);
+  }
+
+  @Test
+  public void usesStaticReadTimeoutOnLastHost() throws AlgoliaException {
+    client.setAdaptiveTimeouts(4, 50, 1000);
+    client.setCircuitBreaker(100, 100, 100);
+    transport.downHosts.add("query1");
+    Index index = client.initIndex("index");
+    for (int i = 0; i < 100; i++) {
+      index.search(new Query("foo"));
+    }
+    // query1 now has 100 failures in its window and is down: query2 is the only host left
+    index.search(new Query("foo"));
+    assertEquals(201, transport.requests.size());
+    // query2 answered 100 searches within 1 ms, but has no other host to retry on
+    assertEquals("query2", transport.requests.get(200).getUri().getHost());
+    assertEquals(2000, transport.requests.get(200).getReadTimeoutMS());
+  }
+
+  @Test
+  public void rejectsInvalidAdaptiveTimeouts() {
+    try {
+      client.setAdaptiveTimeouts(-1, 50, 1000);
+      fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    try {
+      client.setAdaptiveTimeouts(4, 0, 1000);
+      fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    try {
+      client.setAdaptiveTimeouts(4, 500, 100);
+      fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    client.setAdaptiveTimeouts(0, 0, 0);
+  }
+
+  @Test
+  public void givesBackRawResponse() throws AlgoliaException, JSONException, IOException {
+    transport.body = "{\"hits\":[{\"objectID\":\"1\"}]}";
+    RawResponse res = client.initIndex("index").searchRaw(new Query("foo"));
+
+    assertEquals(transport.body, new String(res.getBody(), "UTF-8"));
+    assertFalse(res.isGzipped());
+    assertEquals("1", res.toJSONObject().getJSONArray("hits").getJSONObject(0).getString("objectID"));
+    assertEquals("https://query1/1/indexes/index/query", transport.requests.get(0).getUri().toString());
+  }
+
+  @Test
+  public void notifiesRequestListeners() throws AlgoliaException {
+    final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+    client.addRequestListener(new RequestListener() {
+      @Override
+      public void onRequestStart(RequestInfo request) {
+        events.add("start " + request.getMethod() + " " + request.getPath());
+      }
+
+      @Override
+      public void onAttemptStart(RequestInfo request, String host, int bytesSent) {
+        events.add("attempt " + host + " " + bytesSent);
+      }
+
+      @Override
+      public void onAttemptEnd(RequestInfo request, String host, int statusCode, Exception error, long latencyMS, long bytesReceived) {
+        events.add("attempt end " + host + " " + statusCode + " " + (error != null) + " " + bytesReceived);
+      }
+
+      @Override
+      public void onRequestEnd(RequestInfo request, AlgoliaException error, long durationMS) {
+        events.add("end " + (error != null));
+      }
+    });
+    transport.downHosts.add("query1");
+    client.initIndex("index").search(new Query("foo"));
+
+    assertEquals(Arrays.asList(
+      "start POST /1/indexes/index/query",
+      "attempt query1 22",
+      "attempt end query1 0 true 0",
+      "attempt query2 22",
+      "attempt end query2 200 false 11",
+      "end false"), events);
+  }
+
+  @Test
+  public void recordsMetricsByEndpointAndHost() throws Exception {
+    client.enableMetrics(true);
+    transport.downHosts.add("query1");
+    client.initIndex("index").search(new Query("foo"));
+    client.initIndex("index").search(new Query("bar"));
+
+    MetricsSnapshot search = client.getEndpointMetrics().get("search");
+    assertEquals(2, search.getRequests());
+    assertEquals(0, search.getFailedRequests());
+    // query1 is skipped by the second search once it is known as down
+    assertEquals(3, search.getAttempts());
+    assertEquals(1, search.getRetries());
+    assertEquals(Long.valueOf(1), search.getErrors().get("network"));
+    assertEquals(66, search.getBytesSent());
+    assertEquals(22, search.getBytesReceived());
+    assertTrue(search.getP99LatencyMS() >= 0);
+    assertTrue(search.getPhaseP99Micros().containsKey("timeToFirstByte"));
+    assertEquals(1, client.getHostMetrics().get("query1").getFailedRequests());
+    assertEquals(0, client.getHostMetrics().get("query2").getFailedRequests());
+
+    ObjectName name = ManagementFactory.getPlatformMBeanServer().queryNames(new ObjectName("com.algolia.search:type=APIClient,*"), null).iterator().next();
+    CompositeData endpoint = (CompositeData) ((TabularData) ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Endpoints")).get(new Object[]{"search"}).get("value");
+    assertEquals(2L, endpoint.get("requests"));
+    client.close();
+    assertTrue(ManagementFactory.getPlatformMBeanServer().queryNames(new ObjectName("com.algolia.search:type=APIClient,*"), null).isEmpty());
+  }
+
+  @Test
+  public void classifiesEndpoints() {
+    assertEquals("search", ClientMetrics.endpoint("POST", "/1/indexes/index/query"));
+    assertEquals("multiQuery", ClientMetrics.endpoint("POST", "/1/indexes/*/queries?strategy=none"));
+    assertEquals("browse", ClientMetrics.endpoint("GET", "/1/indexes/index/browse?page=0"));
+    assertEquals("batch", ClientMetrics.endpoint("POST", "/1/indexes/index/batch"));
+    assertEquals("task", ClientMetrics.endpoint("GET", "/1/indexes/index/task/42"));
+    assertEquals("getObject", ClientMetrics.endpoint("GET", "/1/indexes/index/42?attributes=a"));
+    assertEquals("getObject", ClientMetrics.endpoint("POST", "/1/indexes/*/objects"));
+    assertEquals("other", ClientMetrics.endpoint("GET", "/1/indexes/index/settings"));
+    assertEquals("other", ClientMetrics.endpoint("GET", "/1/keys"));
+  }
+
+  @Test
+  public void recordsTimingsOfEachPhase() throws AlgoliaException {
+    transport.body = "{\"hits\":[],\"processingTimeMS\":12}";
+    transport.downHosts.add("query1");
+    RequestTimings timings = new RequestTimings();
+
+    client.initIndex("index").search(new Query("foo"), new RequestOptions().setTimings(timings));
+
+    assertEquals(2, timings.getAttempts());
+    assertEquals(12, timings.getProcessingTimeMS());
+    assertTrue(timings.getTotalMicros() > 0);
+    // the fake transport does not report the connection phases
+    assertEquals(0, timings.getPhaseMicros(RequestTimings.Phase.CONNECT));
+    assertEquals(0, timings.getPhaseMicros(RequestTimings.Phase.DECOMPRESS));
+  }
+
+  @Test
+  public void logsSlowRequests() throws AlgoliaException {
+    final List<SlowRequest> logged = Collections.synchronizedList(new ArrayList<SlowRequest>());
+    client.addRequestListener(new SlowRequestLog(new SlowRequestSink() {
+      @Override
+      public void log(SlowRequest request) {
+        logged.add(request);
+      }
+    }).setThreshold("search", 0).setMaxPerSecond(1));
+    transport.downHosts.add("query1");
+
+    client.initIndex("index").search(new Query("foo").setUserToken("secret"));
+    client.initIndex("index").search(new Query("bar"));
+    // below the default threshold
+    client.listIndexes();
+
+    assertEquals(1, logged.size());
+    SlowRequest request = logged.get(0);
+    assertEquals("search", request.getEndpoint());
+    assertEquals("index", request.getIndexName());
+    assertEquals(1, request.getParams().size());
+    assertTrue(request.getParams().get(0).contains("query=foo"));
+    assertTrue(request.getParams().get(0).contains("userToken=[redacted]"));
+    assertEquals(2, request.getAttempts().size());
+    assertEquals("query1", request.getAttempts().get(0).getHost());
+    assertEquals(200, request.getAttempts().get(1).getStatusCode());
+    assertEquals("search", request.toJSONObject().getString("endpoint"));
+  }
+
+  @Test
+  public void cachesSearchesUntilIndexIsWritten() throws AlgoliaException, JSONException {
+    SearchCache cache = new SearchCache(1024 * 1024, 60000);
+    client.setSearchCache(cache);
+    Index index = client.initIndex("index");
+
+    index.search(new Query("foo")).put("modified", true);
+    assertFalse(index.search(new Query("foo")).has("modified"));
+    index.search(new Query("foo"), new RequestOptions().addExtraHeader("X-Algolia-UserToken", "user"));
+    client.initIndex("other").search(new Query("foo"));
+    assertEquals(3, transport.requests.size());
+    assertEquals(1, cache.getHits());
+    assertEquals(3, cache.getMisses());
+
+    index.addObject(new JSONObject().put("name", "bar"));
+    assertEquals(2, cache.getInvalidations());
+    index.search(new Query("foo"));
+    client.initIndex("other").search(new Query("foo"));
+    assertEquals(5, transport.requests.size());
+    assertEquals(2, cache.getHits());
+  }
+
+  @Test
+  public void parsesCachedSearchOnce() throws AlgoliaException, JSONException {
+    transport.body = "{\"hits\":[{\"objectID\":\"1\"}],\"processingTimeMS\":12}";
+    client.setSearchCache(new SearchCache(1024 * 1024, 60000));
+    Index index = client.initIndex("index");
+    RequestTimings timings = new RequestTimings();
+
+    JSONObject first = index.search(new Query("foo"), new RequestOptions().setTimings(timings));
+    assertEquals(12, timings.getProcessingTimeMS());
+    first.getJSONArray("hits").getJSONObject(0).put("objectID", "modified");
+
+    // each hit gets its own copy of the parsed response
+    JSONObject second = index.search(new Query("foo"));
+    assertEquals("1", second.getJSONArray("hits").getJSONObject(0).getString("objectID"));
+    assertEquals(12, second.getInt("processingTimeMS"));
+    assertEquals(1, transport.requests.size());
+  }
+
+  @Test
+  public void evictsLeastRecentlyUsedSearches() throws AlgoliaException {
+    SearchCache cache = new SearchCache(600, 60000);
+    client.setSearchCache(cache);
+    Index index = client.initIndex("index");
+
+    index.search(new Query("a"));
+    index.search(new Query("b"));
+    index.search(new Query("a"));
+    index.search(new Query("c"));
+
+    assertEquals(1, cache.getEvictions());
+    assertTrue(cache.getBytes() <= 600);
+    index.search(new Query("a"));
+    assertEquals(2, cache.getHits());
+    index.search(new Query("b"));
+    assertEquals(2, cache.getHits());
+  }
+
+  @Test
+  public void cachesSearchWhenAnotherIndexIsWrittenMeanwhile() throws Exception {
+    SearchCache cache = new SearchCache(1024 * 1024, 60000);
+    client.setSearchCache(cache);
+    final Index index = client.initIndex("index");
+    transport.blockedHosts.add("query1");
+    Thread search = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          index.search(new Query("foo"));
+        } catch (AlgoliaException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    });
+    search.start();
+    long start = System.currentTimeMillis();
+    while (transport.requests.isEmpty()) {
+      assertTrue(System.currentTimeMillis() - start < 5000);
+      Thread.sleep(10);
+    }
+
+    client.initIndex("other").addObject(new JSONObject().put("name", "bar"));
+    transport.unblock.countDown();
+    search.join();
+
+    assertEquals(1, cache.getEntryCount());
+    index.search(new Query("foo"));
+    assertEquals(1, cache.getHits());
+  }
+
+  @Test
+  public void doesNotCacheWritesThatLookLikeSearches() throws AlgoliaException, JSONException {
+    SearchCache cache = new SearchCache(1024 * 1024, 60000);
+    client.setSearchCache(cache);
+    Index index = client.initIndex("index");
+
+    // addObject on an index named query
+    client.initIndex("query").addObject(new JSONObject().put("name", "bar"));
+    client.initIndex("query").addObject(new JSONObject().put("name", "bar"));
+    assertEquals(2, transport.requests.size());
+    assertEquals(0, cache.getEntryCount());
+
+    // saveObject of an object named query
+    index.search(new Query("foo"));
+    index.saveObject(new JSONObject().put("name", "bar"), "query");
+    assertEquals(1, cache.getInvalidations());
+    index.search(new Query("foo"));
+    assertEquals(5, transport.requests.size());
+    assertEquals(0, cache.getHits());
+
+    // partialUpdateObject of an object named query
+    index.partialUpdateObject(new JSONObject().put("name", "bar"), "query");
+    assertEquals(2, cache.getInvalidations());
+  }
+
+  @Test
+  public void classifiesReadsAndWrites() {
+    assertTrue(SearchCache.isCacheable("POST", "/1/indexes/index/query"));
+    assertTrue(SearchCache.isCacheable("POST", "/1/indexes/*/queries?strategy=none"));
+    assertTrue(SearchCache.isCacheable("POST", "/1/indexes/index/facets/brand/query"));
+    assertFalse(SearchCache.isCacheable("POST", "/1/indexes/query"));
+    assertFalse(SearchCache.isCacheable("PUT", "/1/indexes/index/query"));
+    assertFalse(SearchCache.isCacheable("POST", "/1/indexes/index/query/partial"));
+
+    assertFalse(SearchCache.isWrite("POST", "/1/indexes/index/synonyms/search"));
+    assertFalse(SearchCache.isWrite("POST", "/1/indexes/index/rules/search"));
+    assertFalse(SearchCache.isWrite("POST", "/1/indexes/*/objects"));
+    assertFalse(SearchCache.isWrite("POST", "/1/indexes/index/browse"));
+    assertFalse(SearchCache.isWrite("GET", "/1/indexes/index/query"));
+    assertTrue(SearchCache.isWrite("POST", "/1/indexes/query"));
+    assertTrue(SearchCache.isWrite("POST", "/1/indexes/search/batch"));
+    assertTrue(SearchCache.isWrite("POST", "/1/indexes/index/synonyms/batch"));
+    assertTrue(SearchCache.isWrite("POST", "/1/indexes/index/search/partial"));
+    assertTrue(SearchCache.isWrite("PUT", "/1/indexes/index/query"));
+    assertTrue(SearchCache.isWrite("DELETE", "/1/indexes/index/browse"));
+  }
+
+  @Test
+  public void searchOfSynonymsDoesNotInvalidateCache() throws AlgoliaException, JSONException {
+    SearchCache cache = new SearchCache(1024 * 1024, 60000);
+    client.setSearchCache(cache);
+    Index index = client.initIndex("index");
+
+    index.search(new Query("foo"));
+    index.searchSynonyms(new SynonymQuery("foo"));
+    index.searchRules(new RuleQuery("foo"));
+    index.search(new Query("foo"));
+
+    assertEquals(0, cache.getInvalidations());
+    assertEquals(1, cache.getHits());
+  }
+
+  @Test
+  public void servesStaleSearchWhileRevalidating() throws AlgoliaException, InterruptedException {
+    SearchCache cache = new SearchCache(1024 * 1024, 50).setStaleWhileRevalidate(60000);
+    client.setSearchCache(cache);
+    Index index = client.initIndex("index");
+
+    index.search(new Query("foo"));
+    Thread.sleep(100);
+    transport.body = "{\"hits\":[],\"refreshed\":true}";
+    // the refresh waits until both stale searches are answered
+    transport.blockedHosts.add("query1");
+    assertFalse(index.search(new Query("foo")).has("refreshed"));
+    assertFalse(index.search(new Query("foo")).has("refreshed"));
+    assertEquals(1, cache.getRevalidations());
+    assertEquals(2, cache.getStaleHits());
+    transport.unblock.countDown();
+
+    long start = System.currentTimeMillis();
+    while (!index.search(new Query("foo")).has("refreshed")) {
+      assertTrue(System.currentTimeMillis() - start < 5000);
+      Thread.sleep(10);
+    }
+    assertEquals(2, transport.requests.size());
+  }
+
+  @Test
+  public void refreshesStaleSearchWhenAnotherIndexIsWrittenMeanwhile() throws Exception {
+    SearchCache cache = new SearchCache(1024 * 1024, 50).setStaleWhileRevalidate(60000);
+    client.setSearchCache(cache);
+    Index index = client.initIndex("index");
+
+    index.search(new Query("foo"));
+    Thread.sleep(100);
+    transport.body = "{\"hits\":[],\"refreshed\":true}";
+    transport.blockedHosts.add("query1");
+    assertFalse(index.search(new Query("foo")).has("refreshed"));
+    client.initIndex("other").addObject(new JSONObject().put("name", "bar"));
+    transport.unblock.countDown();
+
+    long start = System.currentTimeMillis();
+    while (!index.search(new Query("foo")).has("refreshed")) {
+      assertTrue(System.currentTimeMillis() - start < 5000);
+      Thread.sleep(10);
+    }
+    assertEquals(1, cache.getRevalidations());
+  }
+
+  @Test
+  public void refreshesAgainWhenRefreshIsNotCached() {
+    SearchCache cache = new SearchCache(1024 * 1024, 0).setStaleWhileRevalidate(60000);
+    // the indexes of a body that is not JSON are not known, so any write rejects its response
+    SearchCache.Key key = SearchCache.key("/1/indexes/*/queries", "not json", RequestOptions.empty);
+    RawResponse response = new RawResponse(new byte[]{'{', '}'}, null);
+    long version = cache.startFill();
+    assertTrue(cache.put(key, response, version));
+    cache.endFill(version);
+
+    assertTrue(cache.lookup(key).revalidate);
+    assertFalse(cache.lookup(key).revalidate);
+    version = cache.startFill();
+    cache.invalidate("/1/indexes/other", "{}");
+    assertFalse(cache.put(key, response, version));
+    cache.endFill(version);
+    cache.revalidationFailed(key);
+    assertTrue(cache.lookup(key).revalidate);
+  }
+
+  @Test
+  public void forgetsWritesOnceNoFillIsInFlight() {
+    SearchCache cache = new SearchCache(1024 * 1024, 60000);
+    SearchCache.Key key = SearchCache.key("/1/indexes/index/query", "{}", RequestOptions.empty);
+    RawResponse response = new RawResponse(new byte[]{'{', '}'}, null);
+    for (int i = 0; i < 1000; i++) {
+      cache.invalidate("/1/indexes/index" + i, "{}");
+    }
+    assertEquals(0, cache.getWriteVersionCount());
+
+    long version = cache.startFill();
+    cache.invalidate("/1/indexes/other", "{}");
+    long laterVersion = cache.startFill();
+    cache.invalidate("/1/indexes/index", "{}");
+    cache.endFill(version);
+    // still rejects the later fill
+    assertEquals(1, cache.getWriteVersionCount());
+    assertFalse(cache.put(key, response, laterVersion));
+    cache.endFill(laterVersion);
+    assertEquals(0, cache.getWriteVersionCount());
+  }
+
+  @Test
+  public void servesStaleSearchWhenHostsAreUnreachable() throws AlgoliaException, InterruptedException {
+    SearchCache cache = new SearchCache(1024 * 1024, 50).setStaleIfError(60000);
+    client.setSearchCache(cache);
+    Index index = client.initIndex("index");
+
+    index.search(new Query("foo"));
+    Thread.sleep(100);
+    transport.downHosts.addAll(Arrays.asList("query1", "query2", "build1", "build2"));
+    assertEquals(0, index.search(new Query("foo")).getJSONArray("hits").length());
+    assertEquals(1, cache.getStaleIfErrorHits());
+
+    try {
+      index.search(new Query("bar"));
+      fail("expected an exception");
+    } catch (AlgoliaException e) {
+      assertEquals(1, cache.getStaleIfErrorHits());
+    }
+  }
+
+  @Test
+  public void coalescesIdenticalReadsInFlight() throws Exception {
+    client.setRequestCoalescing(true);
+    final Index index = client.initIndex("index");
+    transport.blockedHosts.add("query1");
+    List<Thread> threads = new ArrayList<Thread>();
+    final List<JSONObject> results = Collections.synchronizedList(new ArrayList<JSONObject>());
+    for (int i = 0; i < 3; i++) {
+      Thread thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            results.add(index.search(new Query("foo")));
+          } catch (AlgoliaException e) {
+            throw new RuntimeException(e);
+          }
+        }
+      });
+      thread.start();
+      threads.add(thread);
+    }
+    long start = System.currentTimeMillis();
+    while (client.getCoalescedRequestCount() < 2) {
+      assertTrue(System.currentTimeMillis() - start < 5000);
+      Thread.sleep(10);
+    }
+    transport.unblock.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertEquals(3, results.size());
+    assertEquals(1, transport.requests.size());
+    assertEquals(2, client.getCoalescedRequestCount());
+    results.get(0).put("modified", true);
+    assertFalse(results.get(1).has("modified"));
+  }
+
+  @Test
+  public void doesNotCoalesceWrites() throws Exception {
+    client.setRequestCoalescing(true);
+    final Index index = client.initIndex("query");
+    transport.blockedHosts.add("build1");
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < 2; i++) {
+      Thread thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            // POST /1/indexes/query, not a search
+            index.addObject(new JSONObject().put("name", "bar"));
+          } catch (Exception e) {
+            throw new RuntimeException(e);
+          }
+        }
+      });
+      thread.start();
+      threads.add(thread);
+    }
+    long start = System.currentTimeMillis();
+    while (transport.requests.size() < 2) {
+      assertTrue(System.currentTimeMillis() - start < 5000);
+      Thread.sleep(10);
+    }
+    transport.unblock.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertEquals(2, transport.requests.size());
+    assertEquals(0, client.getCoalescedRequestCount());
+  }
+
+  @Test
+  public void coalescedReadKeepsItsDeadline() throws Exception {
+    client.setRequestCoalescing(true);
+    final Index index = client.initIndex("index");
+    transport.blockedHosts.add("query1");
+    Thread leader = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          index.search(new Query("foo"));
+        } catch (AlgoliaException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    });
+    leader.start();
+    long start = System.currentTimeMillis();
+    while (transport.requests.isEmpty()) {
+      assertTrue(System.currentTimeMillis() - start < 5000);
+      Thread.sleep(10);
+    }
+
+    try {
+      index.search(new Query("foo"), new RequestOptions().setRequestDeadline(100));
+      fail("expected an exception");
+    } catch (AlgoliaException e) {
+      assertTrue(e.getMessage(), e.getMessage().startsWith("Deadline exceeded"));
+    } finally {
+      transport.unblock.countDown();
+      leader.join();
+    }
+    assertEquals(1, transport.requests.size());
+    assertEquals(1, client.getCoalescedRequestCount());
+  }
+
+  @Test
+  public void cacheKeyIgnoresParametersOrder() {
+    SearchCache.Key key = SearchCache.key("/1/indexes/index/query", "{\"params\":\"query=foo&hitsPerPage=2\"}", RequestOptions.empty);
+    SearchCache.Key sameKey = SearchCache.key("/1/indexes/index/query", "{\"params\":\"hitsPerPage=2&query=foo\"}", RequestOptions.empty);
+    SearchCache.Key otherKey = SearchCache.key("/1/indexes/index/query", "{\"params\":\"hitsPerPage=3&query=foo\"}", RequestOptions.empty);
+
+    assertEquals(key.value, sameKey.value);
+    assertFalse(key.value.equals(otherKey.value));
+    assertEquals(Collections.singletonList("index"), key.indexNames);
+  }
+
+  /**
+   * Completes with the thread completing it
+   */
+  private static class ThreadCallback implements FutureCallback<JSONObject> {
+    final CountDownLatch done = new CountDownLatch(1);
+    final AtomicReference<String> thread = new AtomicReference<String>();
+    final AtomicReference<Object> outcome = new AtomicReference<Object>();
+
+    @Override
+    public void completed(JSONObject result) {
+      end(result);
+    }
+
+    @Override
+    public void failed(Exception e) {
+      end(e);
+    }
+
+    @Override
+    public void cancelled() {
+      end("cancelled");
+    }
+
+    private void end(Object result) {
+      thread.set(Thread.currentThread().getName());
+      outcome.set(result);
+      done.countDown();
+    }
+  }
+
+  @Test
+  public void asyncSearchFailsOverFromTransportCallbacks() throws Exception {
+    FakeAsyncTransport asyncTransport = new FakeAsyncTransport();
+    APIClient asyncClient = new APIClient("appID", "apiKey", Arrays.asList("build1", "build2"), Arrays.asList("query1", "query2"), asyncTransport);
+    try {
+      asyncTransport.downHosts.add("query1");
+      ThreadCallback callback = new ThreadCallback();
+      Future<JSONObject> future = asyncClient.initIndex("index").searchAsync(new Query("foo"), RequestOptions.empty, callback);
+
+      assertEquals(0, future.get(5, TimeUnit.SECONDS).getJSONArray("hits").length());
+      assertTrue(callback.done.await(5, TimeUnit.SECONDS));
+      assertTrue(callback.outcome.get() instanceof JSONObject);
+      // the retry and the completion run on the I/O thread, no thread of the client waits for the response
+      assertTrue(callback.thread.get(), callback.thread.get().startsWith("fake-io-"));
+      assertEquals(2, asyncTransport.requests.size());
+      assertEquals("query1", asyncTransport.requests.get(0).getUri().getHost());
+      assertEquals("query2", asyncTransport.requests.get(1).getUri().getHost());
+      assertFalse(asyncClient.getHostsHealth().get("query1").isUp());
+    } finally {
+      asyncClient.close();
+    }
+  }
+
+  @Test
+  public void asyncBatchDoesNotRetryClientErrors() throws Exception {
+    FakeAsyncTransport asyncTransport = new FakeAsyncTransport();
+    APIClient asyncClient = new APIClient("appID", "apiKey", Arrays.asList("build1", "build2"), Arrays.asList("query1", "query2"), asyncTransport);
+    try {
+      asyncTransport.statusCode = 400;
+      asyncTransport.body = "{\"message\":\"Invalid action\"}";
+      ThreadCallback callback = new ThreadCallback();
+      Future<JSONObject> future = asyncClient.batchAsync(new JSONArray(), RequestOptions.empty, callback);
+      try {
+        future.get(5, TimeUnit.SECONDS);
+        fail();
+      } catch (ExecutionException e) {
+        assertEquals(400, ((AlgoliaException) e.getCause()).getCode());
+      }
+      assertTrue(callback.done.await(5, TimeUnit.SECONDS));
+      assertTrue(callback.outcome.get() instanceof AlgoliaException);
+      assertEquals(1, asyncTransport.requests.size());
+      assertEquals("build1", asyncTransport.requests.get(0).getUri().getHost());
+    } finally {
+      asyncClient.close();
+    }
+  }
+
+  @Test
+  public void cancellingAsyncSearchAbortsItsRequest() throws Exception {
+    FakeAsyncTransport asyncTransport = new FakeAsyncTransport();
+    APIClient asyncClient = new APIClient("appID", "apiKey", Arrays.asList("build1", "build2"), Arrays.asList("query1", "query2"), asyncTransport);
+    try {
+      asyncTransport.hangingHosts.add("query1");
+      ThreadCallback callback = new ThreadCallback();
+      Future<JSONObject> future = asyncClient.initIndex("index").searchAsync(new Query("foo"), RequestOptions.empty, callback);
+      long start = System.currentTimeMillis();
+      while (asyncTransport.requests.isEmpty()) {
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        Thread.sleep(10);
+      }
+
+      assertTrue(future.cancel(true));
+      assertTrue(callback.done.await(5, TimeUnit.SECONDS));
+      assertEquals("cancelled", callback.outcome.get());
+      while (asyncTransport.abortedRequests.isEmpty()) {
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        Thread.sleep(10);
+      }
+      // the aborted attempt is not retried, and says nothing about its host
+      Thread.sleep(50);
+      assertEquals(1, asyncTransport.requests.size());
+      assertTrue(asyncClient.getHostsHealth().get("query1").isUp());
+    } finally {
+      asyncClient.close();
+    }
+  }
+}
@@ -0,0 +1,124 @@
+package com.algolia.search.saas;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class Http2TransportTest {
+  private final Http2Transport transport = new Http2Transport();
+  private ServerSocket server;
+
+  @After
+  public void closeServer() throws IOException {
+    if (server != null) {
+      server.close();
+    }
+    transport.close();
+  }
+
+  /**
+   * Answers one request on a local socket with the given head, then the given part of the body, then stalls
+   */
+  private URI serve(final String head, final String body, final boolean stall) throws IOException {
+    server = new ServerSocket(0);
+    Thread answer = new Thread(() -> {
+      try (Socket socket = server.accept()) {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null && line.length() > 0) {
+          // skip the request headers
+        }
+        OutputStream os = socket.getOutputStream();
+        os.write((head + "\r\n\r\n" + body).getBytes(StandardCharsets.UTF_8));
+        os.flush();
+        if (stall) {
+          Thread.sleep(5000);
+        }
+      } catch (IOException | InterruptedException e) {
+        // the client fails the test
+      }
+    });
+    answer.setDaemon(true);
+    answer.start();
+    return URI.create("http://localhost:" + server.getLocalPort() + "/1/indexes/index/query");
+  }
+
+  private static TransportRequest request(URI uri, int connectTimeoutMS, int readTimeoutMS) {
+    Map<String, String> headers = Collections.singletonMap("X-Algolia-Application-Id", "appID");
+    return new TransportRequest("POST", uri, headers, "{}".getBytes(StandardCharsets.UTF_8), connectTimeoutMS, readTimeoutMS);
+  }
+
+  @Test
+  public void returnsTheResponse() throws IOException {
+    String body = "{\"hits\":[]}";
+    URI uri = serve("HTTP/1.1 200 OK\r\nContent-Type: application/json\r\nContent-Length: " + body.length() + "\r\nConnection: close", body, false);
+
+    TransportResponse response = transport.execute(request(uri, 1000, 2000));
+
+    assertEquals(200, response.getStatusCode());
+    assertEquals(body.length(), response.getContentLength());
+    assertEquals(body, new String(response.getBody().readAllBytes(), StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void waitsWithoutTimeout() throws IOException {
+    String body = "{\"hits\":[]}";
+    URI uri = serve("HTTP/1.1 200 OK\r\nContent-Type: application/json\r\nContent-Length: " + body.length() + "\r\nConnection: close", body, false);
+
+    TransportResponse response = transport.execute(request(uri, 0, 0));
+
+    assertEquals(200, response.getStatusCode());
+    assertEquals(body, new String(response.getBody().readAllBytes(), StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void timesOutWhenTheBodyStalls() throws IOException {
+    URI uri = serve("HTTP/1.1 200 OK\r\nContent-Type: application/json\r\nContent-Length: 100\r\nConnection: close", "{\"hits\":", true);
+
+    long start = System.currentTimeMillis();
+    try {
+      transport.execute(request(uri, 100, 200));
+      fail("expected a timeout");
+    } catch (SocketTimeoutException e) {
+      assertTrue(System.currentTimeMillis() - start < 2000);
+    }
+  }
+
+  @Test
+  public void failsOverToNextHostWhenTheBodyStalls() throws AlgoliaException, IOException {
+    URI uri = serve("HTTP/1.1 200 OK\r\nContent-Type: application/json\r\nContent-Length: 100\r\nConnection: close", "{\"hits\":", true);
+    ServerSocket closed = new ServerSocket(0);
+    closed.close();
+    String stalling = "http://localhost:" + uri.getPort();
+    String down = "http://localhost:" + closed.getLocalPort();
+    APIClient client = new APIClient("appID", "apiKey", Collections.singletonList(stalling), Arrays.asList(stalling, down), transport);
+    client.setTimeout(100, 200);
+
+    long start = System.currentTimeMillis();
+    try {
+      client.initIndex("index").getObject("objectID");
+      fail("expected an exception");
+    } catch (AlgoliaException e) {
+      assertTrue(e.getMessage(), e.getMessage().startsWith("Hosts unreachable"));
+      assertTrue(System.currentTimeMillis() - start < 2000);
+    } finally {
+      client.close();
+    }
+  }
+}
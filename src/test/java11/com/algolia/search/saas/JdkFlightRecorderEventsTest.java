@@ -0,0 +1,151 @@
+package com.algolia.search.saas;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class JdkFlightRecorderEventsTest {
+  private final TransportTest.FakeTransport transport = new TransportTest.FakeTransport();
+  private final APIClient client = new APIClient("appID", "apiKey", Arrays.asList("build1", "build2"), Arrays.asList("query1", "query2"), transport);
+  private Recording recording;
+
+  @After
+  public void close() {
+    if (recording != null) {
+      recording.close();
+    }
+    client.close();
+  }
+
+  private void startRecording() {
+    startRecording("com.algolia.search.Request", "com.algolia.search.Attempt", "com.algolia.search.WaitTask", "com.algolia.search.BrowsePage");
+  }
+
+  /**
+   * Start a recording enabling only the given events
+   */
+  private void startRecording(String... enabledEvents) {
+    recording = new Recording();
+    for (String name : Arrays.asList("com.algolia.search.Request", "com.algolia.search.Attempt", "com.algolia.search.WaitTask", "com.algolia.search.BrowsePage")) {
+      if (Arrays.asList(enabledEvents).contains(name)) {
+        recording.enable(name).withoutThreshold();
+      } else {
+        recording.disable(name);
+      }
+    }
+    recording.start();
+  }
+
+  private List<RecordedEvent> stopRecording() throws IOException {
+    recording.stop();
+    Path dump = Files.createTempFile("algolia", ".jfr");
+    try {
+      recording.dump(dump);
+      return RecordingFile.readAllEvents(dump);
+    } finally {
+      Files.delete(dump);
+    }
+  }
+
+  private static List<RecordedEvent> events(List<RecordedEvent> events, String name) {
+    List<RecordedEvent> result = new ArrayList<>();
+    for (RecordedEvent event : events) {
+      if (event.getEventType().getName().equals(name)) {
+        result.add(event);
+      }
+    }
+    return result;
+  }
+
+  @Test
+  public void recordsRequestsAndAttempts() throws AlgoliaException, IOException {
+    startRecording();
+    transport.downHosts.add("query1");
+    client.initIndex("my index").search(new Query("foo"));
+    List<RecordedEvent> events = stopRecording();
+
+    List<RecordedEvent> requests = events(events, "com.algolia.search.Request");
+    assertEquals(1, requests.size());
+    assertEquals("search", requests.get(0).getString("endpoint"));
+    assertEquals("my index", requests.get(0).getString("indexName"));
+    assertEquals(200, requests.get(0).getInt("statusCode"));
+    assertEquals(2, requests.get(0).getInt("attempts"));
+    assertEquals(1, requests.get(0).getInt("retries"));
+
+    // the events do not need the timings of the requests
+    assertFalse(transport.requests.get(0).isTimed());
+
+    List<RecordedEvent> attempts = events(events, "com.algolia.search.Attempt");
+    assertEquals(2, attempts.size());
+    assertEquals("query1", attempts.get(0).getString("host"));
+    assertNotNull(attempts.get(0).getString("error"));
+    assertEquals("query2", attempts.get(1).getString("host"));
+    assertEquals(200, attempts.get(1).getInt("statusCode"));
+  }
+
+  @Test
+  public void recordsWaitTaskAndBrowsePages() throws AlgoliaException, IOException {
+    startRecording();
+    transport.body = "{\"status\":\"published\",\"hits\":[{\"objectID\":\"1\"}]}";
+    Index index = client.initIndex("my index");
+    index.waitTask("42");
+    index.browse(new Query());
+    List<RecordedEvent> events = stopRecording();
+
+    List<RecordedEvent> waitTasks = events(events, "com.algolia.search.WaitTask");
+    assertEquals(1, waitTasks.size());
+    assertEquals("my index", waitTasks.get(0).getString("indexName"));
+    assertEquals("42", waitTasks.get(0).getString("taskID"));
+    assertEquals(1, waitTasks.get(0).getInt("polls"));
+    assertEquals("published", waitTasks.get(0).getString("status"));
+
+    List<RecordedEvent> pages = events(events, "com.algolia.search.BrowsePage");
+    assertEquals(1, pages.size());
+    assertEquals("my index", pages.get(0).getString("indexName"));
+    assertEquals(1, pages.get(0).getInt("hits"));
+    assertFalse(pages.get(0).getBoolean("hasCursor"));
+  }
+
+  @Test
+  public void recordsNothingWithoutRecording() {
+    FlightRecorderEvents events = client.getFlightRecorderEvents();
+    assertNotNull(events);
+    assertNull(events.beginBrowsePage());
+
+    startRecording();
+    assertNotNull(events.beginBrowsePage());
+    recording.stop();
+    assertNull(events.beginBrowsePage());
+  }
+
+  @Test
+  public void createsOnlyEnabledEvents() {
+    JdkFlightRecorderEvents events = (JdkFlightRecorderEvents) client.getFlightRecorderEvents();
+    startRecording("com.algolia.search.BrowsePage");
+    assertFalse(events.isListening());
+    assertNull(events.beginWaitTask());
+    assertNotNull(events.beginBrowsePage());
+    recording.close();
+
+    startRecording("com.algolia.search.Attempt");
+    assertTrue(events.isListening());
+    assertNull(events.beginBrowsePage());
+    recording.stop();
+    assertFalse(events.isListening());
+  }
+}